@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.geofence.FenceGeometry.Containment;
+import eu.hansolo.microplanner.tools.GeoHash;
+
+import java.util.stream.LongStream;
+
+
+/**
+ * The geohash cells that cover a fence at a given precision.
+ * Interior cells are completely inside the fence, boundary cells are touched
+ * by the border of the fence and need an exact containment test.
+ */
+public final class CellCover {
+    public  static final int    MAX_NO_OF_CELLS = 1 << 20;
+    private        final int    precision;
+    private        final long[] interiorCells;
+    private        final long[] boundaryCells;
+
+
+    // ******************** Constructors **************************************
+    public CellCover(final int precision, final long[] interiorCells, final long[] boundaryCells) {
+        this.precision     = precision;
+        this.interiorCells = interiorCells;
+        this.boundaryCells = boundaryCells;
+    }
+
+
+    // ******************** Methods *******************************************
+    public int getPrecision() { return precision; }
+
+    public long[] getInteriorCells() { return interiorCells.clone(); }
+
+    public long[] getBoundaryCells() { return boundaryCells.clone(); }
+
+    public int size() { return interiorCells.length + boundaryCells.length; }
+
+    /**
+     * Computes the cell cover of the given geometry by classifying every cell
+     * within its bounding box.
+     * @param geometry  The geometry to cover
+     * @param precision The geohash precision of the cells
+     * @return The cells that cover the given geometry
+     */
+    public static CellCover of(final FenceGeometry geometry, final int precision) {
+        if (geometry.isEmpty()) { return new CellCover(precision, new long[0], new long[0]); }
+        final int    lonBits     = GeoHash.getLongitudeBits(precision);
+        final int    latBits     = GeoHash.getLatitudeBits(precision);
+        final double width       = GeoHash.getCellWidth(precision);
+        final double height      = GeoHash.getCellHeight(precision);
+        final long   minLatIndex = GeoHash.getLatitudeIndex(geometry.getMinX(), latBits);
+        final long   maxLatIndex = GeoHash.getLatitudeIndex(geometry.getMaxX(), latBits);
+        final long   minLonIndex = GeoHash.getLongitudeIndex(geometry.getMinY(), lonBits);
+        final long   maxLonIndex = GeoHash.getLongitudeIndex(geometry.getMaxY(), lonBits);
+        if ((maxLatIndex - minLatIndex + 1) * (maxLonIndex - minLonIndex + 1) > MAX_NO_OF_CELLS) {
+            throw new IllegalArgumentException("Cover would exceed " + MAX_NO_OF_CELLS + " cells, use a lower precision");
+        }
+
+        // Cells are slightly enlarged to be safe against rounding when a position is mapped to its cell
+        final double             marginLat = height * 1e-6;
+        final double             marginLon = width * 1e-6;
+        final LongStream.Builder interior  = LongStream.builder();
+        final LongStream.Builder boundary  = LongStream.builder();
+        for (long latIndex = minLatIndex ; latIndex <= maxLatIndex ; latIndex++) {
+            final double minLat = latIndex * height - 90.0;
+            for (long lonIndex = minLonIndex ; lonIndex <= maxLonIndex ; lonIndex++) {
+                final double      minLon      = lonIndex * width - 180.0;
+                final Containment containment = geometry.classify(minLat - marginLat, minLon - marginLon, minLat + height + marginLat, minLon + width + marginLon);
+                switch (containment) {
+                    case INSIDE  : interior.add(GeoHash.interleave(lonIndex, latIndex, precision)); break;
+                    case BOUNDARY: boundary.add(GeoHash.interleave(lonIndex, latIndex, precision)); break;
+                }
+            }
+        }
+        return new CellCover(precision, interior.build().toArray(), boundary.build().toArray());
+    }
+}
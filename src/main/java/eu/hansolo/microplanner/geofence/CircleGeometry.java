@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.tools.Helper;
+
+
+/**
+ * Immutable circle with a radius in meters.
+ * The containment test compares squared distances on an equirectangular
+ * projection around the center, the cosine of the center latitude is
+ * precomputed. For radii up to a few kilometers the error is far below
+ * the accuracy of the positions.
+ */
+public final class CircleGeometry implements FenceGeometry {
+    private final double latitude;
+    private final double longitude;
+    private final double radius;         // m
+    private final double radiusSquared;
+    private final double scaleX;         // m per degree latitude
+    private final double scaleY;         // m per degree longitude at the center
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+
+
+    // ******************** Constructors **************************************
+    public CircleGeometry(final double latitude, final double longitude, final double radius) {
+        if (radius < 0) { throw new IllegalArgumentException("Radius must not be negative"); }
+        this.latitude      = latitude;
+        this.longitude     = longitude;
+        this.radius        = radius;
+        this.radiusSquared = radius * radius;
+        this.scaleX        = Helper.METER_PER_DEGREE;
+        this.scaleY        = Helper.METER_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+        this.minX          = latitude - radius / scaleX;
+        this.maxX          = latitude + radius / scaleX;
+        this.minY          = longitude - radius / scaleY;
+        this.maxY          = longitude + radius / scaleY;
+    }
+
+
+    // ******************** Methods *******************************************
+    public double getLatitude() { return latitude; }
+
+    public double getLongitude() { return longitude; }
+
+    public double getRadius() { return radius; }
+
+    @Override public double getMinX() { return minX; }
+    @Override public double getMinY() { return minY; }
+    @Override public double getMaxX() { return maxX; }
+    @Override public double getMaxY() { return maxY; }
+
+    @Override public boolean isEmpty() { return Double.compare(radius, 0.0) == 0; }
+
+    @Override public boolean contains(final double x, final double y) {
+        final double deltaX = (x - latitude) * scaleX;
+        final double deltaY = (y - longitude) * scaleY;
+        return deltaX * deltaX + deltaY * deltaY <= radiusSquared;
+    }
+
+    @Override public int contains(final double[] xs, final double[] ys, final int noOfPositions, final long[] result) {
+        Helper.checkBatch(xs, ys, noOfPositions, result);
+        int noOfInside = 0;
+        for (int p = 0 ; p < noOfPositions ; p++) {
+            final double deltaX = (xs[p] - latitude) * scaleX;
+            final double deltaY = (ys[p] - longitude) * scaleY;
+            if (deltaX * deltaX + deltaY * deltaY <= radiusSquared) {
+                result[p >>> 6] |= 1L << p;
+                noOfInside++;
+            }
+        }
+        return noOfInside;
+    }
+
+    @Override public Containment classify(final double minX, final double minY, final double maxX, final double maxY) {
+        // Nearest and farthest point of the rectangle relative to the center in meters
+        final double nearestX  = (Helper.clamp(minX, maxX, latitude) - latitude) * scaleX;
+        final double nearestY  = (Helper.clamp(minY, maxY, longitude) - longitude) * scaleY;
+        if (nearestX * nearestX + nearestY * nearestY > radiusSquared) { return Containment.OUTSIDE; }
+        final double farthestX = Math.max(Math.abs(minX - latitude), Math.abs(maxX - latitude)) * scaleX;
+        final double farthestY = Math.max(Math.abs(minY - longitude), Math.abs(maxY - longitude)) * scaleY;
+        return farthestX * farthestX + farthestY * farthestY <= radiusSquared ? Containment.INSIDE : Containment.BOUNDARY;
+    }
+
+    @Override public double distanceToBoundaryInMeter(final double x, final double y) {
+        final double deltaX = (x - latitude) * scaleX;
+        final double deltaY = (y - longitude) * scaleY;
+        return Math.abs(Math.sqrt(deltaX * deltaX + deltaY * deltaY) - radius);
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.location.Location;
+import eu.hansolo.microplanner.tools.Helper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Immutable snapshot of the geometry of a set of GeoFences that is flattened
+ * into primitive arrays.
+ * The edges of all polygons are kept in one edge table (x1, y1, y2, slope and
+ * fence id per edge) that is split into bands along y. A position only has to
+ * look at the edges of its band and toggles the bit of a fence in a bitset for
+ * every edge it crosses, after one sweep the bitset contains all polygons
+ * that contain the position. Horizontal edges are never crossed and not stored,
+ * edges that span several bands are stored in each of them.
+ * Circular fences are kept in separate arrays.
+ * Like in GeoFence.containsLocation() x is the latitude and y the longitude.
+ * The set is compiled from the current version of every fence, if fences are
+ * added or their points change a new set has to be compiled. Whether a fence
+ * is active is checked on evaluation.
+ */
+public class CompiledFenceSet {
+    private static final int                    MAX_NO_OF_BANDS = 4096;
+    private static final long[]                 NO_FENCES       = new long[0];
+    private        final GeoFence[]             fences;
+    private        final FenceVersion[]         versions;            // Versions of the fences the set has been compiled from
+    private        final int                    noOfWords;           // Number of longs in a bitset over all fences
+    private        final int                    noOfBands;
+    private        final double                 minY;
+    private        final double                 maxY;
+    private        final double                 bandScale;           // Bands per degree
+    private        final int[]                  bandStart;           // Index of the first edge of band i in the edge table, bandStart[noOfBands] is the number of edges
+    private        final double[]               edgeX1;
+    private        final double[]               edgeY1;
+    private        final double[]               edgeY2;
+    private        final double[]               edgeSlopes;          // dx/dy of the edge
+    private        final int[]                  edgeFences;
+    private        final double[]               circleX;
+    private        final double[]               circleY;
+    private        final double[]               circleScaleY;        // m per degree longitude at the center
+    private        final double[]               circleRadiusSquared;
+    private        final int[]                  circleFences;
+    private        final Map<GeoFence, Integer> fenceIds;
+    private        final Map<String, long[]>    fencesOfObject;      // Bitset of the fences an object has been inside after the last evaluation
+
+
+    // ******************** Constructors **************************************
+    public CompiledFenceSet(final Collection<GeoFence> fences) {
+        this.fences         = fences.toArray(new GeoFence[0]);
+        this.versions       = new FenceVersion[this.fences.length];
+        this.fenceIds       = new IdentityHashMap<>(this.fences.length);
+        this.noOfWords      = Math.max(1, (this.fences.length + 63) >>> 6);
+        for (int i = 0 ; i < this.fences.length ; i++) { fenceIds.put(this.fences[i], i); }
+        this.fencesOfObject = new ConcurrentHashMap<>();
+        // Objects that are already inside, e.g. after a restore from a GeoFenceCheckpoint, are evaluated against their fences until they leave
+        final int words = noOfWords;
+        for (int i = 0 ; i < this.fences.length ; i++) {
+            for (Location location : this.fences[i].getLocationsInFence()) { fencesOfObject.computeIfAbsent(location.getName(), name -> new long[words])[i >>> 6] |= 1L << i; }
+        }
+
+        final List<PolygonGeometry> polygons      = new ArrayList<>();
+        final List<Integer>         polygonFences = new ArrayList<>();
+        final List<CircleGeometry>  circles       = new ArrayList<>();
+        final List<Integer>         circleIds     = new ArrayList<>();
+        double                      minY          = Double.POSITIVE_INFINITY;
+        double                      maxY          = Double.NEGATIVE_INFINITY;
+        int                         noOfEdges     = 0;
+        for (int i = 0 ; i < this.fences.length ; i++) {
+            versions[i] = this.fences[i].getVersion();
+            final FenceGeometry geometry = versions[i].getGeometry();
+            if (geometry.isEmpty()) { continue; }
+            if (geometry instanceof CircleGeometry) {
+                circles.add((CircleGeometry) geometry);
+                circleIds.add(i);
+            } else if (geometry instanceof PolygonGeometry) {
+                polygons.add((PolygonGeometry) geometry);
+                polygonFences.add(i);
+                minY       = Math.min(minY, geometry.getMinY());
+                maxY       = Math.max(maxY, geometry.getMaxY());
+                noOfEdges += ((PolygonGeometry) geometry).getNoOfPoints();
+            } else {
+                throw new IllegalArgumentException("Unsupported geometry " + geometry.getClass().getSimpleName());
+            }
+        }
+
+        // Circles
+        final int noOfCircles = circles.size();
+        circleX             = new double[noOfCircles];
+        circleY             = new double[noOfCircles];
+        circleScaleY        = new double[noOfCircles];
+        circleRadiusSquared = new double[noOfCircles];
+        circleFences        = new int[noOfCircles];
+        for (int i = 0 ; i < noOfCircles ; i++) {
+            final CircleGeometry circle = circles.get(i);
+            circleX[i]             = circle.getLatitude();
+            circleY[i]             = circle.getLongitude();
+            circleScaleY[i]        = Helper.METER_PER_DEGREE * Math.cos(Math.toRadians(circle.getLatitude()));
+            circleRadiusSquared[i] = circle.getRadius() * circle.getRadius();
+            circleFences[i]        = circleIds.get(i);
+        }
+
+        // Bands, about 4 edges per band as long as the edges that span several bands at most quadruple the edge table
+        double spans = 0;
+        for (PolygonGeometry polygon : polygons) {
+            final double[] ys = polygon.getPointsY();
+            for (int i = 0, j = ys.length - 1 ; i < ys.length ; j = i++) { spans += Math.abs(ys[i] - ys[j]); }
+        }
+        spans = maxY > minY ? spans / (maxY - minY) : 0;
+        this.minY      = minY;
+        this.maxY      = maxY;
+        this.noOfBands = maxY > minY ? Helper.clamp(1, MAX_NO_OF_BANDS, (int) Math.min(noOfEdges / 4.0, 3.0 * noOfEdges / Math.max(1.0, spans))) : 1;
+        this.bandScale = maxY > minY ? noOfBands / (maxY - minY) : 0;
+        this.bandStart = new int[noOfBands + 1];
+        for (PolygonGeometry polygon : polygons) {
+            final double[] ys = polygon.getPointsY();
+            for (int i = 0, j = ys.length - 1 ; i < ys.length ; j = i++) {
+                if (Double.compare(ys[i], ys[j]) == 0) { continue; }
+                final int lastBand = getBand(Math.max(ys[i], ys[j]));
+                for (int band = getBand(Math.min(ys[i], ys[j])) ; band <= lastBand ; band++) { bandStart[band + 1]++; }
+            }
+        }
+        for (int band = 0 ; band < noOfBands ; band++) { bandStart[band + 1] += bandStart[band]; }
+
+        // Edge table sorted by band
+        final int   size = bandStart[noOfBands];
+        final int[] fill = new int[noOfBands];
+        System.arraycopy(bandStart, 0, fill, 0, noOfBands);
+        edgeX1     = new double[size];
+        edgeY1     = new double[size];
+        edgeY2     = new double[size];
+        edgeSlopes = new double[size];
+        edgeFences = new int[size];
+        for (int p = 0 ; p < polygons.size() ; p++) {
+            final PolygonGeometry polygon = polygons.get(p);
+            final double[]        xs      = polygon.getPointsX();
+            final double[]        ys      = polygon.getPointsY();
+            final double[]        slopes  = polygon.getSlopes();
+            final int             fenceId = polygonFences.get(p);
+            for (int i = 0, j = ys.length - 1 ; i < ys.length ; j = i++) {
+                if (Double.compare(ys[i], ys[j]) == 0) { continue; }
+                final int lastBand = getBand(Math.max(ys[i], ys[j]));
+                for (int band = getBand(Math.min(ys[i], ys[j])) ; band <= lastBand ; band++) {
+                    final int edge = fill[band]++;
+                    edgeX1[edge]     = xs[i];
+                    edgeY1[edge]     = ys[i];
+                    edgeY2[edge]     = ys[j];
+                    edgeSlopes[edge] = slopes[i];
+                    edgeFences[edge] = fenceId;
+                }
+            }
+        }
+    }
+
+
+    // ******************** Methods *******************************************
+    public int getNoOfFences() { return fences.length; }
+
+    public GeoFence getFence(final int fenceId) { return fences[fenceId]; }
+
+    /**
+     * Returns the version of the fence with the given id this set has been compiled
+     * from, later changes of the fence are only visible in a newly compiled set.
+     * @param fenceId The id of the fence
+     * @return The version of the fence
+     */
+    public FenceVersion getVersion(final int fenceId) { return versions[fenceId]; }
+
+    public List<GeoFence> getFences() {
+        final List<GeoFence> result = new ArrayList<>(fences.length);
+        for (GeoFence fence : fences) { result.add(fence); }
+        return result;
+    }
+
+    public int getNoOfEdges() { return bandStart[noOfBands]; }
+
+    /**
+     * Returns the number of longs a bitset over all fences of this set needs.
+     * @return The number of longs of a bitset over all fences
+     */
+    public int getNoOfWords() { return noOfWords; }
+
+    /**
+     * Sets bit i of the given bitset if the geometry of fence i contains the
+     * given position, all other bits will be cleared.
+     * @param latitude  The latitude of the position
+     * @param longitude The longitude of the position
+     * @param result    Bitset with at least getNoOfWords() longs
+     * @return The number of fences that contain the given position
+     */
+    public int contains(final double latitude, final double longitude, final long[] result) {
+        if (result.length < noOfWords) { throw new IllegalArgumentException("Result must contain at least " + noOfWords + " longs"); }
+        for (int i = 0 ; i < noOfWords ; i++) { result[i] = 0; }
+        final double x = latitude;
+        final double y = longitude;
+        if (y >= minY && y <= maxY) {
+            final int band = getBand(y);
+            for (int e = bandStart[band], end = bandStart[band + 1] ; e < end ; e++) {
+                if (((edgeY1[e] > y) != (edgeY2[e] > y)) && (x < edgeSlopes[e] * (y - edgeY1[e]) + edgeX1[e])) {
+                    result[edgeFences[e] >>> 6] ^= 1L << edgeFences[e];
+                }
+            }
+        }
+        for (int c = 0 ; c < circleX.length ; c++) {
+            final double deltaX = (x - circleX[c]) * Helper.METER_PER_DEGREE;
+            final double deltaY = (y - circleY[c]) * circleScaleY[c];
+            if (deltaX * deltaX + deltaY * deltaY <= circleRadiusSquared[c]) { result[circleFences[c] >>> 6] |= 1L << circleFences[c]; }
+        }
+        int noOfInside = 0;
+        for (int i = 0 ; i < noOfWords ; i++) { noOfInside += Long.bitCount(result[i]); }
+        return noOfInside;
+    }
+
+    /**
+     * Returns all fences whose geometry contains the given position.
+     * @param latitude  The latitude of the position
+     * @param longitude The longitude of the position
+     * @return All fences that contain the given position
+     */
+    public List<GeoFence> getFencesContaining(final double latitude, final double longitude) {
+        final long[]         bits   = new long[noOfWords];
+        final List<GeoFence> result = new ArrayList<>(contains(latitude, longitude, bits));
+        for (int i = nextFence(bits, 0) ; i >= 0 ; i = nextFence(bits, i + 1)) { result.add(fences[i]); }
+        return result;
+    }
+
+    /**
+     * Evaluates the given location against all fences of this set in one sweep
+     * and reports the result to each fence that contains the location or
+     * contained it at the last evaluation, which fire their events as usual.
+     * @param location The location to evaluate
+     * @return All fences that contain the given location
+     */
+    public List<GeoFence> evaluate(final Location location) {
+        final String         name   = location.getName();
+        final long[]         bits   = new long[noOfWords];
+        final List<GeoFence> inside = new ArrayList<>();
+        contains(location.getLatitude(), location.getLongitude(), bits);
+        if (apply(location, bits, fencesOfObject.getOrDefault(name, NO_FENCES), inside)) {
+            fencesOfObject.put(name, bits);
+        } else {
+            fencesOfObject.remove(name);
+        }
+        return inside;
+    }
+
+    /**
+     * Reports the given containment bitset to each fence that contains the location
+     * or contained it before. Bits of fences that keep the object outside, e.g.
+     * because of dwell time, will be cleared, bits of fences that keep it inside
+     * will be set, so afterwards the bitset contains the confirmed membership.
+     * @param location The location that has been evaluated
+     * @param bits     The result of contains() for the location
+     * @param previous The confirmed membership of the object before
+     * @param inside   Receives all fences the object is inside
+     * @return True if the object is inside of at least one fence
+     */
+    boolean apply(final Location location, final long[] bits, final long[] previous, final List<GeoFence> inside) {
+        boolean isInside = false;
+        for (int i = 0 ; i < noOfWords ; i++) {
+            final long candidates = bits[i] | (i < previous.length ? previous[i] : 0);
+            for (long word = candidates ; word != 0 ; word &= word - 1) {
+                final int fenceId = (i << 6) + Long.numberOfTrailingZeros(word);
+                if (fences[fenceId].update(location, (bits[i] & (1L << fenceId)) != 0)) {
+                    // Hysteresis or dwell time might keep the object inside
+                    bits[i] |= 1L << fenceId;
+                    isInside = true;
+                    if (null != inside) { inside.add(fences[fenceId]); }
+                } else {
+                    bits[i] &= ~(1L << fenceId);
+                }
+            }
+        }
+        return isInside;
+    }
+
+    /**
+     * Returns the id of the given fence in this set or -1 if it is not part of it.
+     * @param fence The fence
+     * @return The id of the fence or -1
+     */
+    public int indexOf(final GeoFence fence) {
+        final Integer fenceId = fenceIds.get(fence);
+        return null == fenceId ? -1 : fenceId;
+    }
+
+    private int getBand(final double y) { return Helper.clamp(0, noOfBands - 1, (int) ((y - minY) * bandScale)); }
+
+    private int nextFence(final long[] bits, final int fromIndex) {
+        int word = fromIndex >>> 6;
+        if (word >= bits.length) { return -1; }
+        long bitsOfWord = bits[word] & (-1L << fromIndex);
+        while (true) {
+            if (bitsOfWord != 0) { return (word << 6) + Long.numberOfTrailingZeros(bitsOfWord); }
+            if (++word == bits.length) { return -1; }
+            bitsOfWord = bits[word];
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+
+/**
+ * Immutable geometry of a GeoFence that is used for the containment test.
+ * Like in GeoFence.containsLocation() x is the latitude and y the longitude.
+ */
+public interface FenceGeometry {
+    enum Containment { OUTSIDE, INSIDE, BOUNDARY }
+
+    double getMinX();
+    double getMinY();
+    double getMaxX();
+    double getMaxY();
+
+    boolean isEmpty();
+
+    default boolean isInBounds(final double x, final double y) { return x >= getMinX() && x <= getMaxX() && y >= getMinY() && y <= getMaxY(); }
+
+    boolean contains(final double x, final double y);
+
+    /**
+     * Tests a columnar batch of positions in one pass and sets bit i
+     * of the given bitset if position i is inside the geometry.
+     * @param xs            The x coordinates (latitudes) of the positions
+     * @param ys            The y coordinates (longitudes) of the positions
+     * @param noOfPositions The number of positions to test
+     * @param result        The bitset that will contain the results
+     * @return The number of positions inside the geometry
+     */
+    int contains(final double[] xs, final double[] ys, final int noOfPositions, final long[] result);
+
+    /**
+     * Classifies the given rectangle as completely inside, completely outside
+     * or as touched by the border of the geometry.
+     * @param minX The min x (latitude) of the rectangle
+     * @param minY The min y (longitude) of the rectangle
+     * @param maxX The max x (latitude) of the rectangle
+     * @param maxY The max y (longitude) of the rectangle
+     * @return INSIDE, OUTSIDE or BOUNDARY
+     */
+    Containment classify(final double minX, final double minY, final double maxX, final double maxY);
+
+    /**
+     * Returns the distance of the given position to the border of the geometry in meters.
+     * @param x The latitude of the position
+     * @param y The longitude of the position
+     * @return The distance to the border in meters
+     */
+    double distanceToBoundaryInMeter(final double x, final double y);
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.tools.Point;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Immutable version of the shape of a GeoFence, the points for display, the
+ * simplified points and the geometry that is built from them.
+ * A fence publishes a new version as a whole on every change, so a concurrent
+ * containment test always sees one complete version.
+ */
+public final class FenceVersion {
+    private final long          number;
+    private final List<Point>   points;
+    private final List<Point>   simplifiedPoints;
+    private final FenceGeometry geometry;
+
+
+    // ******************** Constructors **************************************
+    FenceVersion(final long number, final List<Point> points, final List<Point> simplifiedPoints, final FenceGeometry geometry) {
+        this.number           = number;
+        this.points           = copyOf(points);
+        this.simplifiedPoints = simplifiedPoints == points ? this.points : copyOf(simplifiedPoints);
+        this.geometry         = geometry;
+    }
+
+
+    // ******************** Methods *******************************************
+    /**
+     * Returns the number of the version, it starts at 0 and is increased with every change.
+     * @return The number of the version
+     */
+    public long getNumber() { return number; }
+
+    public List<Point> getPoints() { return points; }
+
+    public List<Point> getSimplifiedPoints() { return simplifiedPoints; }
+
+    public FenceGeometry getGeometry() { return geometry; }
+
+    private static List<Point> copyOf(final List<Point> points) {
+        final List<Point> copy = new ArrayList<>(points.size());
+        for (Point point : points) { copy.add(new Point(point.getX(), point.getY())); }
+        return Collections.unmodifiableList(copy);
+    }
+}
@@ -20,19 +20,27 @@ import eu.hansolo.microplanner.geofence.GeoFenceEvent.GeoFenceEventType;
 import eu.hansolo.microplanner.location.Location;
 import eu.hansolo.microplanner.tools.Helper;
 import eu.hansolo.microplanner.tools.Point;
+import eu.hansolo.microplanner.tools.Simplifier;
 
 import java.time.DayOfWeek;
-import java.time.LocalDateTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.Clock;
+import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 import static eu.hansolo.microplanner.geofence.GeoFenceEvent.GeoFenceEventType.ENTERED_FENCE;
@@ -42,23 +50,42 @@ import static eu.hansolo.microplanner.geofence.GeoFenceEvent.GeoFenceEventType.O
 
 
 public class GeoFence {
-    private String                  name;           // Name of the GeoFence
-    private String                  category;       // Category can be used to organize the fences
-    private List<Point>             points;         // List of points that defines the Polygon that represents the GeoFence
-    private String                  info;           // Contains additional information of the GeoFence
-    private boolean                 active;         // Indicates if the GeoFence is active or not
-    private boolean                 timeBased;      // Indicates if the GeoFence is only active at specified times
-    private LocalTime               startTime;      // Start time of fence when it will trigger events if activated
-    private LocalTime               endTime;        // End time of fence when it will trigger events if activated
-    private ZoneId                  zoneId;         // ZoneId of the fence
-    private Set<String>             tags;           // List of tags
-    private Set<DayOfWeek>          days;           // Contains the days in a week where the fence will trigger events if activated
-    private Map<String, Location>   objectsInFence; // Contains all Location-Objects that are inside the fence at the moment
-    private List<GeoFenceObserver>  observers;      // List of observers
-    private Consumer<GeoFenceEvent> enteredFenceConsumer;
-    private Consumer<GeoFenceEvent> insideFenceConsumer;
-    private Consumer<GeoFenceEvent> leftFenceConsumer;
-    private Consumer<GeoFenceEvent> outsideFenceConsumer;
+    public enum EventMode { ALL, TRANSITIONS, HEARTBEAT }
+
+    private static final AtomicLong              NO_OF_CHANGES = new AtomicLong(); // Number of versions that have been published by all fences, lets indexes detect stale shapes
+
+    private          String                  name;           // Name of the GeoFence
+    private          String                  category;       // Category can be used to organize the fences
+    private volatile FenceVersion            version;        // Points, simplified points and geometry of the fence, replaced as a whole on every change
+    private          int                     gridThreshold;  // Number of points from which on the geometry uses a grid to speed up the containment test
+    private          Simplifier.Method       simplification; // Method that is used to simplify the polygon before the geometry is built
+    private          double                  tolerance;      // Tolerance in meters of the simplification
+    private          String                  info;           // Contains additional information of the GeoFence
+    private          boolean                 active;         // Indicates if the GeoFence is active or not
+    private          boolean                 timeBased;      // Indicates if the GeoFence is only active at specified times
+    private          LocalTime               startTime;      // Start time of fence when it will trigger events if activated
+    private          LocalTime               endTime;        // End time of fence when it will trigger events if activated
+    private          ZoneId                  zoneId;         // ZoneId of the fence
+    private          Clock                   clock;          // Clock that defines now for time based fences, can be replaced for replay and simulation
+    private volatile ActivityWindow          window;         // Current or next activity window of a time based fence in epoch millis
+    private          Set<String>             tags;           // List of tags
+    private          Set<DayOfWeek>          days;           // Contains the days in a week where the fence will trigger events if activated
+    private          Map<String, Location>   objectsInFence; // Contains all Location-Objects that are inside the fence at the moment
+    private          Map<String, Long>       pendingObjects; // Epoch millis since when an object is on the other side of the fence without being confirmed
+    private          Map<String, Long>       heartbeats;     // Epoch millis of the last ENTERED or INSIDE event of an object in HEARTBEAT mode
+    private          Membership              members;        // Membership of objects that are evaluated by the fence itself
+    private          long                    dwellTime;      // Milliseconds an object has to stay on the other side of the fence before the transition is confirmed
+    private          double                  hysteresis;     // Distance in meters an object has to be away from the border before a transition is confirmed
+    private          boolean                 accuracyBased;  // Indicates if the accuracy of a location will be added to the hysteresis distance
+    private          EventMode               eventMode;      // Defines which events will be fired
+    private          long                    heartbeatTime;  // Milliseconds between INSIDE events of an object in HEARTBEAT mode
+    private          List<GeoFenceObserver>  observers;      // List of observers
+    private volatile GeoFenceListener[]      listeners;      // Replaced on every change, so firing an event does not need an iterator
+    private          Consumer<GeoFenceEvent> enteredFenceConsumer;
+    private          Consumer<GeoFenceEvent> insideFenceConsumer;
+    private          Consumer<GeoFenceEvent> leftFenceConsumer;
+    private          Consumer<GeoFenceEvent> outsideFenceConsumer;
+    private volatile GeoFenceEventDispatcher dispatcher;
 
 
     // ******************** Constructors **************************************
@@ -68,15 +95,29 @@ public class GeoFence {
     public GeoFence(final String name, final String category) {
         init(name, category, new ArrayList<>(), "");
     }
+    /**
+     * Creates a circular fence, the containment test is an exact distance
+     * comparison. The points of the fence approximate the circle with a
+     * polygon that can be used for display.
+     * @param name      The name of the fence
+     * @param category  The category of the fence
+     * @param latitude  The latitude of the center
+     * @param longitude The longitude of the center
+     * @param radius    The radius in meters
+     */
     public GeoFence(final String name, final String category, final double latitude, final double longitude, final double radius) {
-        final List<Point> points = new ArrayList<>();
+        final CircleGeometry circle  = new CircleGeometry(latitude, longitude, radius);
+        final double         radiusX = (circle.getMaxX() - circle.getMinX()) * 0.5;
+        final double         radiusY = (circle.getMaxY() - circle.getMinY()) * 0.5;
+        final List<Point>    points  = new ArrayList<>();
         for (int i = 0 ; i < 64 ; i++) {
-            double theta = Math.PI * (i / (64 / 2));
-            double x = longitude + (radius * Math.cos(theta));
-            double y = latitude + (radius * Math.sin(theta));
+            double theta = Math.PI * 2 * i / 64;
+            double x = latitude + (radiusX * Math.sin(theta));
+            double y = longitude + (radiusY * Math.cos(theta));
             points.add(new Point(x, y));
         }
         init(name, category, points, "");
+        version = new FenceVersion(0, points, points, circle);
     }
     public GeoFence(final String name, final String category, final String xyList) {
         final String[]     data   = xyList.split(",");
@@ -102,17 +143,31 @@ public class GeoFence {
     private void init(final String name, final String category, final List<Point> points, final String info) {
         this.name      = name;
         this.category  = category;
-        this.points    = new ArrayList<>(points);
         this.info      = info;
-        objectsInFence = new HashMap<>(8);
+        gridThreshold  = PolygonGeometry.DEFAULT_GRID_THRESHOLD;
+        simplification = Simplifier.Method.NONE;
+        tolerance      = 0;
+        version        = compile(0, points);
+        objectsInFence = new ConcurrentHashMap<>(8);
+        pendingObjects = new ConcurrentHashMap<>(8);
+        heartbeats     = new ConcurrentHashMap<>(8);
+        members        = new Members();
+        dwellTime      = 0;
+        hysteresis     = 0;
+        accuracyBased  = false;
+        eventMode      = EventMode.ALL;
+        heartbeatTime  = 60_000;
         active         = true;
         timeBased      = false;
         startTime      = LocalTime.MIN;
         endTime        = LocalTime.MAX;
         zoneId         = ZoneId.systemDefault();
+        clock          = Clock.systemUTC();
+        window         = null;
         tags           = new HashSet<>(2);
         days           = new HashSet<>(7);
         observers      = new CopyOnWriteArrayList<>();
+        listeners      = new GeoFenceListener[0];
     }
 
 
@@ -123,10 +178,75 @@ public class GeoFence {
     public String getCategory() { return category; }
     public void setCategory(final String category) { this.category = category; }
 
-    public List<Point> getPoints()  { return points; }
-    public void setPoints(final List<Point> points) {
-        this.points.clear();
-        this.points.addAll(points);
+    /**
+     * Returns the points of the current version of the fence, the list cannot be modified.
+     * @return The points of the fence
+     */
+    public List<Point> getPoints()  { return version.getPoints(); }
+    /**
+     * Publishes a new version of the fence with the given points. Concurrent
+     * containment tests either see the old or the new version but never a
+     * mix of both, the objects in the fence are kept.
+     * @param points The new points of the fence
+     */
+    public synchronized void setPoints(final List<Point> points) { publish(compile(version.getNumber() + 1, points)); }
+
+    /**
+     * Returns the points of the polygon that is used for the containment test,
+     * these are the points of the fence if no simplification is set.
+     * @return The points of the simplified polygon
+     */
+    public List<Point> getSimplifiedPoints() { return version.getSimplifiedPoints(); }
+
+    public FenceGeometry getGeometry() { return version.getGeometry(); }
+
+    public FenceVersion getVersion() { return version; }
+
+    // Number of versions that have been published by all fences since startup
+    static long getNoOfChanges() { return NO_OF_CHANGES.get(); }
+
+    public boolean isCircular() { return version.getGeometry() instanceof CircleGeometry; }
+
+    /**
+     * Returns the geohash cells that cover this fence at the given precision,
+     * tagged as interior or boundary cells.
+     * @param precision The geohash precision of the cells
+     * @return The cells that cover this fence
+     */
+    public CellCover getCellCover(final int precision) { return CellCover.of(version.getGeometry(), precision); }
+
+    public int getGridThreshold() { return gridThreshold; }
+    /**
+     * Polygons with at least the given number of points get a grid that is
+     * built on first use and speeds up the containment test for complex fences.
+     * @param gridThreshold The number of points from which on the grid will be used
+     */
+    public synchronized void setGridThreshold(final int gridThreshold) {
+        this.gridThreshold = gridThreshold;
+        if (!isCircular()) { publish(compile(version.getNumber() + 1, version.getPoints())); }
+    }
+
+    public Simplifier.Method getSimplification() { return simplification; }
+    public double getSimplificationTolerance() { return tolerance; }
+    /**
+     * Simplifies the polygon that is used for the containment test, the points
+     * of the fence stay unchanged for display. The simplified polygon never
+     * intersects itself, if the tolerance would lead to that it will be reduced.
+     * With DOUGLAS_PEUCKER the tolerance is the maximum deviation from the
+     * original polygon. VISVALINGAM removes points whose triangle with their
+     * neighbours has an area below tolerance * tolerance, so the deviation is
+     * not bounded, e.g. a spike of 100 m on a base of 1 cm has an area below
+     * 1 square meter and is removed with a tolerance of 1 m.
+     * Has no effect on circular fences.
+     * @param method           The simplification method
+     * @param toleranceInMeter The tolerance in meters, see the method for its meaning
+     */
+    public synchronized void setSimplification(final Simplifier.Method method, final double toleranceInMeter) {
+        if (null == method) { throw new IllegalArgumentException("Method must not be null"); }
+        if (toleranceInMeter < 0) { throw new IllegalArgumentException("Tolerance must not be negative"); }
+        simplification = method;
+        tolerance      = toleranceInMeter;
+        if (!isCircular()) { publish(compile(version.getNumber() + 1, version.getPoints())); }
     }
 
     public String getInfo() { return info; }
@@ -134,17 +254,35 @@ public class GeoFence {
 
     public List<Location> getObjectsInFence() { return new ArrayList<>(objectsInFence.values()); }
 
+    // Live view for checkpoints, weakly consistent while objects are evaluated
+    Collection<Location> getLocationsInFence() { return objectsInFence.values(); }
+
+    // Restores an object from a checkpoint without firing an event
+    void restoreObject(final Location location) {
+        objectsInFence.put(location.getName(), location);
+        pendingObjects.remove(location.getName());
+    }
+
     public boolean isActive() { return active; }
     public void setActive(final boolean active) { this.active = active; }
 
     public boolean isTimeBased() { return timeBased; }
-    public void setTimeBased(final boolean timeBased) { this.timeBased = timeBased; }
+    public void setTimeBased(final boolean timeBased) {
+        this.timeBased = timeBased;
+        window         = null;
+    }
 
     public LocalTime getStartTime() { return startTime; }
-    public void setStartTime(final LocalTime START_TIME) { startTime = clamp(LocalTime.MIN, endTime, START_TIME); }
+    public void setStartTime(final LocalTime START_TIME) {
+        startTime = clamp(LocalTime.MIN, endTime, START_TIME);
+        window    = null;
+    }
 
     public LocalTime getEndTime() { return endTime; }
-    public void setEndTime(final LocalTime endTime) { this.endTime = clamp(startTime, LocalTime.MAX, endTime); }
+    public void setEndTime(final LocalTime endTime) {
+        this.endTime = clamp(startTime, LocalTime.MAX, endTime);
+        window       = null;
+    }
 
     public Set<String> getTags() { return tags; }
     public void setTags(final String... tags) { setTags(Arrays.asList(tags)); }
@@ -154,47 +292,247 @@ public class GeoFence {
     public void removeTag(final String tag) { if (tags.contains(tag)) tags.remove(tag); }
     public void clearTags() { tags.clear(); }
 
-    public Set<DayOfWeek> getDays() { return days; }
+    public Set<DayOfWeek> getDays() { return Collections.unmodifiableSet(days); }
     public void setDays(final DayOfWeek... days) { setDays(Arrays.asList(days)); }
-    public void setDays(final List<DayOfWeek> days) { days.forEach(day -> this.days.add(day)); }
-    public void setDays(final Set<DayOfWeek> days) { days.forEach(day -> this.days.add(day)); }
-    public void addDay(final DayOfWeek day) { days.add(day); }
-    public void removeDay(final DayOfWeek day) { if (days.contains(day)) days.remove(day); }
-    public void clearDays() { days.clear(); }
+    public void setDays(final List<DayOfWeek> days) { days.forEach(day -> this.days.add(day)); window = null; }
+    public void setDays(final Set<DayOfWeek> days) { days.forEach(day -> this.days.add(day)); window = null; }
+    public void addDay(final DayOfWeek day) { days.add(day); window = null; }
+    public void removeDay(final DayOfWeek day) { if (days.contains(day)) days.remove(day); window = null; }
+    public void clearDays() { days.clear(); window = null; }
 
     public ZoneId getZoneId() { return zoneId; }
-    public void setZoneId(final ZoneId zoneId) { this.zoneId = zoneId; }
+    public void setZoneId(final ZoneId zoneId) {
+        this.zoneId = zoneId;
+        window      = null;
+    }
 
+    public Clock getClock() { return clock; }
+    /**
+     * Defines the clock that will be used to decide if a time based fence is active.
+     * Replay and simulation can provide a clock that runs on event time.
+     * @param clock The clock to use, the default is the system clock
+     */
+    public void setClock(final Clock clock) {
+        this.clock = clock;
+        window     = null;
+    }
+
+    public Duration getDwellTime() { return Duration.ofMillis(dwellTime); }
+    /**
+     * An object has to stay on the other side of the fence for the given time
+     * before ENTERED or LEFT will be fired. Until then it keeps its old state.
+     * @param dwellTime The time the object has to stay inside or outside, Duration.ZERO to confirm immediately
+     */
+    public void setDwellTime(final Duration dwellTime) { this.dwellTime = Math.max(0, dwellTime.toMillis()); }
+
+    public double getHysteresis() { return hysteresis; }
+    /**
+     * An object has to be at least the given distance away from the border of the
+     * fence before ENTERED or LEFT will be fired, this avoids flapping caused by
+     * GPS jitter at the border.
+     * @param meters The distance in meters
+     */
+    public void setHysteresis(final double meters) { hysteresis = Math.max(0, meters); }
+
+    public boolean isAccuracyBasedHysteresis() { return accuracyBased; }
+    /**
+     * If true the accuracy of the location will be added to the hysteresis distance.
+     * @param accuracyBased True if the accuracy of the location should be taken into account
+     */
+    public void setAccuracyBasedHysteresis(final boolean accuracyBased) { this.accuracyBased = accuracyBased; }
+
+    public EventMode getEventMode() { return eventMode; }
+    /**
+     * ALL         : ENTERED, INSIDE, LEFT and OUTSIDE events on every update (default)
+     * TRANSITIONS : Only ENTERED and LEFT events
+     * HEARTBEAT   : ENTERED and LEFT events plus an INSIDE event per object every heartbeat interval
+     * @param eventMode The events that should be fired
+     */
+    public void setEventMode(final EventMode eventMode) { this.eventMode = eventMode; }
+
+    public Duration getHeartbeatInterval() { return Duration.ofMillis(heartbeatTime); }
+    public void setHeartbeatInterval(final Duration heartbeatInterval) { heartbeatTime = Math.max(0, heartbeatInterval.toMillis()); }
+
+    /**
+     * Evaluates the given location and fires the events defined by the event mode.
+     * @param location The location to evaluate
+     * @return True if the object is inside the fence after the evaluation, pending transitions are not taken into account
+     */
     public boolean containsLocation(final Location location) {
+        if (!isTriggering()) { return false; }
+        final double latitude  = location.getLatitude();
+        final double longitude = location.getLongitude();
+        return updateObject(location, location.getName(), latitude, longitude, 0, version.getGeometry().contains(latitude, longitude));
+    }
+
+    /**
+     * Updates the membership of the given location with a containment result
+     * that has been computed outside of the fence, e.g. by an index, and fires
+     * the events defined by the event mode.
+     * @param location      The location to evaluate
+     * @param isInsideFence True if the location is inside the geometry of the fence
+     * @return True if the object is inside the fence after the evaluation
+     */
+    public boolean update(final Location location, final boolean isInsideFence) {
+        if (!isTriggering()) { return false; }
+        return updateObject(location, location.getName(), location.getLatitude(), location.getLongitude(), 0, isInsideFence);
+    }
+
+    /**
+     * Evaluates a columnar batch of positions against this fence. The containment
+     * test for all positions is done in one pass over the primitive arrays, after
+     * that the membership of every object is updated and the usual events are fired.
+     * A Location will only be created for an object that enters the fence or
+     * if an event has to be fired, objects that stay inside keep the location
+     * they entered with.
+     * Bit i of the given bitset will be set if object i is inside the fence
+     * after the evaluation, like the result of containsLocation().
+     * @param ids        The names of the objects, used like Location.getName()
+     * @param latitudes  The latitudes of the positions
+     * @param longitudes The longitudes of the positions
+     * @param result     The bitset that will contain the results, needs at least (ids.length + 63) / 64 elements
+     * @return The number of positions inside the fence
+     */
+    public int containsLocations(final String[] ids, final double[] latitudes, final double[] longitudes, final long[] result) {
+        final int noOfPositions = ids.length;
+        if (!isTriggering()) {
+            Helper.checkBatch(latitudes, longitudes, noOfPositions, result);
+            return 0;
+        }
+        final long now        = clock.millis();
+        int        noOfInside = version.getGeometry().contains(latitudes, longitudes, noOfPositions, result);
+        for (int i = 0 ; i < noOfPositions ; i++) {
+            final boolean isInsideFence = (result[i >>> 6] & (1L << i)) != 0;
+            if (updateObject(null, ids[i], latitudes[i], longitudes[i], now, isInsideFence) != isInsideFence) {
+                // Hysteresis or dwell time kept the object in its old state
+                result[i >>> 6] ^= 1L << i;
+                noOfInside      += isInsideFence ? -1 : 1;
+            }
+        }
+        return noOfInside;
+    }
+
+    // The counter is increased after the version is visible, so an index that has seen the counter also sees the version
+    private void publish(final FenceVersion version) {
+        this.version = version;
+        NO_OF_CHANGES.incrementAndGet();
+    }
+
+    private FenceVersion compile(final long number, final List<Point> points) {
+        final List<Point> simplified = Simplifier.Method.NONE == simplification ? points : Simplifier.simplify(points, simplification, tolerance);
+        return new FenceVersion(number, points, simplified, new PolygonGeometry(simplified, gridThreshold));
+    }
+
+    boolean isTriggering() {
         if (!active) return false;
 
         if (timeBased) {
-            LocalDateTime now = LocalDateTime.now(zoneId);
-            if (!(now.toLocalTime().isAfter(startTime) && now.toLocalTime().isBefore(endTime))) return false;
-            if (!days.isEmpty()) {
-                if (!days.contains(now.getDayOfWeek())) return false;
+            final long     now            = clock.millis();
+            ActivityWindow activityWindow = window;
+            if (null == activityWindow || now >= activityWindow.end || now < activityWindow.computedAt) {
+                activityWindow = ActivityWindow.next(now, startTime, endTime, days, zoneId);
+                window         = activityWindow;
             }
+            return now > activityWindow.start && now < activityWindow.end;
         }
+        return true;
+    }
 
-        final String  NAME            = location.getName();
-        final boolean IS_KNOWN        = objectsInFence.containsKey(NAME);
-        final boolean IS_INSIDE_FENCE = Helper.isInPolygon(location.getLatitude(), location.getLongitude(), points);
-        if (IS_KNOWN) {
-            if (IS_INSIDE_FENCE) {
-                fireFenceEvent(new GeoFenceEvent(GeoFence.this, location, INSIDE_FENCE));
+    /**
+     * Updates the membership of an object in the given membership, e.g. the
+     * state of a shard of a GeoFenceEngine, and fires the events defined by the
+     * event mode. Has no effect if the fence is not triggering.
+     * @param membership    The membership that contains the state of the object
+     * @param fenceId       The id of this fence in the membership
+     * @param location      The location of the object or null if it is only known by name and position
+     * @param name          The name of the object
+     * @param latitude      The latitude of the object
+     * @param longitude     The longitude of the object
+     * @param timestamp     The time of the position in epoch millis
+     * @param isInsideFence True if the position is inside the geometry of the fence
+     * @return True if the object is inside the fence after the evaluation
+     */
+    boolean update(final Membership membership, final int fenceId, final Location location, final String name, final double latitude, final double longitude, final long timestamp, final boolean isInsideFence) {
+        if (!isTriggering()) { return false; }
+        return updateObject(membership, fenceId, location, name, latitude, longitude, timestamp, isInsideFence);
+    }
+
+    // Removes an object from the given membership and fires LEFT if it has been inside, e.g. if an engine does not evaluate the fence anymore
+    void removeObject(final Membership membership, final int fenceId, final Location location, final String name, final double latitude, final double longitude, final long timestamp) {
+        membership.stopPending(fenceId, name);
+        if (membership.leave(fenceId, name)) {
+            membership.stopHeartbeat(fenceId, name);
+            fireFenceEvent(membership, location, name, latitude, longitude, timestamp, LEFT_FENCE);
+        }
+    }
+
+    private boolean updateObject(final Location location, final String name, final double latitude, final double longitude, final long timestamp, final boolean isInsideFence) {
+        return updateObject(members, 0, location, name, latitude, longitude, timestamp, isInsideFence);
+    }
+    /*
+     * The membership of the fence itself is decided by the atomic put/remove on
+     * the concurrent map, so if several threads evaluate the same object at once
+     * exactly one of them will see the transition and fire ENTERED respectively LEFT.
+     * The order of events of one object is only guaranteed if its updates are
+     * evaluated by one thread at a time.
+     * Hysteresis and dwell time keep the object in its old state until the
+     * transition is confirmed.
+     * If no location is given the object is only known by name and position, a
+     * Location will then only be created with the given timestamp (epoch millis)
+     * if the object enters the fence or somebody listens for the event.
+     */
+    private boolean updateObject(final Membership membership, final int fenceId, final Location location, final String name, final double latitude, final double longitude, final long timestamp, final boolean isInsideFence) {
+        boolean inside = isInsideFence;
+        if (hysteresis > 0 || accuracyBased || dwellTime > 0) {
+            final boolean IS_KNOWN = membership.isInside(fenceId, name);
+            if (inside != IS_KNOWN) {
+                final double accuracy = null == location ? Location.DEFAULT_ACCURACY : location.getAccuracy();
+                final double margin   = hysteresis + (accuracyBased ? accuracy : 0);
+                if (margin > 0 && version.getGeometry().distanceToBoundaryInMeter(latitude, longitude) < margin) {
+                    inside = IS_KNOWN;
+                }
+            }
+            if (inside != IS_KNOWN && dwellTime > 0) {
+                final long now = clock.millis();
+                if (now - membership.startPending(fenceId, name, now) < dwellTime) { inside = IS_KNOWN; }
             } else {
-                fireFenceEvent(new GeoFenceEvent(GeoFence.this, location, LEFT_FENCE));
-                objectsInFence.remove(NAME);
+                membership.stopPending(fenceId, name);
             }
-        } else {
-            if (IS_INSIDE_FENCE) {
-                fireFenceEvent(new GeoFenceEvent(GeoFence.this, location,  ENTERED_FENCE));
-                objectsInFence.put(NAME, location);
+        }
+
+        if (inside) {
+            final boolean entered;
+            if (null == location && membership.isInside(fenceId, name)) {
+                entered = false;
             } else {
-                fireFenceEvent(new GeoFenceEvent(GeoFence.this, location,  OUTSIDE_FENCE));
+                final Location current = null == location ? membership.getLocation(name, latitude, longitude, timestamp) : location;
+                entered = membership.enter(fenceId, current);
+                if (entered) {
+                    membership.stopPending(fenceId, name);
+                    if (EventMode.HEARTBEAT == eventMode) { membership.startHeartbeat(fenceId, name, clock.millis()); }
+                    fireFenceEvent(current, ENTERED_FENCE);
+                }
+            }
+            if (!entered) {
+                switch (eventMode) {
+                    case ALL      : fireFenceEvent(membership, location, name, latitude, longitude, timestamp, INSIDE_FENCE); break;
+                    case HEARTBEAT:
+                        if (membership.isHeartbeatDue(fenceId, name, clock.millis(), heartbeatTime)) {
+                            fireFenceEvent(membership, location, name, latitude, longitude, timestamp, INSIDE_FENCE);
+                        }
+                        break;
+                }
+            }
+        } else {
+            if (membership.leave(fenceId, name)) {
+                membership.stopPending(fenceId, name);
+                membership.stopHeartbeat(fenceId, name);
+                fireFenceEvent(membership, location, name, latitude, longitude, timestamp, LEFT_FENCE);
+            } else if (EventMode.ALL == eventMode) {
+                fireFenceEvent(membership, location, name, latitude, longitude, timestamp, OUTSIDE_FENCE);
             }
         }
-        return IS_INSIDE_FENCE;
+        return inside;
     }
 
     private LocalTime clamp(final LocalTime MIN, final LocalTime MAX, final LocalTime TIME) {
@@ -209,6 +547,23 @@ public class GeoFence {
     public void removeGeoFenceObserver(final GeoFenceObserver observer) { if (observers.contains(observer)) { observers.remove(observer); }}
     public void removeAllObservers() { observers.clear(); }
 
+    /**
+     * Adds a listener that is called with fence, location and type of every
+     * event without creating a GeoFenceEvent. Listeners are always called on
+     * the thread that evaluates the location, also if a dispatcher is set.
+     * @param listener The listener to add
+     */
+    public synchronized void addGeoFenceListener(final GeoFenceListener listener) {
+        for (GeoFenceListener l : listeners) { if (l == listener) { return; } }
+        final GeoFenceListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[listeners.length] = listener;
+        listeners = newListeners;
+    }
+    public synchronized void removeGeoFenceListener(final GeoFenceListener listener) {
+        final List<GeoFenceListener> newListeners = new ArrayList<>(Arrays.asList(listeners));
+        if (newListeners.remove(listener)) { listeners = newListeners.toArray(new GeoFenceListener[0]); }
+    }
+
     public Consumer<GeoFenceEvent> getOnEnteredFence() { return enteredFenceConsumer; }
     public void setOnEnteredFence(final Consumer<GeoFenceEvent> consumer) { enteredFenceConsumer = consumer; }
 
@@ -221,9 +576,52 @@ public class GeoFence {
     public Consumer<GeoFenceEvent> getOnOutsideFence() { return outsideFenceConsumer; }
     public void setOnOutsideFence(final Consumer<GeoFenceEvent> consumer) { outsideFenceConsumer = consumer; }
 
+    public GeoFenceEventDispatcher getDispatcher() { return dispatcher; }
+    /**
+     * If a dispatcher is set, events will be delivered asynchronously by the
+     * dispatcher thread instead of the thread that evaluates the location.
+     * @param dispatcher The dispatcher to use or null for synchronous delivery
+     */
+    public void setDispatcher(final GeoFenceEventDispatcher dispatcher) { this.dispatcher = dispatcher; }
+
+    // The GeoFenceEvent will only be created if an observer or a consumer for the type is registered
+    private void fireFenceEvent(final Location location, final GeoFenceEventType type) {
+        for (GeoFenceListener listener : listeners) { listener.onGeoFenceEvent(GeoFence.this, location, type); }
+        if (observers.isEmpty() && null == getConsumer(type)) { return; }
+        fireFenceEvent(new GeoFenceEvent(GeoFence.this, location, type));
+    }
+    // The location of an object that is only known by name and position will only be created if somebody listens
+    private void fireFenceEvent(final Membership membership, final Location location, final String name, final double latitude, final double longitude, final long timestamp, final GeoFenceEventType type) {
+        if (null != location) {
+            fireFenceEvent(location, type);
+        } else if (0 != listeners.length || !observers.isEmpty() || null != getConsumer(type)) {
+            fireFenceEvent(membership.getLocation(name, latitude, longitude, timestamp), type);
+        }
+    }
+
     public void fireFenceEvent(final GeoFenceEvent evt) {
-        for (GeoFenceObserver observer : observers) { observer.onGeoFenceEvent(evt); }
+        final GeoFenceEventDispatcher dispatcher = this.dispatcher;
+        if (null != dispatcher && dispatcher.publish(GeoFence.this, evt)) { return; }
 
+        if (!observers.isEmpty()) {
+            for (GeoFenceObserver observer : observers) { observer.onGeoFenceEvent(evt); }
+        }
+        notifyConsumers(evt);
+    }
+
+    private Consumer<GeoFenceEvent> getConsumer(final GeoFenceEventType type) {
+        switch (type) {
+            case ENTERED_FENCE: return enteredFenceConsumer;
+            case INSIDE_FENCE : return insideFenceConsumer;
+            case LEFT_FENCE   : return leftFenceConsumer;
+            case OUTSIDE_FENCE: return outsideFenceConsumer;
+            default           : return null;
+        }
+    }
+
+    List<GeoFenceObserver> getObservers() { return observers; }
+
+    void notifyConsumers(final GeoFenceEvent evt) {
         final GeoFenceEventType type = evt.getType();
         switch (type) {
             case ENTERED_FENCE: if (null == enteredFenceConsumer) { break; } else { enteredFenceConsumer.accept(evt); break; }
@@ -232,4 +630,73 @@ public class GeoFence {
             case OUTSIDE_FENCE: if (null == outsideFenceConsumer) { break; } else { outsideFenceConsumer.accept(evt); break; }
         }
     }
+
+
+    // ******************** Inner Classes *************************************
+    // Membership of the fence itself, keyed by the name of the objects
+    private class Members implements Membership {
+
+        @Override public boolean isInside(final int fenceId, final String name) { return objectsInFence.containsKey(name); }
+
+        @Override public boolean enter(final int fenceId, final Location location) { return null == objectsInFence.put(location.getName(), location); }
+
+        @Override public boolean leave(final int fenceId, final String name) { return null != objectsInFence.remove(name); }
+
+        @Override public long startPending(final int fenceId, final String name, final long now) {
+            final Long since = pendingObjects.putIfAbsent(name, now);
+            return null == since ? now : since;
+        }
+
+        @Override public void stopPending(final int fenceId, final String name) { if (!pendingObjects.isEmpty()) { pendingObjects.remove(name); } }
+
+        @Override public void startHeartbeat(final int fenceId, final String name, final long now) { heartbeats.put(name, now); }
+
+        @Override public boolean isHeartbeatDue(final int fenceId, final String name, final long now, final long interval) {
+            final Long last = heartbeats.get(name);
+            if (null == last) { return null == heartbeats.putIfAbsent(name, now); }
+            return now - last >= interval && heartbeats.replace(name, last, now);
+        }
+
+        @Override public void stopHeartbeat(final int fenceId, final String name) { heartbeats.remove(name); }
+
+        @Override public Location getLocation(final String name, final double latitude, final double longitude, final long timestamp) {
+            return new Location(latitude, longitude, 0, Instant.ofEpochMilli(timestamp), name);
+        }
+    }
+
+    /**
+     * The time span of one day in which a time based fence is active, in epoch
+     * millis. Like before the start and the end of the window are exclusive.
+     * The window only has to be recalculated once the clock passed its end or
+     * if the clock has been set back before the time it was calculated at, e.g.
+     * by a replay that starts again.
+     */
+    private static class ActivityWindow {
+        private static final int  DAYS_TO_SEARCH = 8;
+        private final        long start;
+        private final        long end;
+        private final        long computedAt;
+
+
+        // ******************** Constructors **********************************
+        ActivityWindow(final long start, final long end, final long computedAt) {
+            this.start      = start;
+            this.end        = end;
+            this.computedAt = computedAt;
+        }
+
+
+        // ******************** Methods ***************************************
+        static ActivityWindow next(final long now, final LocalTime startTime, final LocalTime endTime, final Set<DayOfWeek> days, final ZoneId zoneId) {
+            LocalDate date = ZonedDateTime.ofInstant(Instant.ofEpochMilli(now), zoneId).toLocalDate().minusDays(1);
+            for (int i = 0 ; i < DAYS_TO_SEARCH ; i++, date = date.plusDays(1)) {
+                if (!days.isEmpty() && !days.contains(date.getDayOfWeek())) { continue; }
+                final long end = ZonedDateTime.of(date, endTime, zoneId).toInstant().toEpochMilli();
+                if (end <= now) { continue; }
+                return new ActivityWindow(ZonedDateTime.of(date, startTime, zoneId).toInstant().toEpochMilli(), end, now);
+            }
+            // No active day in the next week, check again in a week
+            return new ActivityWindow(Long.MAX_VALUE, now + 7 * 86_400_000L, now);
+        }
+    }
 }
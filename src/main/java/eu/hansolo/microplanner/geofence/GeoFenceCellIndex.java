@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.location.Location;
+import eu.hansolo.microplanner.tools.GeoHash;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Maps geohash cells of a fixed precision to the fences that cover them.
+ * A position in an interior cell is inside all interior fences of the cell
+ * without any further test, only the boundary fences of the cell need the
+ * exact containment test. Positions in cells without entry are outside
+ * of all fences.
+ * The cells are kept in an open addressing table with primitive long keys,
+ * so a lookup neither boxes nor allocates.
+ */
+public class GeoFenceCellIndex {
+    public  static final int                         DEFAULT_PRECISION = 8;
+    private static final List<GeoFence>              NO_FENCES         = new ArrayList<>(0);
+    private        final int                         precision;
+    private              List<GeoFence>              fences;
+    private volatile     Table                       table;
+    private volatile     Map<String, List<GeoFence>> fencesOfObject;   // Fences an object has been inside after the last evaluation
+    private              FenceVersion[]              versions;         // Versions of the fences the table has been built from
+    private volatile     long                        noOfChanges;      // GeoFence.getNoOfChanges() at the last build
+
+
+    // ******************** Constructors **************************************
+    public GeoFenceCellIndex() {
+        this(DEFAULT_PRECISION);
+    }
+    public GeoFenceCellIndex(final int precision) {
+        if (precision < GeoHash.MIN_PRECISION || precision > GeoHash.MAX_PRECISION) { throw new IllegalArgumentException("Precision must be between " + GeoHash.MIN_PRECISION + " and " + GeoHash.MAX_PRECISION); }
+        this.precision      = precision;
+        this.fences         = new ArrayList<>();
+        this.table          = new Table(new HashMap<>());
+        this.fencesOfObject = new ConcurrentHashMap<>();
+        this.versions       = new FenceVersion[0];
+    }
+    public GeoFenceCellIndex(final int precision, final Collection<GeoFence> fences) {
+        this(precision);
+        setFences(fences);
+    }
+
+
+    // ******************** Methods *******************************************
+    public int getPrecision() { return precision; }
+
+    public List<GeoFence> getFences() { return new ArrayList<>(fences); }
+    public synchronized void setFences(final Collection<GeoFence> fences) {
+        this.fences = new ArrayList<>(fences);
+        rebuild();
+    }
+
+    public int getNoOfCells() { return getTable().size; }
+
+    /**
+     * Computes the cell covers of all fences and rebuilds the cell table.
+     * The table is rebuilt automatically on the next query after the points of
+     * one of its fences have been changed, calling it directly avoids that the
+     * query has to wait for it.
+     * The objects that are inside of the fences, e.g. after a restore from a
+     * GeoFenceCheckpoint, are evaluated against them until they leave.
+     */
+    public synchronized void rebuild() {
+        final long            changes     = GeoFence.getNoOfChanges();
+        final FenceVersion[]  newVersions = new FenceVersion[fences.size()];
+        final Map<Long, Cell> cells       = new HashMap<>();
+        for (int i = 0 ; i < newVersions.length ; i++) {
+            final GeoFence fence = fences.get(i);
+            newVersions[i] = fence.getVersion();
+            final CellCover cover = CellCover.of(newVersions[i].getGeometry(), precision);
+            for (long cellId : cover.getInteriorCells()) { cells.computeIfAbsent(cellId, id -> new Cell()).interior.add(fence); }
+            for (long cellId : cover.getBoundaryCells()) { cells.computeIfAbsent(cellId, id -> new Cell()).boundary.add(fence); }
+        }
+        table          = new Table(cells);
+        fencesOfObject = getFencesOfObjects(fences);
+        versions       = newVersions;
+        noOfChanges    = changes;
+    }
+
+    public long getCellId(final double latitude, final double longitude) { return GeoHash.encode(latitude, longitude, precision); }
+
+    /**
+     * Returns the shard that is responsible for the given position.
+     * @param latitude   The latitude of the position
+     * @param longitude  The longitude of the position
+     * @param noOfShards The number of shards
+     * @return The shard of the cell that contains the given position
+     */
+    public int getShard(final double latitude, final double longitude, final int noOfShards) { return GeoHash.getShard(getCellId(latitude, longitude), noOfShards); }
+
+    /**
+     * Returns all fences that cover at least one cell of the given shard, a node
+     * that evaluates only the positions of one shard only needs these fences.
+     * @param shard      The shard
+     * @param noOfShards The number of shards
+     * @return All fences that are relevant for the given shard
+     */
+    public List<GeoFence> getFencesOfShard(final int shard, final int noOfShards) {
+        final Table         t      = getTable();
+        final Set<GeoFence> result = new LinkedHashSet<>();
+        for (int i = 0 ; i < t.keys.length ; i++) {
+            if (null == t.cells[i] || GeoHash.getShard(t.keys[i], noOfShards) != shard) { continue; }
+            for (GeoFence fence : t.cells[i].interiorFences) { result.add(fence); }
+            for (GeoFence fence : t.cells[i].boundaryFences) { result.add(fence); }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Returns all fences whose geometry contains the given position.
+     * @param latitude  The latitude of the position
+     * @param longitude The longitude of the position
+     * @return All fences that contain the given position
+     */
+    public List<GeoFence> getFencesContaining(final double latitude, final double longitude) {
+        final Cell           cell   = getTable().get(getCellId(latitude, longitude));
+        final List<GeoFence> result = new ArrayList<>();
+        if (null == cell) { return result; }
+        for (GeoFence fence : cell.interiorFences) { result.add(fence); }
+        for (GeoFence fence : cell.boundaryFences) {
+            if (fence.getGeometry().contains(latitude, longitude)) { result.add(fence); }
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates the given location against the fences of its cell and fires the
+     * events defined by their event mode. Fences the object has been inside before
+     * but that do not cover the cell of the location will be updated as well so
+     * they can fire their LEFT event.
+     * @param location The location to evaluate
+     * @return All fences that contain the given location
+     */
+    public List<GeoFence> evaluate(final Location location) {
+        final String         name   = location.getName();
+        final Cell           cell   = getTable().get(getCellId(location.getLatitude(), location.getLongitude()));
+        final List<GeoFence> inside = new ArrayList<>();
+        if (null != cell) {
+            for (GeoFence fence : cell.interiorFences) {
+                if (fence.update(location, true)) { inside.add(fence); }
+            }
+            for (GeoFence fence : cell.boundaryFences) {
+                if (fence.containsLocation(location)) { inside.add(fence); }
+            }
+        }
+        for (GeoFence fence : fencesOfObject.getOrDefault(name, NO_FENCES)) {
+            if (null != cell && cell.covers(fence)) { continue; }
+            // Hysteresis and dwell time can keep the object inside of a fence that does not cover its cell
+            if (fence.update(location, false)) { inside.add(fence); }
+        }
+        if (inside.isEmpty()) {
+            fencesOfObject.remove(name);
+        } else {
+            fencesOfObject.put(name, inside);
+        }
+        return inside;
+    }
+
+    public synchronized void clear() {
+        fences.clear();
+        fencesOfObject.clear();
+        versions = new FenceVersion[0];
+        table    = new Table(new HashMap<>());
+    }
+
+    private Table getTable() {
+        rebuildIfNeeded();
+        return table;
+    }
+
+    // Rebuilds the index if one of its fences has published a new version since the last build
+    private void rebuildIfNeeded() {
+        if (GeoFence.getNoOfChanges() == noOfChanges) { return; }
+        synchronized (this) {
+            final long changes = GeoFence.getNoOfChanges();
+            if (changes == noOfChanges) { return; }
+            for (int i = 0 ; i < versions.length ; i++) {
+                if (fences.get(i).getVersion() != versions[i]) {
+                    rebuild();
+                    return;
+                }
+            }
+            noOfChanges = changes;
+        }
+    }
+
+
+    private static Map<String, List<GeoFence>> getFencesOfObjects(final List<GeoFence> fences) {
+        final Map<String, List<GeoFence>> fencesOfObjects = new ConcurrentHashMap<>();
+        for (GeoFence fence : fences) {
+            for (Location location : fence.getLocationsInFence()) { fencesOfObjects.computeIfAbsent(location.getName(), name -> new ArrayList<>()).add(fence); }
+        }
+        return fencesOfObjects;
+    }
+
+
+    // ******************** Inner Classes *************************************
+    private static class Cell {
+        private final List<GeoFence> interior = new ArrayList<>();
+        private final List<GeoFence> boundary = new ArrayList<>();
+        private       GeoFence[]     interiorFences;
+        private       GeoFence[]     boundaryFences;
+
+        void pack() {
+            interiorFences = interior.toArray(new GeoFence[0]);
+            boundaryFences = boundary.toArray(new GeoFence[0]);
+            interior.clear();
+            boundary.clear();
+        }
+
+        boolean covers(final GeoFence fence) {
+            for (GeoFence f : interiorFences) { if (f == fence) { return true; } }
+            for (GeoFence f : boundaryFences) { if (f == fence) { return true; } }
+            return false;
+        }
+    }
+
+    private static class Table {
+        private final long[] keys;    // 0 marks an empty slot, cell ids are never 0 because they contain the precision
+        private final Cell[] cells;
+        private final int    mask;
+        private final int    size;
+
+
+        // ******************** Constructors **********************************
+        Table(final Map<Long, Cell> cellMap) {
+            int capacity = 16;
+            while (capacity < cellMap.size() * 2) { capacity <<= 1; }
+            keys  = new long[capacity];
+            cells = new Cell[capacity];
+            mask  = capacity - 1;
+            size  = cellMap.size();
+            for (Map.Entry<Long, Cell> entry : cellMap.entrySet()) {
+                final long key  = entry.getKey();
+                int        slot = hash(key) & mask;
+                while (0 != keys[slot]) { slot = (slot + 1) & mask; }
+                keys[slot]  = key;
+                cells[slot] = entry.getValue();
+                cells[slot].pack();
+            }
+        }
+
+
+        // ******************** Methods ***************************************
+        Cell get(final long key) {
+            int slot = hash(key) & mask;
+            while (0 != keys[slot]) {
+                if (keys[slot] == key) { return cells[slot]; }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        private static int hash(final long key) {
+            final long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+}
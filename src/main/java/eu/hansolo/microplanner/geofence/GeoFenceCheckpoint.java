@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.location.Location;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+
+/**
+ * Checkpoints of the objects that are inside of a set of GeoFences, so the
+ * membership survives a restart without firing ENTERED events for all objects.
+ * The file is a sequence of segments, the first one contains the full state
+ * and every following one only the objects that have been added, moved or
+ * removed since the segment before. After a number of deltas the next
+ * checkpoint writes the full state again.
+ * Segment (big endian): magic (int), type (byte), creation time (long),
+ * length of the payload (int), payload, CRC32 of the payload (long).
+ * Payload: per fence its name, the objects inside with name, last seen
+ * timestamp (epoch millis), latitude and longitude and the names of the
+ * objects that have been removed.
+ * A segment that is incomplete, e.g. after a crash while writing, and
+ * everything after it is ignored on restore.
+ * The fences are read while they are evaluated, so ingestion does not
+ * have to be paused.
+ * Fences are identified by their name, so the names of the checkpointed
+ * fences have to be unique.
+ */
+public class GeoFenceCheckpoint {
+    public  static final int                             MAGIC                    = 0x4D50434B; // MPCK
+    public  static final int                             DEFAULT_MAX_NO_OF_DELTAS = 100;
+    private static final byte                            FULL                     = 0;
+    private static final byte                            DELTA                    = 1;
+    private static final int                             SEGMENT_OVERHEAD         = 4 + 1 + 8 + 4 + 8;
+    private        final Path                            path;
+    private        final int                             maxNoOfDeltas;
+    private        final Map<String, Map<String, Entry>> written;                  // State that is stored in the file
+    private              int                             noOfDeltas;
+
+
+    // ******************** Constructors **************************************
+    public GeoFenceCheckpoint(final Path path) {
+        this(path, DEFAULT_MAX_NO_OF_DELTAS);
+    }
+    public GeoFenceCheckpoint(final Path path, final int maxNoOfDeltas) {
+        if (maxNoOfDeltas < 0) { throw new IllegalArgumentException("Max number of deltas must not be negative"); }
+        this.path          = path;
+        this.maxNoOfDeltas = maxNoOfDeltas;
+        this.written       = new HashMap<>();
+        this.noOfDeltas    = -1;
+    }
+
+
+    // ******************** Methods *******************************************
+    public Path getPath() { return path; }
+
+    public synchronized int getNoOfDeltas() { return Math.max(0, noOfDeltas); }
+
+    /**
+     * Writes the changes of the membership of the given fences since the last
+     * checkpoint. The full state will be written if there is no checkpoint
+     * yet, if the maximum number of deltas has been reached or if the last
+     * checkpoint failed.
+     * @param fences The fences
+     * @return The number of objects that have been written or removed
+     * @throws IOException If the checkpoint could not be written
+     */
+    public synchronized int checkpoint(final Collection<GeoFence> fences) throws IOException { return checkpoint(getObjectsInFences(fences)); }
+    /**
+     * Writes the changes of the membership that is kept by the given engine
+     * since the last checkpoint, like checkpoint() of the fences.
+     * @param engine The engine
+     * @return The number of objects that have been written or removed
+     * @throws IOException If the checkpoint could not be written
+     */
+    public synchronized int checkpoint(final GeoFenceEngine engine) throws IOException { return checkpoint(engine.getObjectsInFences()); }
+
+    private int checkpoint(final Map<GeoFence, Collection<Location>> objectsInFences) throws IOException {
+        checkNames(objectsInFences.keySet());
+        if (noOfDeltas < 0 || noOfDeltas >= maxNoOfDeltas || !Files.exists(path)) { return writeFull(objectsInFences); }
+
+        final Map<String, Map<String, Entry>> puts    = new HashMap<>();
+        final Map<String, Set<String>>        removes = new HashMap<>();
+        final Set<String>                     names   = new HashSet<>();
+        int                                   changes = 0;
+        for (Map.Entry<GeoFence, Collection<Location>> fence : objectsInFences.entrySet()) {
+            final String             fenceName = fence.getKey().getName();
+            final Map<String, Entry> known     = written.getOrDefault(fenceName, new HashMap<>());
+            final Set<String>        current   = new HashSet<>();
+            names.add(fenceName);
+            for (Location location : fence.getValue()) {
+                final Entry entry = new Entry(location);
+                current.add(location.getName());
+                if (!entry.equals(known.get(location.getName()))) {
+                    puts.computeIfAbsent(fenceName, name -> new HashMap<>()).put(location.getName(), entry);
+                    changes++;
+                }
+            }
+            for (String objectName : known.keySet()) {
+                if (current.contains(objectName)) { continue; }
+                removes.computeIfAbsent(fenceName, name -> new HashSet<>()).add(objectName);
+                changes++;
+            }
+        }
+        for (Map.Entry<String, Map<String, Entry>> fence : written.entrySet()) {
+            if (names.contains(fence.getKey()) || fence.getValue().isEmpty()) { continue; }
+            removes.computeIfAbsent(fence.getKey(), name -> new HashSet<>()).addAll(fence.getValue().keySet());
+            changes += fence.getValue().size();
+        }
+        if (0 == changes) { return 0; }
+
+        final byte[] segment = toSegment(DELTA, puts, removes);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            final long end = channel.size();
+            try {
+                final ByteBuffer buffer = ByteBuffer.wrap(segment);
+                while (buffer.hasRemaining()) { channel.write(buffer); }
+                channel.force(false);
+            } catch (IOException e) {
+                // Deltas appended behind a partial segment would be ignored on restore, the next checkpoint writes the full state
+                noOfDeltas = -1;
+                try {
+                    channel.truncate(end);
+                } catch (IOException ex) {
+                    e.addSuppressed(ex);
+                }
+                throw e;
+            }
+        }
+        apply(puts, removes);
+        noOfDeltas++;
+        return changes;
+    }
+
+    /**
+     * Writes the full membership of the given fences to a new checkpoint file.
+     * @param fences The fences
+     * @return The number of objects that have been written
+     * @throws IOException If the checkpoint could not be written
+     */
+    public synchronized int writeFull(final Collection<GeoFence> fences) throws IOException { return writeFull(getObjectsInFences(fences)); }
+    public synchronized int writeFull(final GeoFenceEngine engine) throws IOException { return writeFull(engine.getObjectsInFences()); }
+
+    private int writeFull(final Map<GeoFence, Collection<Location>> objectsInFences) throws IOException {
+        checkNames(objectsInFences.keySet());
+        final Map<String, Map<String, Entry>> puts  = new HashMap<>();
+        int                                   count = 0;
+        for (Map.Entry<GeoFence, Collection<Location>> fence : objectsInFences.entrySet()) {
+            final Map<String, Entry> objects = new HashMap<>();
+            for (Location location : fence.getValue()) { objects.put(location.getName(), new Entry(location)); }
+            puts.put(fence.getKey().getName(), objects);
+            count += objects.size();
+        }
+        final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(toSegment(FULL, puts, new HashMap<>()));
+            while (buffer.hasRemaining()) { channel.write(buffer); }
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        written.clear();
+        apply(puts, new HashMap<>());
+        noOfDeltas = 0;
+        return count;
+    }
+
+    /**
+     * Restores the objects of the given fences from the checkpoint file without
+     * firing events, fences are matched by their name that has to be unique.
+     * Should be called before the first location is evaluated.
+     * A GeoFenceIndex, GeoFenceCellIndex or CompiledFenceSet takes over the
+     * restored objects when it is built or rebuilt, so it should be built or
+     * rebuilt after the restore. The objects of a GeoFenceEngine have to be
+     * restored with restore(GeoFenceEngine).
+     * @param fences The fences
+     * @return The number of objects that have been restored
+     * @throws IOException If the checkpoint could not be read
+     */
+    public synchronized int restore(final Collection<GeoFence> fences) throws IOException {
+        int count = 0;
+        for (Map.Entry<GeoFence, List<Location>> fence : read(fences).entrySet()) {
+            for (Location location : fence.getValue()) {
+                fence.getKey().restoreObject(location);
+                count++;
+            }
+        }
+        return count;
+    }
+    /**
+     * Restores the objects of the fences of the given engine into its shards
+     * without firing events, like restore() of the fences.
+     * @param engine The engine
+     * @return The number of objects that have been restored
+     * @throws IOException If the checkpoint could not be read
+     */
+    public synchronized int restore(final GeoFenceEngine engine) throws IOException { return engine.restoreObjects(read(engine.getFences())); }
+
+    private Map<GeoFence, List<Location>> read(final Collection<GeoFence> fences) throws IOException {
+        checkNames(fences);
+        written.clear();
+        noOfDeltas = -1;
+        final Map<GeoFence, List<Location>> objectsInFences = new LinkedHashMap<>();
+        if (!Files.exists(path)) { return objectsInFences; }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (buffer.remaining() >= SEGMENT_OVERHEAD) {
+            final int start = buffer.position();
+            if (buffer.getInt() != MAGIC) { break; }
+            final byte type   = buffer.get();
+            buffer.getLong();
+            final int  length = buffer.getInt();
+            if (length < 0 || buffer.remaining() < length + 8) { break; }
+            final CRC32 crc = new CRC32();
+            crc.update(buffer.array(), buffer.position(), length);
+            if (crc.getValue() != buffer.getLong(buffer.position() + length)) { break; }
+            if (FULL == type) {
+                written.clear();
+                noOfDeltas = 0;
+            } else if (noOfDeltas < 0) {
+                break; // Delta without full state
+            } else {
+                noOfDeltas++;
+            }
+            readPayload(buffer);
+            buffer.position(start + SEGMENT_OVERHEAD + length);
+        }
+        // Deltas appended behind an invalid segment could not be read, the next checkpoint writes the full state
+        if (buffer.hasRemaining()) { noOfDeltas = -1; }
+
+        for (GeoFence fence : fences) {
+            final Map<String, Entry> objects = written.get(fence.getName());
+            if (null == objects) { continue; }
+            final List<Location> locations = new ArrayList<>(objects.size());
+            for (Map.Entry<String, Entry> object : objects.entrySet()) {
+                final Entry entry = object.getValue();
+                locations.add(new Location(entry.latitude, entry.longitude, 0, Instant.ofEpochMilli(entry.timestamp), object.getKey()));
+            }
+            objectsInFences.put(fence, locations);
+        }
+        return objectsInFences;
+    }
+
+    // The objects of fences with the same name would be mixed up
+    private static void checkNames(final Collection<GeoFence> fences) {
+        final Set<String> names = new HashSet<>();
+        for (GeoFence fence : fences) {
+            if (!names.add(fence.getName())) { throw new IllegalArgumentException("Fence name " + fence.getName() + " is not unique"); }
+        }
+    }
+
+    private static Map<GeoFence, Collection<Location>> getObjectsInFences(final Collection<GeoFence> fences) {
+        final Map<GeoFence, Collection<Location>> objectsInFences = new LinkedHashMap<>();
+        for (GeoFence fence : fences) { objectsInFences.put(fence, fence.getLocationsInFence()); }
+        return objectsInFences;
+    }
+
+    private void apply(final Map<String, Map<String, Entry>> puts, final Map<String, Set<String>> removes) {
+        for (Map.Entry<String, Map<String, Entry>> fence : puts.entrySet()) {
+            written.computeIfAbsent(fence.getKey(), name -> new HashMap<>()).putAll(fence.getValue());
+        }
+        for (Map.Entry<String, Set<String>> fence : removes.entrySet()) {
+            final Map<String, Entry> objects = written.get(fence.getKey());
+            if (null == objects) { continue; }
+            objects.keySet().removeAll(fence.getValue());
+            if (objects.isEmpty()) { written.remove(fence.getKey()); }
+        }
+    }
+
+    private void readPayload(final ByteBuffer buffer) {
+        final int noOfFences = buffer.getInt();
+        for (int f = 0 ; f < noOfFences ; f++) {
+            final String             fenceName = readString(buffer);
+            final Map<String, Entry> objects   = written.computeIfAbsent(fenceName, name -> new HashMap<>());
+            final int                noOfPuts  = buffer.getInt();
+            for (int i = 0 ; i < noOfPuts ; i++) {
+                final String objectName = readString(buffer);
+                objects.put(objectName, new Entry(buffer.getLong(), buffer.getDouble(), buffer.getDouble()));
+            }
+            final int noOfRemoves = buffer.getInt();
+            for (int i = 0 ; i < noOfRemoves ; i++) { objects.remove(readString(buffer)); }
+            if (objects.isEmpty()) { written.remove(fenceName); }
+        }
+    }
+
+    private static byte[] toSegment(final byte type, final Map<String, Map<String, Entry>> puts, final Map<String, Set<String>> removes) throws IOException {
+        final Set<String> fenceNames = new HashSet<>(puts.keySet());
+        fenceNames.addAll(removes.keySet());
+
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream      out     = new DataOutputStream(payload);
+        out.writeInt(fenceNames.size());
+        for (String fenceName : fenceNames) {
+            final Map<String, Entry> objects = puts.getOrDefault(fenceName, new HashMap<>());
+            final Set<String>        removed = removes.getOrDefault(fenceName, new HashSet<>());
+            writeString(out, fenceName);
+            out.writeInt(objects.size());
+            for (Map.Entry<String, Entry> object : objects.entrySet()) {
+                writeString(out, object.getKey());
+                out.writeLong(object.getValue().timestamp);
+                out.writeDouble(object.getValue().latitude);
+                out.writeDouble(object.getValue().longitude);
+            }
+            out.writeInt(removed.size());
+            for (String objectName : removed) { writeString(out, objectName); }
+        }
+        out.flush();
+
+        final byte[] bytes = payload.toByteArray();
+        final CRC32  crc   = new CRC32();
+        crc.update(bytes);
+        final ByteBuffer segment = ByteBuffer.allocate(SEGMENT_OVERHEAD + bytes.length);
+        segment.putInt(MAGIC).put(type).putLong(System.currentTimeMillis()).putInt(bytes.length).put(bytes).putLong(crc.getValue());
+        return segment.array();
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(final DataOutputStream out, final String text) throws IOException {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+
+    // ******************** Inner Classes *************************************
+    private static final class Entry {
+        private final long   timestamp;   // Last seen in epoch millis
+        private final double latitude;
+        private final double longitude;
+
+
+        // ******************** Constructors **********************************
+        Entry(final Location location) {
+            this(null == location.getTimestamp() ? 0 : location.getTimestamp().toEpochMilli(), location.getLatitude(), location.getLongitude());
+        }
+        Entry(final long timestamp, final double latitude, final double longitude) {
+            this.timestamp = timestamp;
+            this.latitude  = latitude;
+            this.longitude = longitude;
+        }
+
+
+        // ******************** Methods ***************************************
+        @Override public boolean equals(final Object o) {
+            if (this == o) { return true; }
+            if (!(o instanceof Entry)) { return false; }
+            final Entry entry = (Entry) o;
+            return timestamp == entry.timestamp && Double.compare(latitude, entry.latitude) == 0 && Double.compare(longitude, entry.longitude) == 0;
+        }
+
+        @Override public int hashCode() {
+            int result = Long.hashCode(timestamp);
+            result = 31 * result + Double.hashCode(latitude);
+            result = 31 * result + Double.hashCode(longitude);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,725 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.location.FixBatch;
+import eu.hansolo.microplanner.location.Location;
+import eu.hansolo.microplanner.tools.Helper;
+import eu.hansolo.microplanner.tools.Point;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Evaluates locations against a CompiledFenceSet on several cores.
+ * The tracked objects are partitioned into shards by the hash of the UTF-8
+ * bytes of Location.getName(), every shard is owned by one worker thread
+ * that keeps the membership of its objects for all fences and fires the
+ * events of the fences from that state. Because all updates of an object run on the same
+ * thread they are processed in order and the shard state needs no locking.
+ * The membership of the objects that are evaluated by the engine is only kept
+ * in the shards, it is returned by getObjectsInFence() of the engine and not
+ * by the one of the fence and it can be checkpointed and restored with a
+ * GeoFenceCheckpoint.
+ * After the fences have been changed all objects can be re-evaluated in bulk,
+ * the containment tests of their last positions run in parallel on a
+ * fork/join pool and the results are applied by the owning shard threads.
+ * The listeners of the fences are called on the shard threads, they must not
+ * call the methods of the engine that wait for the shards, like
+ * getObjectsInFence(), getNoOfObjects(), setFences(), setPoints(),
+ * reevaluate() or shutdown(), these throw an IllegalStateException if they
+ * are called from a shard thread.
+ * Objects stay in their shard until they are removed with remove().
+ */
+public class GeoFenceEngine {
+    private static final int              BULK_THRESHOLD   = 1024;   // Number of locations below which a bulk task will not be split
+    private static final int              INITIAL_CAPACITY = 1024;   // Initial number of objects per shard, a power of two
+    private        final Shard[]          shards;
+    private        final ForkJoinPool     pool;
+    private volatile     CompiledFenceSet fenceSet;
+
+
+    // ******************** Constructors **************************************
+    public GeoFenceEngine(final Collection<GeoFence> fences) {
+        this(fences, Runtime.getRuntime().availableProcessors());
+    }
+    public GeoFenceEngine(final Collection<GeoFence> fences, final int noOfShards) {
+        this(fences, noOfShards, ForkJoinPool.commonPool());
+    }
+    public GeoFenceEngine(final Collection<GeoFence> fences, final int noOfShards, final ForkJoinPool pool) {
+        if (noOfShards < 1) { throw new IllegalArgumentException("Number of shards must be at least 1"); }
+        this.fenceSet = new CompiledFenceSet(fences);
+        this.pool     = pool;
+        this.shards   = new Shard[noOfShards];
+        for (int i = 0 ; i < noOfShards ; i++) { shards[i] = new Shard(i, fenceSet); }
+    }
+
+
+    // ******************** Methods *******************************************
+    public int getNoOfShards() { return shards.length; }
+
+    /**
+     * Returns the shard that owns the object with the given name.
+     * @param name The name of the object like in Location.getName()
+     * @return The shard between 0 and getNoOfShards() - 1
+     */
+    public int getShard(final String name) { return getShardOfHash(Helper.hashUtf8(name)); }
+
+    public CompiledFenceSet getFenceSet() { return fenceSet; }
+
+    public List<GeoFence> getFences() { return fenceSet.getFences(); }
+
+    /**
+     * Replaces the fences of the engine and re-evaluates all tracked objects.
+     * Returns after the new membership has been applied by all shards.
+     * @param fences The new fences
+     */
+    public synchronized void setFences(final Collection<GeoFence> fences) {
+        checkNotOnShard();
+        reevaluate(new CompiledFenceSet(fences));
+    }
+
+    /**
+     * Compiles the current fences again and re-evaluates all tracked objects,
+     * has to be called after the points of a fence have been changed.
+     */
+    public synchronized void reevaluate() {
+        checkNotOnShard();
+        reevaluate(new CompiledFenceSet(fenceSet.getFences()));
+    }
+
+    /**
+     * Publishes new points for several fences at once and re-evaluates all
+     * tracked objects. The shards keep evaluating against the previous fence set
+     * until the set with all changes has been compiled and swapped in, so no
+     * location is tested against a mix of old and new shapes. The objects in
+     * the fences are kept, evaluation does not have to be paused.
+     * Only the engine sees the changes at once, the fences publish their new
+     * points one after the other, so GeoFence.containsLocation() called
+     * directly, a GeoFenceIndex or a GeoFenceCellIndex can see a mix of old and
+     * new shapes while this method runs.
+     * @param points The new points per fence
+     */
+    public synchronized void setPoints(final Map<GeoFence, List<Point>> points) {
+        checkNotOnShard();
+        for (Map.Entry<GeoFence, List<Point>> entry : points.entrySet()) { entry.getKey().setPoints(entry.getValue()); }
+        reevaluate(new CompiledFenceSet(fenceSet.getFences()));
+    }
+
+    /**
+     * Evaluates the given location on the thread of the shard that owns the object
+     * and fires the events of the fences as usual.
+     * @param location The location to evaluate
+     * @return A future with all fences that contain the given location
+     */
+    public CompletableFuture<List<GeoFence>> evaluate(final Location location) {
+        final Shard shard = shards[getShard(location.getName())];
+        return CompletableFuture.supplyAsync(() -> shard.evaluate(location), shard.executor);
+    }
+
+    /**
+     * Evaluates all fixes of the given batch, e.g. from a FixReader. The
+     * fixes are copied into one batch per shard that is evaluated in one task,
+     * the batch can be reused when this method returns.
+     * The fixes are routed by the hash of the bytes of their names and tested
+     * as primitives, names are only decoded for new objects and a Location is
+     * only created if an event needs one.
+     * @param batch The fixes to evaluate
+     * @return A future that completes when all fixes have been evaluated
+     */
+    public CompletableFuture<Void> evaluate(final FixBatch batch) {
+        final int[] shardOfFix    = new int[batch.size()];
+        final int[] noOfFixes     = new int[shards.length];
+        final int[] noOfNameBytes = new int[shards.length];
+        for (int i = 0 ; i < batch.size() ; i++) {
+            final int shard = getShardOfHash(batch.getNameHash(i));
+            shardOfFix[i]         = shard;
+            noOfFixes[shard]     += 1;
+            noOfNameBytes[shard] += batch.getNameLength(i);
+        }
+        final FixBatch[] fixesPerShard = new FixBatch[shards.length];
+        for (int i = 0 ; i < shards.length ; i++) {
+            if (noOfFixes[i] > 0) { fixesPerShard[i] = new FixBatch(noOfFixes[i], noOfNameBytes[i]); }
+        }
+        for (int i = 0 ; i < batch.size() ; i++) { fixesPerShard[shardOfFix[i]].add(batch, i); }
+
+        final CompletableFuture<?>[] results = new CompletableFuture<?>[shards.length];
+        for (int i = 0 ; i < shards.length ; i++) {
+            final Shard    shard = shards[i];
+            final FixBatch fixes = fixesPerShard[i];
+            results[i] = null == fixes ? CompletableFuture.completedFuture(null) : CompletableFuture.runAsync(() -> shard.evaluate(fixes), shard.executor);
+        }
+        return CompletableFuture.allOf(results);
+    }
+
+    /**
+     * Removes the object with the given name from the engine, LEFT will be
+     * fired for every fence that contains it. Objects that are not tracked
+     * anymore should be removed, otherwise their state is kept.
+     * @param name The name of the object like in Location.getName()
+     * @return A future that is true if the object has been tracked
+     */
+    public CompletableFuture<Boolean> remove(final String name) {
+        final Shard shard = shards[getShard(name)];
+        return CompletableFuture.supplyAsync(() -> shard.remove(name), shard.executor);
+    }
+
+    /**
+     * Returns the locations of all objects the engine keeps inside the given fence.
+     * @param fence The fence
+     * @return The locations of the objects inside the given fence
+     */
+    public List<Location> getObjectsInFence(final GeoFence fence) {
+        checkNotOnShard();
+        final List<Location> objectsInFence = new ArrayList<>();
+        for (Shard shard : shards) { objectsInFence.addAll(CompletableFuture.supplyAsync(() -> shard.getObjectsInFence(fence), shard.executor).join()); }
+        return objectsInFence;
+    }
+
+    // Membership of all objects per fence of the current set, used by GeoFenceCheckpoint
+    Map<GeoFence, Collection<Location>> getObjectsInFences() {
+        checkNotOnShard();
+        final Map<GeoFence, Collection<Location>> objectsInFences = new LinkedHashMap<>();
+        for (GeoFence fence : getFences()) { objectsInFences.put(fence, new ArrayList<>()); }
+        for (Shard shard : shards) {
+            final Map<GeoFence, List<Location>> objectsOfShard = CompletableFuture.supplyAsync(shard::getObjectsInFences, shard.executor).join();
+            for (Map.Entry<GeoFence, List<Location>> entry : objectsOfShard.entrySet()) {
+                objectsInFences.computeIfAbsent(entry.getKey(), fence -> new ArrayList<>()).addAll(entry.getValue());
+            }
+        }
+        return objectsInFences;
+    }
+
+    // Marks the given objects as inside of their fences without firing events, used by GeoFenceCheckpoint
+    int restoreObjects(final Map<GeoFence, List<Location>> objectsInFences) {
+        checkNotOnShard();
+        final List<Map<GeoFence, List<Location>>> objectsPerShard = new ArrayList<>(shards.length);
+        for (int i = 0 ; i < shards.length ; i++) { objectsPerShard.add(new LinkedHashMap<>()); }
+        for (Map.Entry<GeoFence, List<Location>> entry : objectsInFences.entrySet()) {
+            for (Location location : entry.getValue()) {
+                objectsPerShard.get(getShard(location.getName())).computeIfAbsent(entry.getKey(), fence -> new ArrayList<>()).add(location);
+            }
+        }
+        int count = 0;
+        for (int i = 0 ; i < shards.length ; i++) {
+            final Shard                         shard   = shards[i];
+            final Map<GeoFence, List<Location>> objects = objectsPerShard.get(i);
+            count += CompletableFuture.supplyAsync(() -> shard.restoreObjects(objects), shard.executor).join();
+        }
+        return count;
+    }
+
+    public int getNoOfObjects() {
+        checkNotOnShard();
+        int noOfObjects = 0;
+        for (Shard shard : shards) { noOfObjects += CompletableFuture.supplyAsync(() -> shard.size, shard.executor).join(); }
+        return noOfObjects;
+    }
+
+    /**
+     * Stops all shard threads after the already submitted locations have been evaluated.
+     */
+    public void shutdown() {
+        checkNotOnShard();
+        for (Shard shard : shards) { shard.executor.shutdown(); }
+        try {
+            for (Shard shard : shards) { shard.executor.awaitTermination(1, TimeUnit.MINUTES); }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int getShardOfHash(final int hash) {
+        final int spread = hash * 0x9E3779B9;
+        return Math.floorMod(spread ^ (spread >>> 16), shards.length);
+    }
+
+    // Waiting for the shards on a shard thread would never return
+    private void checkNotOnShard() {
+        final Thread thread = Thread.currentThread();
+        for (Shard shard : shards) {
+            if (shard.thread == thread) { throw new IllegalStateException("Must not be called on the thread of a shard, e.g. by a fence listener"); }
+        }
+    }
+
+    private void reevaluate(final CompiledFenceSet newSet) {
+        fenceSet = newSet;
+
+        // Every shard switches to the new set and returns the last positions of its objects
+        final List<CompletableFuture<Snapshot>> futures = new ArrayList<>(shards.length);
+        for (Shard shard : shards) { futures.add(CompletableFuture.supplyAsync(() -> shard.switchTo(newSet), shard.executor)); }
+        final Snapshot[] snapshots = new Snapshot[shards.length];
+        int              size      = 0;
+        for (int i = 0 ; i < shards.length ; i++) {
+            snapshots[i] = futures.get(i).join();
+            size        += snapshots[i].members.length;
+        }
+
+        // Containment tests of all objects in parallel
+        final double[] latitudes  = new double[size];
+        final double[] longitudes = new double[size];
+        for (int i = 0, offset = 0 ; i < shards.length ; offset += snapshots[i].members.length, i++) {
+            System.arraycopy(snapshots[i].latitudes, 0, latitudes, offset, snapshots[i].members.length);
+            System.arraycopy(snapshots[i].longitudes, 0, longitudes, offset, snapshots[i].members.length);
+        }
+        final long[] bits = new long[size * newSet.getNoOfWords()];
+        pool.invoke(new ContainmentTask(newSet, latitudes, longitudes, bits, 0, size));
+
+        // Every shard applies the results of its objects
+        final List<CompletableFuture<Void>> results = new ArrayList<>(shards.length);
+        for (int i = 0, offset = 0 ; i < shards.length ; offset += snapshots[i].members.length, i++) {
+            final Shard    shard    = shards[i];
+            final Snapshot snapshot = snapshots[i];
+            final int      from     = offset;
+            results.add(CompletableFuture.runAsync(() -> shard.apply(newSet, snapshot, bits, from), shard.executor));
+        }
+        for (CompletableFuture<Void> result : results) { result.join(); }
+    }
+
+
+    // ******************** Inner Classes *************************************
+    /**
+     * State of one object in a shard, only accessed by the thread of the shard.
+     * Pending dwell times and heartbeats are stored per fence id in arrays that
+     * are only created if a fence of the set uses them.
+     */
+    private static class Member implements Membership {
+        private static final long     NONE = Long.MIN_VALUE;
+        private        final String   name;
+        private        final byte[]   nameBytes;      // UTF-8 bytes of the name to find the object of a fix without decoding its name
+        private        final int      hash;           // Helper.hashUtf8() of the name
+        private              Location location;       // Location of the last evaluation, null if it has only been evaluated from primitives and no event needed one
+        private              double   latitude;       // Position of the last evaluation
+        private              double   longitude;
+        private              long     timestamp;      // Epoch millis of the last evaluation
+        private              long     sequence;       // Number of evaluations, bulk results of an older evaluation will be dropped
+        private              long[]   fences;         // Membership as bitset over the fences of the shard's set
+        private              long[]   pendingFences;  // Bitset of the fences the object is pending for, null if there has been no dwell time
+        private              long[]   pendingSince;   // Epoch millis since when the object is pending per fence
+        private              long[]   heartbeats;     // Epoch millis of the last heartbeat per fence, null if there has been no heartbeat
+
+
+        // ******************** Constructors **********************************
+        Member(final String name, final int hash, final int noOfWords) {
+            this.name      = name;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            this.hash      = hash;
+            this.fences    = new long[noOfWords];
+        }
+
+
+        // ******************** Methods ***************************************
+        void set(final Location location) {
+            final Instant time = location.getTimestamp();
+            this.location = location;
+            latitude      = location.getLatitude();
+            longitude     = location.getLongitude();
+            timestamp     = null == time ? 0 : time.toEpochMilli();
+            sequence++;
+        }
+        // The location will only be created if an event of this evaluation needs it
+        void set(final double latitude, final double longitude, final long timestamp) {
+            this.location  = null;
+            this.latitude  = latitude;
+            this.longitude = longitude;
+            this.timestamp = timestamp;
+            sequence++;
+        }
+
+        Location getLocation() { return getLocation(name, latitude, longitude, timestamp); }
+
+        long getPendingFences(final int word) { return null == pendingFences ? 0 : pendingFences[word]; }
+
+        /**
+         * Translates the membership, pending dwell times and heartbeats to the
+         * ids of a new fence set.
+         * @param newIds    The id in the new set per id in the old set, -1 if the fence is not part of the new set
+         * @param noOfWords The number of longs of a bitset over the fences of the new set
+         */
+        void switchTo(final int[] newIds, final int noOfWords) {
+            final long[] newFences        = new long[noOfWords];
+            final long[] newHeartbeats    = null == heartbeats    ? null : newTimes(noOfWords);
+            final long[] newPendingFences = null == pendingFences ? null : new long[noOfWords];
+            final long[] newPendingSince  = null == pendingFences ? null : newTimes(noOfWords);
+            for (int w = 0 ; w < fences.length ; w++) {
+                for (long word = fences[w] ; word != 0 ; word &= word - 1) {
+                    final int fenceId = (w << 6) + Long.numberOfTrailingZeros(word);
+                    final int newId   = newIds[fenceId];
+                    if (newId < 0) { continue; }
+                    newFences[newId >>> 6] |= 1L << newId;
+                    if (null != heartbeats) { newHeartbeats[newId] = heartbeats[fenceId]; }
+                }
+                for (long word = getPendingFences(w) ; word != 0 ; word &= word - 1) {
+                    final int fenceId = (w << 6) + Long.numberOfTrailingZeros(word);
+                    final int newId   = newIds[fenceId];
+                    if (newId < 0) { continue; }
+                    newPendingFences[newId >>> 6] |= 1L << newId;
+                    newPendingSince[newId]         = pendingSince[fenceId];
+                }
+            }
+            fences        = newFences;
+            heartbeats    = newHeartbeats;
+            pendingFences = newPendingFences;
+            pendingSince  = newPendingSince;
+        }
+
+        @Override public boolean isInside(final int fenceId, final String name) { return (fences[fenceId >>> 6] & (1L << fenceId)) != 0; }
+
+        @Override public boolean enter(final int fenceId, final Location location) {
+            final boolean wasInside = isInside(fenceId, name);
+            fences[fenceId >>> 6] |= 1L << fenceId;
+            return !wasInside;
+        }
+
+        @Override public boolean leave(final int fenceId, final String name) {
+            final boolean wasInside = isInside(fenceId, name);
+            fences[fenceId >>> 6] &= ~(1L << fenceId);
+            return wasInside;
+        }
+
+        @Override public long startPending(final int fenceId, final String name, final long now) {
+            if (null == pendingFences) {
+                pendingFences = new long[fences.length];
+                pendingSince  = newTimes(fences.length);
+            }
+            if ((pendingFences[fenceId >>> 6] & (1L << fenceId)) == 0) {
+                pendingFences[fenceId >>> 6] |= 1L << fenceId;
+                pendingSince[fenceId]         = now;
+            }
+            return pendingSince[fenceId];
+        }
+
+        @Override public void stopPending(final int fenceId, final String name) {
+            if (null != pendingFences) { pendingFences[fenceId >>> 6] &= ~(1L << fenceId); }
+        }
+
+        @Override public void startHeartbeat(final int fenceId, final String name, final long now) {
+            if (null == heartbeats) { heartbeats = newTimes(fences.length); }
+            heartbeats[fenceId] = now;
+        }
+
+        @Override public boolean isHeartbeatDue(final int fenceId, final String name, final long now, final long interval) {
+            final long last = null == heartbeats ? NONE : heartbeats[fenceId];
+            if (NONE != last && now - last < interval) { return false; }
+            startHeartbeat(fenceId, name, now);
+            return true;
+        }
+
+        @Override public void stopHeartbeat(final int fenceId, final String name) {
+            if (null != heartbeats) { heartbeats[fenceId] = NONE; }
+        }
+
+        // The location is created once per evaluation and shared by all events of it
+        @Override public Location getLocation(final String name, final double latitude, final double longitude, final long timestamp) {
+            if (null == location) { location = new Location(latitude, longitude, 0, Instant.ofEpochMilli(timestamp), name); }
+            return location;
+        }
+
+        private static long[] newTimes(final int noOfWords) {
+            final long[] times = new long[noOfWords << 6];
+            Arrays.fill(times, NONE);
+            return times;
+        }
+    }
+
+    // Last positions of the objects of a shard, taken by the thread of the shard
+    private static class Snapshot {
+        private final Member[] members;
+        private final long[]   sequences;
+        private final double[] latitudes;
+        private final double[] longitudes;
+
+
+        // ******************** Constructors **********************************
+        Snapshot(final int size) {
+            members    = new Member[size];
+            sequences  = new long[size];
+            latitudes  = new double[size];
+            longitudes = new double[size];
+        }
+    }
+
+    private static class Shard {
+        private final    ExecutorService  executor;
+        private volatile Thread           thread;    // Thread of the executor, to detect calls that would wait for the shard on its own thread
+        private          Member[]         members;   // Only accessed by the thread of the executor
+        private          int[]            table;     // Index + 1 of the member in the slot, 0 marks an empty slot, only accessed by the thread of the executor
+        private          int              size;      // Number of members, only written by the thread of the executor
+        private          CompiledFenceSet fenceSet;  // Only accessed by the thread of the executor
+        private          long[]           bits;      // Containment of the current evaluation, only accessed by the thread of the executor
+
+
+        // ******************** Constructors **********************************
+        Shard(final int index, final CompiledFenceSet fenceSet) {
+            final ThreadFactory threadFactory = Helper.getThreadFactory("GeoFenceEngine-Shard-" + index, true);
+            this.executor = Executors.newSingleThreadExecutor(runnable -> thread = threadFactory.newThread(runnable));
+            this.members  = new Member[INITIAL_CAPACITY];
+            this.table    = new int[INITIAL_CAPACITY << 1];
+            this.fenceSet = fenceSet;
+            this.bits     = new long[fenceSet.getNoOfWords()];
+        }
+
+
+        // ******************** Methods ***************************************
+        List<GeoFence> evaluate(final Location location) {
+            final Member         member = getMember(location.getName());
+            final List<GeoFence> inside = new ArrayList<>();
+            member.set(location);
+            fenceSet.contains(member.latitude, member.longitude, bits);
+            apply(member, bits, 0, inside);
+            return inside;
+        }
+        void evaluate(final FixBatch fixes) {
+            for (int i = 0 ; i < fixes.size() ; i++) {
+                final Member member = getMember(fixes, i);
+                member.set(fixes.getLatitude(i), fixes.getLongitude(i), fixes.getTimestamp(i));
+                fenceSet.contains(member.latitude, member.longitude, bits);
+                apply(member, bits, 0, null);
+            }
+        }
+
+        // Fires LEFT for all fences that contain the object and frees its slot
+        boolean remove(final String name) {
+            final int hash = Helper.hashUtf8(name);
+            final int mask = table.length - 1;
+            int       slot = slot(hash) & mask;
+            while (table[slot] != 0 && !(members[table[slot] - 1].hash == hash && members[table[slot] - 1].name.equals(name))) { slot = (slot + 1) & mask; }
+            if (table[slot] == 0) { return false; }
+
+            final int    index  = table[slot] - 1;
+            final Member member = members[index];
+            for (int w = 0 ; w < member.fences.length ; w++) {
+                for (long word = member.fences[w] | member.getPendingFences(w) ; word != 0 ; word &= word - 1) {
+                    final int fenceId = (w << 6) + Long.numberOfTrailingZeros(word);
+                    fenceSet.getFence(fenceId).removeObject(member, fenceId, member.location, member.name, member.latitude, member.longitude, member.timestamp);
+                }
+            }
+            // Pending bulk results of the object will be dropped
+            member.sequence++;
+
+            // Shifts the following entries of the probe sequence back into the freed slot
+            int hole = slot;
+            for (int next = (hole + 1) & mask ; table[next] != 0 ; next = (next + 1) & mask) {
+                final int home = slot(members[table[next] - 1].hash) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    table[hole] = table[next];
+                    hole        = next;
+                }
+            }
+            table[hole] = 0;
+
+            // The last member takes the place of the removed one
+            final int last = size - 1;
+            if (index != last) {
+                int lastSlot = slot(members[last].hash) & mask;
+                while (table[lastSlot] != last + 1) { lastSlot = (lastSlot + 1) & mask; }
+                table[lastSlot] = index + 1;
+                members[index]  = members[last];
+            }
+            members[last] = null;
+            size--;
+            return true;
+        }
+
+        List<Location> getObjectsInFence(final GeoFence fence) {
+            final List<Location> objectsInFence = new ArrayList<>();
+            final int            fenceId        = fenceSet.indexOf(fence);
+            if (fenceId < 0) { return objectsInFence; }
+            for (int i = 0 ; i < size ; i++) {
+                if (members[i].isInside(fenceId, members[i].name)) { objectsInFence.add(members[i].getLocation()); }
+            }
+            return objectsInFence;
+        }
+
+        Map<GeoFence, List<Location>> getObjectsInFences() {
+            final Map<GeoFence, List<Location>> objectsInFences = new LinkedHashMap<>();
+            for (int i = 0 ; i < size ; i++) {
+                final Member member = members[i];
+                for (int w = 0 ; w < member.fences.length ; w++) {
+                    for (long word = member.fences[w] ; word != 0 ; word &= word - 1) {
+                        final int fenceId = (w << 6) + Long.numberOfTrailingZeros(word);
+                        objectsInFences.computeIfAbsent(fenceSet.getFence(fenceId), fence -> new ArrayList<>()).add(member.getLocation());
+                    }
+                }
+            }
+            return objectsInFences;
+        }
+
+        int restoreObjects(final Map<GeoFence, List<Location>> objectsInFences) {
+            int count = 0;
+            for (Map.Entry<GeoFence, List<Location>> entry : objectsInFences.entrySet()) {
+                final int fenceId = fenceSet.indexOf(entry.getKey());
+                if (fenceId < 0) { continue; }
+                for (Location location : entry.getValue()) {
+                    final Member member = getMember(location.getName());
+                    // Objects that have been evaluated since keep their position
+                    if (0 == member.sequence) { member.set(location); }
+                    member.enter(fenceId, location);
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Translates the membership of all objects to the fence ids of the given
+         * set, objects leave fences that are not part of the new set.
+         * @param newSet The new fence set
+         * @return The last positions of all objects
+         */
+        Snapshot switchTo(final CompiledFenceSet newSet) {
+            final int[] newIds = new int[fenceSet.getNoOfFences()];
+            for (int fenceId = 0 ; fenceId < newIds.length ; fenceId++) { newIds[fenceId] = newSet.indexOf(fenceSet.getFence(fenceId)); }
+
+            final Snapshot snapshot = new Snapshot(size);
+            for (int i = 0 ; i < size ; i++) {
+                final Member member = members[i];
+                for (int w = 0 ; w < member.fences.length ; w++) {
+                    for (long word = member.fences[w] ; word != 0 ; word &= word - 1) {
+                        final int fenceId = (w << 6) + Long.numberOfTrailingZeros(word);
+                        if (newIds[fenceId] >= 0) { continue; }
+                        fenceSet.getFence(fenceId).removeObject(member, fenceId, member.location, member.name, member.latitude, member.longitude, member.timestamp);
+                    }
+                }
+                member.switchTo(newIds, newSet.getNoOfWords());
+                snapshot.members[i]    = member;
+                snapshot.sequences[i]  = member.sequence;
+                snapshot.latitudes[i]  = member.latitude;
+                snapshot.longitudes[i] = member.longitude;
+            }
+            fenceSet = newSet;
+            bits     = new long[newSet.getNoOfWords()];
+            return snapshot;
+        }
+
+        void apply(final CompiledFenceSet newSet, final Snapshot snapshot, final long[] bits, final int from) {
+            // A newer set has been switched to in the meantime
+            if (fenceSet != newSet) { return; }
+            final int noOfWords = newSet.getNoOfWords();
+            for (int i = 0 ; i < snapshot.members.length ; i++) {
+                final Member member = snapshot.members[i];
+                // Skip objects that have been evaluated against the new set in the meantime
+                if (member.sequence != snapshot.sequences[i]) { continue; }
+                apply(member, bits, (from + i) * noOfWords, null);
+            }
+        }
+
+        // Reports the containment to every fence that contains the object, contained it before or keeps it pending
+        private void apply(final Member member, final long[] bits, final int offset, final List<GeoFence> inside) {
+            for (int w = 0 ; w < member.fences.length ; w++) {
+                final long containment = bits[offset + w];
+                for (long word = containment | member.fences[w] | member.getPendingFences(w) ; word != 0 ; word &= word - 1) {
+                    final int      fenceId  = (w << 6) + Long.numberOfTrailingZeros(word);
+                    final GeoFence fence    = fenceSet.getFence(fenceId);
+                    final boolean  isInside = fence.update(member, fenceId, member.location, member.name, member.latitude, member.longitude, member.timestamp, (containment & (1L << fenceId)) != 0);
+                    if (isInside && null != inside) { inside.add(fence); }
+                }
+            }
+        }
+
+        private Member getMember(final String name) {
+            final int hash = Helper.hashUtf8(name);
+            final int mask = table.length - 1;
+            for (int slot = slot(hash) & mask ; table[slot] != 0 ; slot = (slot + 1) & mask) {
+                final Member member = members[table[slot] - 1];
+                if (member.hash == hash && member.name.equals(name)) { return member; }
+            }
+            return add(new Member(name, hash, fenceSet.getNoOfWords()));
+        }
+        private Member getMember(final FixBatch fixes, final int index) {
+            final int hash = fixes.getNameHash(index);
+            final int mask = table.length - 1;
+            for (int slot = slot(hash) & mask ; table[slot] != 0 ; slot = (slot + 1) & mask) {
+                final Member member = members[table[slot] - 1];
+                if (member.hash == hash && fixes.isName(index, member.nameBytes)) { return member; }
+            }
+            return add(new Member(fixes.getName(index), hash, fenceSet.getNoOfWords()));
+        }
+
+        private Member add(final Member member) {
+            if (size == members.length) {
+                members = Arrays.copyOf(members, members.length << 1);
+                table   = new int[members.length << 1];
+                for (int i = 0 ; i < size ; i++) { insert(members[i].hash, i); }
+            }
+            members[size] = member;
+            insert(member.hash, size++);
+            return member;
+        }
+
+        private void insert(final int hash, final int index) {
+            final int mask = table.length - 1;
+            int       slot = slot(hash) & mask;
+            while (table[slot] != 0) { slot = (slot + 1) & mask; }
+            table[slot] = index + 1;
+        }
+
+        // Mixed differently than the shard of the hash, so the objects of one shard do not cluster in the table
+        private static int slot(final int hash) { return Integer.rotateLeft(hash * 0x85EBCA6B, 16); }
+    }
+
+    private static class ContainmentTask extends RecursiveAction {
+        private static final long             serialVersionUID = 1L;
+        private        final CompiledFenceSet fenceSet;
+        private        final double[]         latitudes;
+        private        final double[]         longitudes;
+        private        final long[]           bits;
+        private        final int              from;
+        private        final int              to;
+
+
+        // ******************** Constructors **********************************
+        ContainmentTask(final CompiledFenceSet fenceSet, final double[] latitudes, final double[] longitudes, final long[] bits, final int from, final int to) {
+            this.fenceSet   = fenceSet;
+            this.latitudes  = latitudes;
+            this.longitudes = longitudes;
+            this.bits       = bits;
+            this.from       = from;
+            this.to         = to;
+        }
+
+
+        // ******************** Methods ***************************************
+        @Override protected void compute() {
+            if (to - from <= BULK_THRESHOLD) {
+                final int    noOfWords = fenceSet.getNoOfWords();
+                final long[] result    = new long[noOfWords];
+                for (int i = from ; i < to ; i++) {
+                    fenceSet.contains(latitudes[i], longitudes[i], result);
+                    System.arraycopy(result, 0, bits, i * noOfWords, noOfWords);
+                }
+            } else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new ContainmentTask(fenceSet, latitudes, longitudes, bits, from, middle), new ContainmentTask(fenceSet, latitudes, longitudes, bits, middle, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.geofence.GeoFenceEvent.GeoFenceEventType;
+import eu.hansolo.microplanner.tools.Helper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Delivers GeoFenceEvents asynchronously so that slow observers do not stall
+ * the threads that evaluate the locations.
+ * Events are buffered in a bounded ring buffer and delivered by one daemon
+ * thread in batches. The events of one fence are delivered in the order they
+ * have been fired, events of different fences within one batch may be
+ * delivered in a different order.
+ * What happens if the buffer is full is defined by the BackpressurePolicy:
+ * BLOCK       : The firing thread waits until there is space in the buffer.
+ * DROP_OLDEST : The oldest buffered event will be dropped.
+ * COALESCE    : A pending INSIDE or OUTSIDE event of the same fence and object
+ *               will be replaced by the new one, transitions are never coalesced.
+ *               If the buffer is still full the oldest event will be dropped.
+ * Events that are fired by an observer on the dispatcher thread while the
+ * buffer is full are never waited for, publish() returns false and the
+ * fence delivers them on the dispatcher thread itself.
+ */
+public class GeoFenceEventDispatcher {
+    public enum BackpressurePolicy { BLOCK, DROP_OLDEST, COALESCE }
+
+    public  static final    int                                    DEFAULT_CAPACITY   = 8192;
+    public  static final    int                                    DEFAULT_BATCH_SIZE = 256;
+    private        final    int                                    capacity;
+    private        final    int                                    maxBatchSize;
+    private        final    BackpressurePolicy                     policy;
+    private        final    GeoFence[]                             fences;
+    private        final    GeoFenceEvent[]                        events;
+    private        final    long[]                                 publishedAt; // System.nanoTime() when the event has been published
+    private        final    Key[]                                  keys;        // Coalescing key of the event in the slot, only used by COALESCE
+    private        final    Map<Key, Long>                         pending;     // Sequence of the latest buffered event per fence and object
+    private        final    Map<GeoFenceObserver, ObserverMetrics> metrics;
+    private        final    ReentrantLock                          lock;
+    private        final    Condition                              notEmpty;
+    private        final    Condition                              notFull;
+    private        final    Thread                                 thread;
+    private                 long                                   head;        // Sequence of the next event to deliver
+    private                 long                                   tail;        // Sequence of the next event to publish
+    private                 long                                   dropped;
+    private                 long                                   coalesced;
+    private        volatile boolean                                running;
+
+
+    // ******************** Constructors **************************************
+    public GeoFenceEventDispatcher() {
+        this(DEFAULT_CAPACITY, BackpressurePolicy.BLOCK, DEFAULT_BATCH_SIZE);
+    }
+    public GeoFenceEventDispatcher(final int capacity, final BackpressurePolicy policy) {
+        this(capacity, policy, DEFAULT_BATCH_SIZE);
+    }
+    public GeoFenceEventDispatcher(final int capacity, final BackpressurePolicy policy, final int maxBatchSize) {
+        if (capacity < 1)     { throw new IllegalArgumentException("Capacity must be at least 1"); }
+        if (maxBatchSize < 1) { throw new IllegalArgumentException("Max batch size must be at least 1"); }
+        this.capacity     = capacity;
+        this.maxBatchSize = maxBatchSize;
+        this.policy       = Objects.requireNonNull(policy);
+        this.fences       = new GeoFence[capacity];
+        this.events       = new GeoFenceEvent[capacity];
+        this.publishedAt  = new long[capacity];
+        this.keys         = BackpressurePolicy.COALESCE == policy ? new Key[capacity] : null;
+        this.pending      = new HashMap<>();
+        this.metrics      = new ConcurrentHashMap<>();
+        this.lock         = new ReentrantLock();
+        this.notEmpty     = lock.newCondition();
+        this.notFull      = lock.newCondition();
+        this.head         = 0;
+        this.tail         = 0;
+        this.running      = true;
+        this.thread       = Helper.getThreadFactory("GeoFenceEventDispatcher", true).newThread(this::run);
+        this.thread.start();
+    }
+
+
+    // ******************** Methods *******************************************
+    public int getCapacity() { return capacity; }
+
+    public int getMaxBatchSize() { return maxBatchSize; }
+
+    public BackpressurePolicy getPolicy() { return policy; }
+
+    public boolean isRunning() { return running; }
+
+    public long getPublished() { lock.lock(); try { return tail; } finally { lock.unlock(); } }
+
+    public long getPending() { lock.lock(); try { return tail - head; } finally { lock.unlock(); } }
+
+    public long getDropped() { lock.lock(); try { return dropped; } finally { lock.unlock(); } }
+
+    public long getCoalesced() { lock.lock(); try { return coalesced; } finally { lock.unlock(); } }
+
+    /**
+     * Returns the metrics of all observers that received events from this
+     * dispatcher. The metrics of an observer are kept until they are removed
+     * with removeObserverMetrics(), also if the observer has been removed from
+     * its fences, so they should be removed together with the observer.
+     * @return The metrics per observer
+     */
+    public Map<GeoFenceObserver, ObserverMetrics> getObserverMetrics() { return Collections.unmodifiableMap(metrics); }
+
+    public ObserverMetrics getObserverMetrics(final GeoFenceObserver observer) { return metrics.get(observer); }
+
+    public ObserverMetrics removeObserverMetrics(final GeoFenceObserver observer) { return metrics.remove(observer); }
+
+    /**
+     * Returns the number of events that have been published after the last event
+     * the given observer has received. Events of fences the observer is not
+     * registered at are included, so this is an upper bound.
+     * @param observer The observer to get the lag for
+     * @return The number of events the given observer is behind
+     */
+    public long getLag(final GeoFenceObserver observer) {
+        final ObserverMetrics observerMetrics = metrics.get(observer);
+        final long            lastSequence    = null == observerMetrics ? -1 : observerMetrics.getLastSequence();
+        return Math.max(0, getPublished() - lastSequence - 1);
+    }
+
+    /**
+     * Puts the given event into the buffer. Returns false if the event has not
+     * been accepted because the dispatcher has been shut down, the waiting
+     * thread has been interrupted or the buffer is full and the event has been
+     * fired on the dispatcher thread, which would otherwise wait for itself.
+     * The caller should deliver the event itself then.
+     * @param fence The fence that fired the event
+     * @param evt   The event to deliver
+     * @return True if the event will be delivered by the dispatcher
+     */
+    public boolean publish(final GeoFence fence, final GeoFenceEvent evt) {
+        lock.lock();
+        try {
+            if (!running) { return false; }
+
+            Key key = null;
+            if (BackpressurePolicy.COALESCE == policy) {
+                key = new Key(fence, evt.getLocation().getName());
+                if (isCoalescable(evt.getType())) {
+                    final Long sequence = pending.get(key);
+                    if (null != sequence && sequence >= head && isCoalescable(events[index(sequence)].getType())) {
+                        events[index(sequence)] = evt;
+                        coalesced++;
+                        return true;
+                    }
+                }
+            }
+
+            while (tail - head == capacity) {
+                if (BackpressurePolicy.BLOCK == policy) {
+                    // Only the dispatcher thread drains the buffer
+                    if (Thread.currentThread() == thread) { return false; }
+                    try {
+                        notFull.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    if (!running) { return false; }
+                } else {
+                    dropOldest();
+                }
+            }
+
+            final int slot = index(tail);
+            fences[slot]      = fence;
+            events[slot]      = evt;
+            publishedAt[slot] = System.nanoTime();
+            if (null != key) {
+                keys[slot] = key;
+                pending.put(key, tail);
+            }
+            tail++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting new events, delivers all buffered events and waits
+     * for the dispatcher thread to finish.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (Thread.currentThread() == thread) { return; }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int index(final long sequence) { return (int) (sequence % capacity); }
+
+    private boolean isCoalescable(final GeoFenceEventType type) { return GeoFenceEventType.INSIDE_FENCE == type || GeoFenceEventType.OUTSIDE_FENCE == type; }
+
+    private void dropOldest() {
+        release(index(head), head);
+        head++;
+        dropped++;
+    }
+
+    private void release(final int slot, final long sequence) {
+        fences[slot] = null;
+        events[slot] = null;
+        if (null != keys && null != keys[slot]) {
+            final Long pendingSequence = pending.get(keys[slot]);
+            if (null != pendingSequence && pendingSequence == sequence) { pending.remove(keys[slot]); }
+            keys[slot] = null;
+        }
+    }
+
+    private void run() {
+        final GeoFence[]      batchFences      = new GeoFence[maxBatchSize];
+        final GeoFenceEvent[] batchEvents      = new GeoFenceEvent[maxBatchSize];
+        final long[]          batchPublishedAt = new long[maxBatchSize];
+        while (true) {
+            final long firstSequence;
+            final int  batchSize;
+            lock.lock();
+            try {
+                while (head == tail && running) { notEmpty.awaitUninterruptibly(); }
+                if (head == tail) { return; }
+
+                firstSequence = head;
+                batchSize     = (int) Math.min(tail - head, maxBatchSize);
+                for (int i = 0 ; i < batchSize ; i++) {
+                    final int slot = index(head);
+                    batchFences[i]      = fences[slot];
+                    batchEvents[i]      = events[slot];
+                    batchPublishedAt[i] = publishedAt[slot];
+                    release(slot, head);
+                    head++;
+                }
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            deliver(batchFences, batchEvents, batchPublishedAt, batchSize, firstSequence);
+            for (int i = 0 ; i < batchSize ; i++) {
+                batchFences[i] = null;
+                batchEvents[i] = null;
+            }
+        }
+    }
+
+    private void deliver(final GeoFence[] batchFences, final GeoFenceEvent[] batchEvents, final long[] batchPublishedAt, final int batchSize, final long firstSequence) {
+        final Map<GeoFence, Batch> batches = new LinkedHashMap<>();
+        for (int i = 0 ; i < batchSize ; i++) {
+            final Batch batch = batches.computeIfAbsent(batchFences[i], fence -> new Batch());
+            batch.events.add(batchEvents[i]);
+            batch.oldestPublishedAt = Math.min(batch.oldestPublishedAt, batchPublishedAt[i]);
+            batch.lastSequence      = firstSequence + i;
+        }
+
+        for (Map.Entry<GeoFence, Batch> entry : batches.entrySet()) {
+            final GeoFence            fence  = entry.getKey();
+            final Batch               batch  = entry.getValue();
+            final List<GeoFenceEvent> events = Collections.unmodifiableList(batch.events);
+            for (GeoFenceObserver observer : fence.getObservers()) {
+                final ObserverMetrics observerMetrics = metrics.computeIfAbsent(observer, o -> new ObserverMetrics());
+                final long            start           = System.nanoTime();
+                try {
+                    observer.onGeoFenceEvents(events);
+                } catch (RuntimeException e) {
+                    observerMetrics.failures++;
+                    e.printStackTrace();
+                }
+                final long end = System.nanoTime();
+                observerMetrics.record(events.size(), end - batch.oldestPublishedAt, end - start, batch.lastSequence);
+            }
+            for (GeoFenceEvent evt : events) {
+                try {
+                    fence.notifyConsumers(evt);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+
+    // ******************** Inner Classes *************************************
+    public static class ObserverMetrics {
+        private volatile long deliveredEvents;
+        private volatile long deliveredBatches;
+        private volatile long failures;
+        private volatile long lastLagNanos;
+        private volatile long maxLagNanos;
+        private volatile long busyNanos;
+        private volatile long lastSequence = -1;
+
+
+        // ******************** Methods ***************************************
+        public long getDeliveredEvents() { return deliveredEvents; }
+
+        public long getDeliveredBatches() { return deliveredBatches; }
+
+        public long getFailures() { return failures; }
+
+        /**
+         * @return Nanoseconds between publishing the oldest event of the last batch and its delivery to the observer
+         */
+        public long getLastLagNanos() { return lastLagNanos; }
+
+        public long getMaxLagNanos() { return maxLagNanos; }
+
+        /**
+         * @return Nanoseconds the observer spent in total processing events
+         */
+        public long getBusyNanos() { return busyNanos; }
+
+        public long getLastSequence() { return lastSequence; }
+
+        // Only called by the dispatcher thread
+        private void record(final int noOfEvents, final long lagNanos, final long durationNanos, final long sequence) {
+            deliveredEvents  += noOfEvents;
+            deliveredBatches += 1;
+            busyNanos        += durationNanos;
+            lastLagNanos      = lagNanos;
+            if (lagNanos > maxLagNanos) { maxLagNanos = lagNanos; }
+            lastSequence      = sequence;
+        }
+
+        @Override public String toString() {
+            return new StringBuilder().append("{")
+                                      .append("\"deliveredEvents\":").append(deliveredEvents).append(",")
+                                      .append("\"deliveredBatches\":").append(deliveredBatches).append(",")
+                                      .append("\"failures\":").append(failures).append(",")
+                                      .append("\"lastLagNanos\":").append(lastLagNanos).append(",")
+                                      .append("\"maxLagNanos\":").append(maxLagNanos).append(",")
+                                      .append("\"busyNanos\":").append(busyNanos)
+                                      .append("}").toString();
+        }
+    }
+
+    private static class Batch {
+        private final List<GeoFenceEvent> events            = new ArrayList<>();
+        private       long                oldestPublishedAt = Long.MAX_VALUE;
+        private       long                lastSequence;
+    }
+
+    private static class Key {
+        private final GeoFence fence;
+        private final String   name;
+
+
+        // ******************** Constructors **********************************
+        Key(final GeoFence fence, final String name) {
+            this.fence = fence;
+            this.name  = name;
+        }
+
+
+        // ******************** Methods ***************************************
+        @Override public boolean equals(final Object obj) {
+            if (obj == this) { return true; }
+            if (obj instanceof Key) {
+                final Key key = (Key) obj;
+                return fence == key.fence && Objects.equals(name, key.name);
+            }
+            return false;
+        }
+
+        @Override public int hashCode() { return 31 * System.identityHashCode(fence) + Objects.hashCode(name); }
+    }
+}
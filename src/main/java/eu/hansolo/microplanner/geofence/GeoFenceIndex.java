@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.location.Location;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Static R-tree over the bounding boxes of a set of GeoFences.
+ * The tree is bulk loaded with the Sort-Tile-Recursive (STR) algorithm
+ * which packs the nodes completely and keeps the overlap between them low.
+ * Like in GeoFence.containsLocation() x is the latitude and y the longitude.
+ * Different objects can be evaluated concurrently.
+ */
+public class GeoFenceIndex {
+    public  static final int                         DEFAULT_NODE_CAPACITY = 16;
+    private static final List<GeoFence>              NO_FENCES             = new ArrayList<>(0);
+    private final        int                         nodeCapacity;
+    private              List<GeoFence>              fences;
+    private volatile     Node                        root;
+    private volatile     Map<String, List<GeoFence>> fencesOfObject;       // Fences an object has been inside after the last evaluation
+    private              FenceVersion[]              versions;             // Versions of the fences the tree has been built from
+    private volatile     long                        noOfChanges;          // GeoFence.getNoOfChanges() at the last build
+
+
+    // ******************** Constructors **************************************
+    public GeoFenceIndex() {
+        this(DEFAULT_NODE_CAPACITY);
+    }
+    public GeoFenceIndex(final int nodeCapacity) {
+        if (nodeCapacity < 2) { throw new IllegalArgumentException("Node capacity must be at least 2"); }
+        this.nodeCapacity   = nodeCapacity;
+        this.fences         = new ArrayList<>();
+        this.root           = null;
+        this.fencesOfObject = new ConcurrentHashMap<>();
+        this.versions       = new FenceVersion[0];
+    }
+    public GeoFenceIndex(final GeoFence... fences) {
+        this(Arrays.asList(fences));
+    }
+    public GeoFenceIndex(final Collection<GeoFence> fences) {
+        this(DEFAULT_NODE_CAPACITY);
+        setFences(fences);
+    }
+
+
+    // ******************** Methods *******************************************
+    public List<GeoFence> getFences() { return new ArrayList<>(fences); }
+    public synchronized void setFences(final Collection<GeoFence> fences) {
+        this.fences = new ArrayList<>(fences);
+        rebuild();
+    }
+
+    public int size() { return fences.size(); }
+
+    /**
+     * Bulk loads the R-tree from the current geometry of all fences.
+     * The tree is rebuilt automatically on the next query after the points of
+     * one of its fences have been changed, calling it directly avoids that the
+     * query has to wait for it.
+     * The objects that are inside of the fences, e.g. after a restore from a
+     * GeoFenceCheckpoint, are evaluated against them until they leave.
+     */
+    public synchronized void rebuild() {
+        final long           changes     = GeoFence.getNoOfChanges();
+        final FenceVersion[] newVersions = new FenceVersion[fences.size()];
+        final List<Node>     leaves      = new ArrayList<>(fences.size());
+        for (int i = 0 ; i < newVersions.length ; i++) {
+            final GeoFence fence = fences.get(i);
+            newVersions[i] = fence.getVersion();
+            final FenceGeometry geometry = newVersions[i].getGeometry();
+            if (geometry.isEmpty()) { continue; }
+            final Node leaf = new Node(fence);
+            leaf.include(geometry.getMinX(), geometry.getMinY(), geometry.getMaxX(), geometry.getMaxY());
+            leaves.add(leaf);
+        }
+        root           = leaves.isEmpty() ? null : pack(leaves);
+        fencesOfObject = getFencesOfObjects(fences);
+        versions       = newVersions;
+        noOfChanges    = changes;
+    }
+
+    /**
+     * Returns all fences whose bounding box contains the given position.
+     * The returned fences are only candidates, the exact test against
+     * the polygon is done in GeoFence.containsLocation().
+     * @param latitude  The latitude of the position
+     * @param longitude The longitude of the position
+     * @return All fences whose bounding box contains the given position
+     */
+    public List<GeoFence> getCandidates(final double latitude, final double longitude) {
+        final List<GeoFence> candidates = new ArrayList<>();
+        getCandidates(latitude, longitude, candidates);
+        return candidates;
+    }
+    public void getCandidates(final double latitude, final double longitude, final List<GeoFence> result) {
+        rebuildIfNeeded();
+        if (null == root) { return; }
+        search(root, latitude, longitude, result);
+    }
+
+    /**
+     * Evaluates the given location against all candidate fences and fires
+     * the usual ENTERED, INSIDE, LEFT and OUTSIDE events on them. Fences
+     * the object has been inside before but that are no candidates anymore
+     * will also be evaluated to make sure they fire their LEFT event.
+     * OUTSIDE events are only fired by candidate fences.
+     * @param location The location to evaluate
+     * @return All fences that contain the given location
+     */
+    public List<GeoFence> evaluate(final Location location) {
+        final String         name       = location.getName();
+        final List<GeoFence> candidates = getCandidates(location.getLatitude(), location.getLongitude());
+        final List<GeoFence> inside     = new ArrayList<>(candidates.size());
+        for (GeoFence fence : candidates) {
+            if (fence.containsLocation(location)) { inside.add(fence); }
+        }
+        for (GeoFence fence : fencesOfObject.getOrDefault(name, NO_FENCES)) {
+            if (candidates.contains(fence)) { continue; }
+            // Hysteresis and dwell time can keep the object inside of a fence whose bounding box does not contain it
+            if (fence.containsLocation(location)) { inside.add(fence); }
+        }
+        if (inside.isEmpty()) {
+            fencesOfObject.remove(name);
+        } else {
+            fencesOfObject.put(name, inside);
+        }
+        return inside;
+    }
+
+    public synchronized void clear() {
+        fences.clear();
+        fencesOfObject.clear();
+        versions = new FenceVersion[0];
+        root     = null;
+    }
+
+    // Rebuilds the index if one of its fences has published a new version since the last build
+    private void rebuildIfNeeded() {
+        if (GeoFence.getNoOfChanges() == noOfChanges) { return; }
+        synchronized (this) {
+            final long changes = GeoFence.getNoOfChanges();
+            if (changes == noOfChanges) { return; }
+            for (int i = 0 ; i < versions.length ; i++) {
+                if (fences.get(i).getVersion() != versions[i]) {
+                    rebuild();
+                    return;
+                }
+            }
+            noOfChanges = changes;
+        }
+    }
+
+    private Node pack(final List<Node> nodes) {
+        List<Node> level = nodes;
+        while (level.size() > 1) {
+            final int noOfNodes  = (int) Math.ceil(level.size() / (double) nodeCapacity);
+            final int noOfSlices = (int) Math.ceil(Math.sqrt(noOfNodes));
+            final int sliceSize  = noOfSlices * nodeCapacity;
+
+            level.sort(Comparator.comparingDouble(Node::centerX));
+            final List<Node> parents = new ArrayList<>(noOfNodes);
+            for (int sliceStart = 0, size = level.size() ; sliceStart < size ; sliceStart += sliceSize) {
+                final List<Node> slice = level.subList(sliceStart, Math.min(sliceStart + sliceSize, size));
+                slice.sort(Comparator.comparingDouble(Node::centerY));
+                for (int nodeStart = 0, sliceLength = slice.size() ; nodeStart < sliceLength ; nodeStart += nodeCapacity) {
+                    parents.add(new Node(slice.subList(nodeStart, Math.min(nodeStart + nodeCapacity, sliceLength))));
+                }
+            }
+            level = parents;
+        }
+        return level.get(0);
+    }
+
+    private void search(final Node node, final double x, final double y, final List<GeoFence> result) {
+        if (!node.contains(x, y)) { return; }
+        if (null == node.children) {
+            result.add(node.fence);
+        } else {
+            for (Node child : node.children) { search(child, x, y, result); }
+        }
+    }
+
+
+    private static Map<String, List<GeoFence>> getFencesOfObjects(final List<GeoFence> fences) {
+        final Map<String, List<GeoFence>> fencesOfObjects = new ConcurrentHashMap<>();
+        for (GeoFence fence : fences) {
+            for (Location location : fence.getLocationsInFence()) { fencesOfObjects.computeIfAbsent(location.getName(), name -> new ArrayList<>()).add(fence); }
+        }
+        return fencesOfObjects;
+    }
+
+
+    // ******************** Inner Classes *************************************
+    private static class Node {
+        private final GeoFence fence;
+        private final Node[]   children;
+        private       double   minX;
+        private       double   minY;
+        private       double   maxX;
+        private       double   maxY;
+
+
+        // ******************** Constructors **********************************
+        Node(final GeoFence fence) {
+            this.fence    = fence;
+            this.children = null;
+            this.minX     = Double.POSITIVE_INFINITY;
+            this.minY     = Double.POSITIVE_INFINITY;
+            this.maxX     = Double.NEGATIVE_INFINITY;
+            this.maxY     = Double.NEGATIVE_INFINITY;
+        }
+        Node(final List<Node> children) {
+            this.fence    = null;
+            this.children = children.toArray(new Node[0]);
+            this.minX     = Double.POSITIVE_INFINITY;
+            this.minY     = Double.POSITIVE_INFINITY;
+            this.maxX     = Double.NEGATIVE_INFINITY;
+            this.maxY     = Double.NEGATIVE_INFINITY;
+            for (Node child : this.children) { include(child.minX, child.minY, child.maxX, child.maxY); }
+        }
+
+
+        // ******************** Methods ***************************************
+        void include(final double minX, final double minY, final double maxX, final double maxY) {
+            if (minX < this.minX) { this.minX = minX; }
+            if (minY < this.minY) { this.minY = minY; }
+            if (maxX > this.maxX) { this.maxX = maxX; }
+            if (maxY > this.maxY) { this.maxY = maxY; }
+        }
+
+        boolean contains(final double x, final double y) { return x >= minX && x <= maxX && y >= minY && y <= maxY; }
+
+        double centerX() { return (minX + maxX) * 0.5; }
+
+        double centerY() { return (minY + maxY) * 0.5; }
+    }
+}
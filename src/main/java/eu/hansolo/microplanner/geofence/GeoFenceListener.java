@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.geofence.GeoFenceEvent.GeoFenceEventType;
+import eu.hansolo.microplanner.location.Location;
+
+
+/**
+ * Receives the events of a GeoFence as arguments, so no GeoFenceEvent has
+ * to be created per event.
+ */
+@FunctionalInterface
+public interface GeoFenceListener {
+
+    void onGeoFenceEvent(final GeoFence fence, final Location location, final GeoFenceEventType type);
+}
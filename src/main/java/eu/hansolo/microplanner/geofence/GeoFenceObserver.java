@@ -16,8 +16,22 @@
 
 package eu.hansolo.microplanner.geofence;
 
+import java.util.List;
+
+
 @FunctionalInterface
 public interface GeoFenceObserver {
 
     void onGeoFenceEvent(final GeoFenceEvent evt);
+
+    /**
+     * Called by the GeoFenceEventDispatcher with all events of one fence that have
+     * been collected since the last delivery, in the order they have been fired.
+     * Observers that can process events in bulk (e.g. database writers) should
+     * override this method.
+     * @param events The events of one fence in the order they have been fired
+     */
+    default void onGeoFenceEvents(final List<GeoFenceEvent> events) {
+        for (GeoFenceEvent evt : events) { onGeoFenceEvent(evt); }
+    }
 }
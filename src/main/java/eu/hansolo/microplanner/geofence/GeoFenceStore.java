@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.tools.Helper;
+import eu.hansolo.microplanner.tools.Point;
+import eu.hansolo.microplanner.tools.Simplifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
+
+/**
+ * Binary file of GeoFences that is memory mapped and queried in place.
+ * Layout (big endian):
+ * Header    : magic, version, number of fences, reserved (4 x int), CRC32 of everything after the header (long)
+ * Directory : per fence the offset of its record and of its geometry (2 x long),
+ *             the bounding box (4 x double), the number of points (int) and flags (int)
+ * Records   : name, category, info, tags (UTF-8 strings with int length),
+ *             days (bitmask), start and end time (nano of day), zone id,
+ *             simplification method and tolerance, the original points of a
+ *             simplified polygon and the geometry, either latitude, longitude
+ *             and radius of a circle or the x and y of all points of the
+ *             polygon that is used for the containment test.
+ * Bounding box and containment queries work directly on the mapped file,
+ * GeoFence objects are only created when they are requested and cached.
+ * Files are limited to 2 GB.
+ */
+public class GeoFenceStore {
+    public  static final int                            MAGIC       = 0x4D504746; // MPGF
+    public  static final int                            VERSION     = 1;
+    private static final int                            HEADER_SIZE = 24;
+    private static final int                            ENTRY_SIZE  = 56;
+    private static final int                            CIRCULAR    = 1;
+    private static final int                            ACTIVE      = 1 << 1;
+    private static final int                            TIME_BASED  = 1 << 2;
+    private        final ByteBuffer                     buffer;
+    private        final int                            noOfFences;
+    private        final AtomicReferenceArray<GeoFence> fences;      // Materialized fences
+    private volatile     Map<String, Integer>           indexOfName;
+
+
+    // ******************** Constructors **************************************
+    private GeoFenceStore(final ByteBuffer buffer) {
+        this.buffer     = buffer;
+        this.noOfFences = buffer.getInt(8);
+        this.fences     = new AtomicReferenceArray<>(noOfFences);
+    }
+
+
+    // ******************** Methods *******************************************
+    /**
+     * Writes the given fences to the given file. The file is written to a
+     * temporary file first and then moved, so readers never see a partial file.
+     * @param path   The file
+     * @param fences The fences to write
+     * @throws IOException If the file could not be written
+     */
+    public static final void write(final Path path, final Collection<GeoFence> fences) throws IOException {
+        final ByteArrayOutputStream records   = new ByteArrayOutputStream();
+        final DataOutputStream      out       = new DataOutputStream(records);
+        final ByteBuffer            directory = ByteBuffer.allocate(fences.size() * ENTRY_SIZE);
+        final long                  bodyStart = HEADER_SIZE + (long) fences.size() * ENTRY_SIZE;
+        for (GeoFence fence : fences) {
+            final FenceGeometry geometry     = fence.getGeometry();
+            final long          recordOffset = bodyStart + out.size();
+            writeString(out, fence.getName());
+            writeString(out, fence.getCategory());
+            writeString(out, fence.getInfo());
+            out.writeInt(fence.getTags().size());
+            for (String tag : fence.getTags()) { writeString(out, tag); }
+            int days = 0;
+            for (DayOfWeek day : fence.getDays()) { days |= 1 << day.ordinal(); }
+            out.writeByte(days);
+            out.writeLong(fence.getStartTime().toNanoOfDay());
+            out.writeLong(fence.getEndTime().toNanoOfDay());
+            writeString(out, fence.getZoneId().getId());
+            out.writeByte(fence.getSimplification().ordinal());
+            out.writeDouble(fence.getSimplificationTolerance());
+            final List<Point> displayPoints = Simplifier.Method.NONE == fence.getSimplification() || fence.isCircular() ? new ArrayList<>() : fence.getPoints();
+            out.writeInt(displayPoints.size());
+            for (Point point : displayPoints) {
+                out.writeDouble(point.getX());
+                out.writeDouble(point.getY());
+            }
+
+            final long geometryOffset = bodyStart + out.size();
+            int        noOfPoints     = 0;
+            if (geometry instanceof CircleGeometry) {
+                final CircleGeometry circle = (CircleGeometry) geometry;
+                out.writeDouble(circle.getLatitude());
+                out.writeDouble(circle.getLongitude());
+                out.writeDouble(circle.getRadius());
+            } else {
+                for (Point point : fence.getSimplifiedPoints()) {
+                    out.writeDouble(point.getX());
+                    out.writeDouble(point.getY());
+                }
+                noOfPoints = fence.getSimplifiedPoints().size();
+            }
+            directory.putLong(recordOffset);
+            directory.putLong(geometryOffset);
+            directory.putDouble(geometry.getMinX());
+            directory.putDouble(geometry.getMinY());
+            directory.putDouble(geometry.getMaxX());
+            directory.putDouble(geometry.getMaxY());
+            directory.putInt(noOfPoints);
+            directory.putInt((fence.isCircular() ? CIRCULAR : 0) | (fence.isActive() ? ACTIVE : 0) | (fence.isTimeBased() ? TIME_BASED : 0));
+        }
+        out.flush();
+
+        final byte[] body = records.toByteArray();
+        final CRC32  crc  = new CRC32();
+        crc.update(directory.array());
+        crc.update(body);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(fences.size()).putInt(0).putLong(crc.getValue());
+        header.flip();
+        directory.flip();
+
+        final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer[] buffers = { header, directory, ByteBuffer.wrap(body) };
+            while (buffers[2].hasRemaining()) { channel.write(buffers); }
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static final GeoFenceStore open(final Path path) throws IOException { return open(path, true); }
+    /**
+     * Maps the given file into memory.
+     * @param path   The file
+     * @param verify If true the checksum of the file will be verified
+     * @return The store
+     * @throws IOException If the file could not be read, has the wrong format or is corrupt
+     */
+    public static final GeoFenceStore open(final Path path, final boolean verify) throws IOException {
+        final MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) { throw new IOException("File is larger than 2 GB"); }
+            if (channel.size() < HEADER_SIZE) { throw new IOException("File is too small"); }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt(0) != MAGIC) { throw new IOException("Not a fence store"); }
+        if (buffer.getInt(4) != VERSION) { throw new IOException("Unsupported version " + buffer.getInt(4)); }
+        final int noOfFences = buffer.getInt(8);
+        if (noOfFences < 0 || HEADER_SIZE + (long) noOfFences * ENTRY_SIZE > buffer.capacity()) { throw new IOException("Directory exceeds file"); }
+        if (verify) {
+            final CRC32      crc  = new CRC32();
+            final ByteBuffer body = buffer.duplicate();
+            body.position(HEADER_SIZE);
+            crc.update(body);
+            if (crc.getValue() != buffer.getLong(16)) { throw new IOException("Checksum mismatch"); }
+        }
+        return new GeoFenceStore(buffer);
+    }
+
+    public int size() { return noOfFences; }
+
+    public String getName(final int index) { return readString(getRecordOffset(index)); }
+
+    public String getCategory(final int index) { return readString(skipString(getRecordOffset(index))); }
+
+    public double getMinX(final int index) { return buffer.getDouble(entry(index) + 16); }
+    public double getMinY(final int index) { return buffer.getDouble(entry(index) + 24); }
+    public double getMaxX(final int index) { return buffer.getDouble(entry(index) + 32); }
+    public double getMaxY(final int index) { return buffer.getDouble(entry(index) + 40); }
+
+    public int getNoOfPoints(final int index) { return buffer.getInt(entry(index) + 48); }
+
+    public boolean isCircular(final int index) { return (getFlags(index) & CIRCULAR) != 0; }
+
+    public boolean isActive(final int index) { return (getFlags(index) & ACTIVE) != 0; }
+
+    /**
+     * Returns the index of the fence with the given name or -1, the name index
+     * will be built on first use.
+     * @param name The name of the fence
+     * @return The index of the fence or -1
+     */
+    public int indexOf(final String name) {
+        Map<String, Integer> index = indexOfName;
+        if (null == index) {
+            index = new HashMap<>(noOfFences * 2);
+            for (int i = 0 ; i < noOfFences ; i++) { index.putIfAbsent(getName(i), i); }
+            indexOfName = index;
+        }
+        return index.getOrDefault(name, -1);
+    }
+
+    /**
+     * Returns the indices of all fences whose bounding box intersects the given rectangle.
+     * @param minX The minimum latitude
+     * @param minY The minimum longitude
+     * @param maxX The maximum latitude
+     * @param maxY The maximum longitude
+     * @return The indices of the fences
+     */
+    public int[] getFencesInBounds(final double minX, final double minY, final double maxX, final double maxY) {
+        int[] result = new int[8];
+        int   size   = 0;
+        for (int i = 0 ; i < noOfFences ; i++) {
+            final int entry = entry(i);
+            if (buffer.getDouble(entry + 32) < minX || buffer.getDouble(entry + 16) > maxX ||
+                buffer.getDouble(entry + 40) < minY || buffer.getDouble(entry + 24) > maxY) { continue; }
+            if (size == result.length) { result = Arrays.copyOf(result, size * 2); }
+            result[size++] = i;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Returns the indices of all fences whose geometry contains the given position,
+     * the test runs on the mapped file without creating any fence.
+     * @param latitude  The latitude of the position
+     * @param longitude The longitude of the position
+     * @return The indices of the fences
+     */
+    public int[] getFencesContaining(final double latitude, final double longitude) {
+        final int[] candidates = getFencesInBounds(latitude, longitude, latitude, longitude);
+        int         size       = 0;
+        for (int index : candidates) {
+            if (contains(index, latitude, longitude)) { candidates[size++] = index; }
+        }
+        return Arrays.copyOf(candidates, size);
+    }
+
+    /**
+     * Tests the given position against the geometry of the fence with the given
+     * index like FenceGeometry.contains() but directly on the mapped file.
+     * @param index     The index of the fence
+     * @param latitude  The latitude of the position
+     * @param longitude The longitude of the position
+     * @return True if the geometry of the fence contains the given position
+     */
+    public boolean contains(final int index, final double latitude, final double longitude) {
+        final int    entry = entry(index);
+        final double x     = latitude;
+        final double y     = longitude;
+        if (x < buffer.getDouble(entry + 16) || x > buffer.getDouble(entry + 32) || y < buffer.getDouble(entry + 24) || y > buffer.getDouble(entry + 40)) { return false; }
+        final int offset = (int) buffer.getLong(entry + 8);
+        if ((buffer.getInt(entry + 52) & CIRCULAR) != 0) {
+            final double centerX = buffer.getDouble(offset);
+            final double radius  = buffer.getDouble(offset + 16);
+            final double deltaX  = (x - centerX) * Helper.METER_PER_DEGREE;
+            final double deltaY  = (y - buffer.getDouble(offset + 8)) * Helper.METER_PER_DEGREE * Math.cos(Math.toRadians(centerX));
+            return deltaX * deltaX + deltaY * deltaY <= radius * radius;
+        }
+        final int noOfPoints = buffer.getInt(entry + 48);
+        if (noOfPoints < 3) { return false; }
+        boolean   crossed    = false;
+        double    xj         = buffer.getDouble(offset + (noOfPoints - 1) * 16);
+        double    yj         = buffer.getDouble(offset + (noOfPoints - 1) * 16 + 8);
+        for (int i = 0 ; i < noOfPoints ; i++) {
+            final double xi = buffer.getDouble(offset + i * 16);
+            final double yi = buffer.getDouble(offset + i * 16 + 8);
+            if ((yi > y) != (yj > y)) {
+                final double slope = (xj - xi) / (yj - yi);
+                if (x < slope * (y - yi) + xi) { crossed = !crossed; }
+            }
+            xj = xi;
+            yj = yi;
+        }
+        return crossed;
+    }
+
+    /**
+     * Returns the fence with the given index, it will be created from the
+     * file on first access and cached afterwards.
+     * @param index The index of the fence
+     * @return The fence
+     */
+    public GeoFence getFence(final int index) {
+        final GeoFence fence = fences.get(index);
+        if (null != fence) { return fence; }
+        final GeoFence created = read(index);
+        return fences.compareAndSet(index, null, created) ? created : fences.get(index);
+    }
+
+    public List<GeoFence> getFences() {
+        final List<GeoFence> result = new ArrayList<>(noOfFences);
+        for (int i = 0 ; i < noOfFences ; i++) { result.add(getFence(i)); }
+        return result;
+    }
+
+    private GeoFence read(final int index) {
+        final ByteBuffer in = buffer.duplicate();
+        in.position(getRecordOffset(index));
+        final String       name     = readString(in);
+        final String       category = readString(in);
+        final String       info     = readString(in);
+        final int          noOfTags = in.getInt();
+        final List<String> tags     = new ArrayList<>(noOfTags);
+        for (int i = 0 ; i < noOfTags ; i++) { tags.add(readString(in)); }
+        final int               days           = in.get();
+        final LocalTime         startTime      = LocalTime.ofNanoOfDay(in.getLong());
+        final LocalTime         endTime        = LocalTime.ofNanoOfDay(in.getLong());
+        final ZoneId            zoneId         = ZoneId.of(readString(in));
+        final Simplifier.Method simplification = Simplifier.Method.values()[in.get()];
+        final double            tolerance      = in.getDouble();
+        final List<Point>       displayPoints  = readPoints(in, in.getInt());
+
+        final int      flags = getFlags(index);
+        final GeoFence fence;
+        if ((flags & CIRCULAR) != 0) {
+            fence = new GeoFence(name, category, in.getDouble(), in.getDouble(), in.getDouble());
+        } else {
+            final List<Point> points = readPoints(in, getNoOfPoints(index));
+            fence = new GeoFence(name, category, displayPoints.isEmpty() ? points : displayPoints);
+            fence.setSimplification(simplification, tolerance);
+        }
+        fence.setInfo(info);
+        fence.setTags(tags);
+        for (DayOfWeek day : DayOfWeek.values()) {
+            if ((days & (1 << day.ordinal())) != 0) { fence.addDay(day); }
+        }
+        fence.setStartTime(startTime);
+        fence.setEndTime(endTime);
+        fence.setZoneId(zoneId);
+        fence.setTimeBased((flags & TIME_BASED) != 0);
+        fence.setActive((flags & ACTIVE) != 0);
+        return fence;
+    }
+
+    private int entry(final int index) {
+        if (index < 0 || index >= noOfFences) { throw new IllegalArgumentException("Index must be between 0 and " + (noOfFences - 1)); }
+        return HEADER_SIZE + index * ENTRY_SIZE;
+    }
+
+    private int getRecordOffset(final int index) { return (int) buffer.getLong(entry(index)); }
+
+    private int getFlags(final int index) { return buffer.getInt(entry(index) + 52); }
+
+    private String readString(final int offset) {
+        final byte[] bytes = new byte[buffer.getInt(offset)];
+        for (int i = 0 ; i < bytes.length ; i++) { bytes[i] = buffer.get(offset + 4 + i); }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int skipString(final int offset) { return offset + 4 + buffer.getInt(offset); }
+
+    private static List<Point> readPoints(final ByteBuffer in, final int noOfPoints) {
+        final List<Point> points = new ArrayList<>(noOfPoints);
+        for (int i = 0 ; i < noOfPoints ; i++) { points.add(new Point(in.getDouble(), in.getDouble())); }
+        return points;
+    }
+
+    private static String readString(final ByteBuffer in) {
+        final byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(final DataOutputStream out, final String text) throws IOException {
+        final byte[] bytes = (null == text ? "" : text).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
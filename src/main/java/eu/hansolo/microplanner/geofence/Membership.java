@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.location.Location;
+
+
+/**
+ * State of objects in fences that is needed to decide transitions, pending
+ * dwell times and heartbeats. A GeoFence keeps the state of its objects by
+ * their name, the shard of a GeoFenceEngine keeps it per object by the id of
+ * the fence in the compiled set, so every implementation only uses one of
+ * both keys.
+ */
+interface Membership {
+
+    boolean isInside(int fenceId, String name);
+
+    /**
+     * Marks the object of the given location as inside of the fence.
+     * @param fenceId  The id of the fence
+     * @param location The current location of the object
+     * @return True if the object has been outside of the fence before
+     */
+    boolean enter(int fenceId, Location location);
+
+    /**
+     * Marks the object as outside of the fence.
+     * @param fenceId The id of the fence
+     * @param name    The name of the object
+     * @return True if the object has been inside of the fence before
+     */
+    boolean leave(int fenceId, String name);
+
+    /**
+     * Returns since when the object is on the other side of the fence, if it
+     * has not been pending before that will be now.
+     * @param fenceId The id of the fence
+     * @param name    The name of the object
+     * @param now     The current time in epoch millis
+     * @return The time in epoch millis since when the object is pending
+     */
+    long startPending(int fenceId, String name, long now);
+
+    void stopPending(int fenceId, String name);
+
+    void startHeartbeat(int fenceId, String name, long now);
+
+    /**
+     * Returns true and restarts the interval if the last heartbeat of the object
+     * is at least the given interval ago or if there has been no heartbeat yet.
+     * @param fenceId  The id of the fence
+     * @param name     The name of the object
+     * @param now      The current time in epoch millis
+     * @param interval The heartbeat interval in milliseconds
+     * @return True if an INSIDE event is due
+     */
+    boolean isHeartbeatDue(int fenceId, String name, long now, long interval);
+
+    void stopHeartbeat(int fenceId, String name);
+
+    /**
+     * Returns a location for the events of an object that is only known by
+     * name and position.
+     * @param name      The name of the object
+     * @param latitude  The latitude of the object
+     * @param longitude The longitude of the object
+     * @param timestamp The time of the position in epoch millis
+     * @return A location of the object
+     */
+    Location getLocation(String name, double latitude, double longitude, long timestamp);
+}
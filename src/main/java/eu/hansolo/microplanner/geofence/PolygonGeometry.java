@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.tools.Helper;
+import eu.hansolo.microplanner.tools.Point;
+
+import java.util.List;
+
+
+/**
+ * Immutable, compiled form of the polygon of a GeoFence.
+ * The vertices are stored in primitive arrays together with the bounding box
+ * and the inverse slope of every edge, so the point in polygon test neither
+ * allocates nor divides.
+ * Polygons with at least gridThreshold points get a uniform grid over their
+ * bounding box that is built on first use. Cells that are not touched by any
+ * edge are marked as fully inside or outside and answer queries directly.
+ * In boundary cells only the edges of the horizontal slab of the cell are
+ * tested, which gives the same result as the test against all edges.
+ */
+public final class PolygonGeometry implements FenceGeometry {
+    public  static final int      DEFAULT_GRID_THRESHOLD = 64;
+    private static final int      MIN_CELLS_PER_AXIS     = 8;
+    private static final int      MAX_CELLS_PER_AXIS     = 1024;
+    private static final byte     OUTSIDE                = 0;
+    private static final byte     INSIDE                 = 1;
+    private static final byte     BOUNDARY               = 2;
+    private        final int      noOfPoints;
+    private        final double[] pointsX;
+    private        final double[] pointsY;
+    private        final double[] slopes;     // dx/dy of the edge from point[i - 1] to point[i], 0 for horizontal edges
+    private        final double   minX;
+    private        final double   minY;
+    private        final double   maxX;
+    private        final double   maxY;
+    private        final int      gridThreshold;
+    private volatile     Grid     grid;
+
+
+    // ******************** Constructors **************************************
+    public PolygonGeometry(final List<Point> points) {
+        this(points, DEFAULT_GRID_THRESHOLD);
+    }
+    public PolygonGeometry(final List<Point> points, final int gridThreshold) {
+        final int      size = points.size();
+        final double[] xs   = new double[size];
+        final double[] ys   = new double[size];
+        for (int i = 0 ; i < size ; i++) {
+            final Point point = points.get(i);
+            xs[i] = point.getX();
+            ys[i] = point.getY();
+        }
+        this.noOfPoints    = size;
+        this.pointsX       = xs;
+        this.pointsY       = ys;
+        this.slopes        = new double[size];
+        this.gridThreshold = gridThreshold;
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0, j = size - 1 ; i < size ; j = i++) {
+            final double deltaY = ys[j] - ys[i];
+            slopes[i] = Double.compare(deltaY, 0.0) == 0 ? 0 : (xs[j] - xs[i]) / deltaY;
+            if (xs[i] < minX) { minX = xs[i]; }
+            if (xs[i] > maxX) { maxX = xs[i]; }
+            if (ys[i] < minY) { minY = ys[i]; }
+            if (ys[i] > maxY) { maxY = ys[i]; }
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+
+    // ******************** Methods *******************************************
+    public int getNoOfPoints() { return noOfPoints; }
+
+    @Override public double getMinX() { return minX; }
+    @Override public double getMinY() { return minY; }
+    @Override public double getMaxX() { return maxX; }
+    @Override public double getMaxY() { return maxY; }
+
+    public int getGridThreshold() { return gridThreshold; }
+
+    // Direct access for compiled fence sets, the arrays must not be modified
+    double[] getPointsX() { return pointsX; }
+    double[] getPointsY() { return pointsY; }
+    double[] getSlopes() { return slopes; }
+
+    @Override public boolean isEmpty() { return noOfPoints < 3; }
+
+    @Override public boolean isInBounds(final double x, final double y) { return x >= minX && x <= maxX && y >= minY && y <= maxY; }
+
+    @Override public boolean contains(final double x, final double y) {
+        if (!isInBounds(x, y)) { return false; }
+        final Grid grid = getGrid();
+        return null == grid ? rayCast(x, y) : grid.contains(x, y);
+    }
+
+    @Override public int contains(final double[] xs, final double[] ys, final int noOfPositions, final long[] result) {
+        Helper.checkBatch(xs, ys, noOfPositions, result);
+        final double[] pxs        = pointsX;
+        final double[] pys        = pointsY;
+        final double[] ms         = slopes;
+        final Grid     grid       = getGrid();
+        int            noOfInside = 0;
+        for (int p = 0 ; p < noOfPositions ; p++) {
+            final double x = xs[p];
+            final double y = ys[p];
+            if (x < minX || x > maxX || y < minY || y > maxY) { continue; }
+            final boolean inside;
+            if (null == grid) {
+                boolean crossed = false;
+                for (int i = 0, j = noOfPoints - 1 ; i < noOfPoints ; j = i++) {
+                    if (((pys[i] > y) != (pys[j] > y)) && (x < ms[i] * (y - pys[i]) + pxs[i])) {
+                        crossed = !crossed;
+                    }
+                }
+                inside = crossed;
+            } else {
+                inside = grid.contains(x, y);
+            }
+            if (inside) {
+                result[p >>> 6] |= 1L << p;
+                noOfInside++;
+            }
+        }
+        return noOfInside;
+    }
+
+    @Override public Containment classify(final double minX, final double minY, final double maxX, final double maxY) {
+        if (maxX < this.minX || minX > this.maxX || maxY < this.minY || minY > this.maxY) { return Containment.OUTSIDE; }
+        for (int i = 0, j = noOfPoints - 1 ; i < noOfPoints ; j = i++) {
+            if (Math.max(pointsX[i], pointsX[j]) < minX || Math.min(pointsX[i], pointsX[j]) > maxX ||
+                Math.max(pointsY[i], pointsY[j]) < minY || Math.min(pointsY[i], pointsY[j]) > maxY) { continue; }
+            if (Helper.isLineInRectangle(pointsX[j], pointsY[j], pointsX[i], pointsY[i], minX, minY, maxX, maxY)) { return Containment.BOUNDARY; }
+        }
+        return contains((minX + maxX) * 0.5, (minY + maxY) * 0.5) ? Containment.INSIDE : Containment.OUTSIDE;
+    }
+
+    // Equirectangular projection around the position, precise enough for the distances within a venue
+    @Override public double distanceToBoundaryInMeter(final double x, final double y) {
+        if (0 == noOfPoints) { return Double.POSITIVE_INFINITY; }
+        final double scaleX      = Helper.METER_PER_DEGREE;
+        final double scaleY      = Helper.METER_PER_DEGREE * Math.cos(Math.toRadians(x));
+        double       minDistance = Double.POSITIVE_INFINITY;
+        for (int i = 0, j = noOfPoints - 1 ; i < noOfPoints ; j = i++) {
+            final double ax            = (pointsX[j] - x) * scaleX;
+            final double ay            = (pointsY[j] - y) * scaleY;
+            final double bx            = (pointsX[i] - x) * scaleX;
+            final double by            = (pointsY[i] - y) * scaleY;
+            final double deltaX        = bx - ax;
+            final double deltaY        = by - ay;
+            final double lengthSquared = deltaX * deltaX + deltaY * deltaY;
+            final double t             = lengthSquared > 0 ? Helper.clamp(0.0, 1.0, -(ax * deltaX + ay * deltaY) / lengthSquared) : 0;
+            final double nearestX      = ax + t * deltaX;
+            final double nearestY      = ay + t * deltaY;
+            final double distance      = nearestX * nearestX + nearestY * nearestY;
+            if (distance < minDistance) { minDistance = distance; }
+        }
+        return Math.sqrt(minDistance);
+    }
+
+    private boolean rayCast(final double x, final double y) {
+        final double[] xs     = pointsX;
+        final double[] ys     = pointsY;
+        final double[] ms     = slopes;
+        boolean        inside = false;
+        for (int i = 0, j = noOfPoints - 1 ; i < noOfPoints ; j = i++) {
+            if (((ys[i] > y) != (ys[j] > y)) && (x < ms[i] * (y - ys[i]) + xs[i])) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    private Grid getGrid() {
+        if (noOfPoints < gridThreshold || Double.compare(maxX, minX) <= 0 || Double.compare(maxY, minY) <= 0) { return null; }
+        Grid g = grid;
+        if (null == g) {
+            // Building the grid twice in a race does no harm, both grids are equal
+            g    = new Grid();
+            grid = g;
+        }
+        return g;
+    }
+
+
+    // ******************** Inner Classes *************************************
+    private final class Grid {
+        private final int    cols;
+        private final int    rows;
+        private final double cellWidth;
+        private final double cellHeight;
+        private final byte[] cells;      // State of the cell at col + row * cols
+        private final int[]  slabStart;  // Edges of row r are slabEdges[slabStart[r]] until slabEdges[slabStart[r + 1] - 1]
+        private final int[]  slabEdges;
+
+
+        // ******************** Constructors **********************************
+        Grid() {
+            final int cellsPerAxis = Helper.clamp(MIN_CELLS_PER_AXIS, MAX_CELLS_PER_AXIS, (int) Math.ceil(2 * Math.sqrt(noOfPoints)));
+            cols       = cellsPerAxis;
+            rows       = cellsPerAxis;
+            cellWidth  = (maxX - minX) / cols;
+            cellHeight = (maxY - minY) / rows;
+            cells      = new byte[cols * rows];
+
+            // Horizontal slabs, an edge belongs to every row its y range overlaps
+            final int[] edgesPerRow = new int[rows];
+            for (int i = 0, j = noOfPoints - 1 ; i < noOfPoints ; j = i++) {
+                for (int row = row(Math.min(pointsY[i], pointsY[j])), lastRow = row(Math.max(pointsY[i], pointsY[j])) ; row <= lastRow ; row++) { edgesPerRow[row]++; }
+            }
+            slabStart = new int[rows + 1];
+            for (int row = 0 ; row < rows ; row++) { slabStart[row + 1] = slabStart[row] + edgesPerRow[row]; }
+            slabEdges = new int[slabStart[rows]];
+            final int[] fill = new int[rows];
+            for (int i = 0, j = noOfPoints - 1 ; i < noOfPoints ; j = i++) {
+                for (int row = row(Math.min(pointsY[i], pointsY[j])), lastRow = row(Math.max(pointsY[i], pointsY[j])) ; row <= lastRow ; row++) {
+                    slabEdges[slabStart[row] + fill[row]++] = i;
+                }
+            }
+
+            // Every cell that is touched by an edge is a boundary cell, the cells are slightly enlarged to be safe against rounding
+            final double marginX = cellWidth * 1e-6;
+            final double marginY = cellHeight * 1e-6;
+            for (int i = 0, j = noOfPoints - 1 ; i < noOfPoints ; j = i++) {
+                final int firstCol = col(Math.min(pointsX[i], pointsX[j]) - marginX);
+                final int lastCol  = col(Math.max(pointsX[i], pointsX[j]) + marginX);
+                final int firstRow = row(Math.min(pointsY[i], pointsY[j]) - marginY);
+                final int lastRow  = row(Math.max(pointsY[i], pointsY[j]) + marginY);
+                for (int row = firstRow ; row <= lastRow ; row++) {
+                    for (int col = firstCol ; col <= lastCol ; col++) {
+                        final int cell = col + row * cols;
+                        if (BOUNDARY == cells[cell]) { continue; }
+                        final double cellMinX = minX + col * cellWidth;
+                        final double cellMinY = minY + row * cellHeight;
+                        if (Helper.isLineInRectangle(pointsX[j], pointsY[j], pointsX[i], pointsY[i],
+                                                     cellMinX - marginX, cellMinY - marginY,
+                                                     cellMinX + cellWidth + marginX, cellMinY + cellHeight + marginY)) {
+                            cells[cell] = BOUNDARY;
+                        }
+                    }
+                }
+            }
+
+            // All other cells are completely inside or outside, the center decides
+            for (int row = 0 ; row < rows ; row++) {
+                final double centerY = minY + (row + 0.5) * cellHeight;
+                for (int col = 0 ; col < cols ; col++) {
+                    final int cell = col + row * cols;
+                    if (BOUNDARY == cells[cell]) { continue; }
+                    cells[cell] = slabContains(minX + (col + 0.5) * cellWidth, centerY, row) ? INSIDE : OUTSIDE;
+                }
+            }
+        }
+
+
+        // ******************** Methods ***************************************
+        boolean contains(final double x, final double y) {
+            final int row = row(y);
+            switch (cells[col(x) + row * cols]) {
+                case INSIDE : return true;
+                case OUTSIDE: return false;
+                default     : return slabContains(x, y, row);
+            }
+        }
+
+        private boolean slabContains(final double x, final double y, final int row) {
+            final double[] xs     = pointsX;
+            final double[] ys     = pointsY;
+            final double[] ms     = slopes;
+            boolean        inside = false;
+            for (int k = slabStart[row], end = slabStart[row + 1] ; k < end ; k++) {
+                final int i = slabEdges[k];
+                final int j = 0 == i ? noOfPoints - 1 : i - 1;
+                if (((ys[i] > y) != (ys[j] > y)) && (x < ms[i] * (y - ys[i]) + xs[i])) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+
+        private int col(final double x) { return Helper.clamp(0, cols - 1, (int) ((x - minX) / cellWidth)); }
+
+        private int row(final double y) { return Helper.clamp(0, rows - 1, (int) ((y - minY) / cellHeight)); }
+    }
+}
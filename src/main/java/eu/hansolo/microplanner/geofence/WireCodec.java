@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.geofence.GeoFenceEvent.GeoFenceEventType;
+import eu.hansolo.microplanner.location.Location;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+
+/**
+ * Binary codec for Locations and GeoFenceEvents, one message per call.
+ * Every message starts with a byte that contains the version in the upper
+ * and the type in the lower 4 bits. Names of objects and fences are sent
+ * once with an id and afterwards only as id, so the codec is meant for one
+ * ordered stream, e.g. a socket, and the encoder and decoder of a stream
+ * must be reset together.
+ * Location message:
+ *   name          : varint (id << 1), or varint (id << 1 | 1) followed by varint length and UTF-8 bytes on first use
+ *   flags         : byte (ALTITUDE, ACCURACY, INFO, TIMESTAMP)
+ *   latitude      : int, 1e-7 degrees (about 1 cm)
+ *   longitude     : int, 1e-7 degrees
+ *   timestamp     : zigzag varint, epoch millis (if TIMESTAMP is set, otherwise null)
+ *   altitude      : float, m (if ALTITUDE is set, otherwise 0)
+ *   accuracy      : float, m (if ACCURACY is set, otherwise 20)
+ *   info          : varint length and UTF-8 bytes (if INFO is set, otherwise empty)
+ * GeoFenceEvent message:
+ *   fence name    : like the name of the location
+ *   event type    : byte
+ *   location      : the Location message without the first byte
+ * A fix of a named object typically needs about 18 bytes.
+ * New names only get their ids when the whole message has been written or
+ * read. If a message does not fit into the buffer or is incomplete, e.g. a
+ * BufferOverflowException or BufferUnderflowException, the position of the
+ * buffer and the names of the codec stay unchanged, so the same message can
+ * be encoded again into a larger buffer or decoded again when more bytes
+ * have been received.
+ * The codec is not thread safe.
+ */
+public class WireCodec {
+    public  static final int                      VERSION             = 1;
+    public  static final int                      TYPE_LOCATION       = 1;
+    public  static final int                      TYPE_GEOFENCE_EVENT = 2;
+    private static final double                   SCALE               = 10_000_000;   // 1e-7 degrees
+    private static final int                      ALTITUDE            = 1;
+    private static final int                      ACCURACY            = 1 << 1;
+    private static final int                      INFO                = 1 << 2;
+    private static final int                      TIMESTAMP           = 1 << 3;
+    private static final double                   DEFAULT_ACCURACY    = 20;
+    private final        Map<String, Integer>     encoderIds;
+    private final        List<String>             newEncoderNames;   // Names that are new in the message that is written
+    private final        List<String>             decoderNames;
+    private final        List<String>             newDecoderNames;   // Names that are new in the message that is read
+    private final        Function<String, Object> fenceResolver;
+    private              boolean                  messageRead;       // True when the message has been read, later exceptions come from observers of the location
+
+
+    // ******************** Constructors **************************************
+    public WireCodec() {
+        this(name -> name);
+    }
+    /**
+     * Creates a codec that uses the given function to find the fence of a
+     * decoded GeoFenceEvent by its name, the result will be the source of
+     * the event.
+     * @param fenceResolver Returns the source of the event for the fence name
+     */
+    public WireCodec(final Function<String, Object> fenceResolver) {
+        if (null == fenceResolver) { throw new IllegalArgumentException("Fence resolver must not be null"); }
+        this.encoderIds      = new HashMap<>();
+        this.newEncoderNames = new ArrayList<>(2);
+        this.decoderNames    = new ArrayList<>();
+        this.newDecoderNames = new ArrayList<>(2);
+        this.fenceResolver   = fenceResolver;
+    }
+
+
+    // ******************** Methods *******************************************
+    /**
+     * Forgets all names, must be called on both sides of a stream, e.g. after a reconnect.
+     */
+    public void reset() {
+        encoderIds.clear();
+        newEncoderNames.clear();
+        decoderNames.clear();
+        newDecoderNames.clear();
+    }
+
+    /**
+     * Returns the type of the next message in the buffer without consuming it.
+     * @param buffer The buffer with the message at its position
+     * @return TYPE_LOCATION or TYPE_GEOFENCE_EVENT
+     */
+    public static int getType(final ByteBuffer buffer) { return buffer.get(buffer.position()) & 0x0F; }
+
+    public void encode(final Location location, final ByteBuffer buffer) {
+        final int start = buffer.position();
+        try {
+            buffer.put((byte) (VERSION << 4 | TYPE_LOCATION));
+            writeLocation(location, buffer);
+        } catch (RuntimeException e) {
+            newEncoderNames.clear();
+            buffer.position(start);
+            throw e;
+        }
+        commitEncoderNames();
+    }
+    public void encode(final GeoFenceEvent event, final ByteBuffer buffer) {
+        final Object source = event.getSource();
+        final int    start  = buffer.position();
+        try {
+            buffer.put((byte) (VERSION << 4 | TYPE_GEOFENCE_EVENT));
+            writeName(source instanceof GeoFence ? ((GeoFence) source).getName() : String.valueOf(source), buffer);
+            buffer.put((byte) event.getType().ordinal());
+            writeLocation(event.getLocation(), buffer);
+        } catch (RuntimeException e) {
+            newEncoderNames.clear();
+            buffer.position(start);
+            throw e;
+        }
+        commitEncoderNames();
+    }
+
+    public Location decodeLocation(final ByteBuffer buffer) {
+        final Location location = new Location(0, 0, 0, null, "");
+        decodeLocation(buffer, location);
+        return location;
+    }
+    /**
+     * Decodes a Location message into the given location, it fires one
+     * LOCATION_CHANGED event like set().
+     * @param buffer   The buffer with the message at its position
+     * @param location The location that will be updated
+     */
+    public void decodeLocation(final ByteBuffer buffer, final Location location) {
+        final int start = buffer.position();
+        messageRead = false;
+        try {
+            readHeader(buffer, TYPE_LOCATION);
+            readLocation(buffer, location);
+        } catch (RuntimeException e) {
+            if (!messageRead) {
+                newDecoderNames.clear();
+                buffer.position(start);
+            }
+            throw e;
+        }
+    }
+
+    public GeoFenceEvent decodeGeoFenceEvent(final ByteBuffer buffer) {
+        final int                 start    = buffer.position();
+        final Location            location = new Location(0, 0, 0, null, "");
+        final String              fenceName;
+        final int                 ordinal;
+        final GeoFenceEventType[] types    = GeoFenceEventType.values();
+        messageRead = false;
+        try {
+            readHeader(buffer, TYPE_GEOFENCE_EVENT);
+            fenceName = readName(buffer);
+            ordinal   = buffer.get();
+            if (ordinal < 0 || ordinal >= types.length) { throw new IllegalArgumentException("Unknown event type " + ordinal); }
+            readLocation(buffer, location);
+        } catch (RuntimeException e) {
+            if (!messageRead) {
+                newDecoderNames.clear();
+                buffer.position(start);
+            }
+            throw e;
+        }
+        return new GeoFenceEvent(fenceResolver.apply(fenceName), location, types[ordinal]);
+    }
+
+    private void writeLocation(final Location location, final ByteBuffer buffer) {
+        final String  info      = location.getInfo();
+        final Instant timestamp = location.getTimestamp();
+        final double  altitude  = location.getAltitude();
+        final double  accuracy  = location.getAccuracy();
+        int flags = 0;
+        if (0 != altitude)                   { flags |= ALTITUDE; }
+        if (DEFAULT_ACCURACY != accuracy)    { flags |= ACCURACY; }
+        if (null != info && !info.isEmpty()) { flags |= INFO; }
+        if (null != timestamp)               { flags |= TIMESTAMP; }
+        writeName(location.getName(), buffer);
+        buffer.put((byte) flags);
+        buffer.putInt((int) Math.round(location.getLatitude() * SCALE));
+        buffer.putInt((int) Math.round(location.getLongitude() * SCALE));
+        if (0 != (flags & TIMESTAMP)) {
+            final long millis = timestamp.toEpochMilli();
+            writeVarLong((millis << 1) ^ (millis >> 63), buffer);
+        }
+        if (0 != (flags & ALTITUDE)) { buffer.putFloat((float) altitude); }
+        if (0 != (flags & ACCURACY)) { buffer.putFloat((float) accuracy); }
+        if (0 != (flags & INFO))     { writeString(info, buffer); }
+    }
+
+    private void readLocation(final ByteBuffer buffer, final Location location) {
+        final String  name      = readName(buffer);
+        final int     flags     = buffer.get();
+        final double  latitude  = buffer.getInt() / SCALE;
+        final double  longitude = buffer.getInt() / SCALE;
+        final Instant timestamp = 0 != (flags & TIMESTAMP) ? readTimestamp(buffer) : null;
+        final double  altitude  = 0 != (flags & ALTITUDE) ? buffer.getFloat() : 0;
+        final double  accuracy  = 0 != (flags & ACCURACY) ? buffer.getFloat() : DEFAULT_ACCURACY;
+        final String  info      = 0 != (flags & INFO) ? readString(buffer) : "";
+        // The whole message has been read
+        decoderNames.addAll(newDecoderNames);
+        newDecoderNames.clear();
+        messageRead = true;
+        if (!name.equals(location.getName())) { location.setName(name); }
+        location.set(latitude, longitude, altitude, timestamp, accuracy, info);
+    }
+
+    private static Instant readTimestamp(final ByteBuffer buffer) {
+        final long zigzag = readVarLong(buffer);
+        return Instant.ofEpochMilli((zigzag >>> 1) ^ -(zigzag & 1));
+    }
+
+    private void writeName(final String name, final ByteBuffer buffer) {
+        final String  key = null == name ? "" : name;
+        Integer       id  = encoderIds.get(key);
+        if (null == id && newEncoderNames.contains(key)) { id = encoderIds.size() + newEncoderNames.indexOf(key); }
+        if (null == id) {
+            final int newId = encoderIds.size() + newEncoderNames.size();
+            newEncoderNames.add(key);
+            writeVarLong((long) newId << 1 | 1, buffer);
+            writeString(key, buffer);
+        } else {
+            writeVarLong((long) id << 1, buffer);
+        }
+    }
+
+    private void commitEncoderNames() {
+        for (String name : newEncoderNames) { encoderIds.put(name, encoderIds.size()); }
+        newEncoderNames.clear();
+    }
+
+    private String readName(final ByteBuffer buffer) {
+        final long value   = readVarLong(buffer);
+        final int  id      = (int) (value >>> 1);
+        final int  noOfIds = decoderNames.size() + newDecoderNames.size();
+        if (0 != (value & 1)) {
+            if (id != noOfIds) { throw new IllegalArgumentException("Name id " + id + " is out of order, expected " + noOfIds); }
+            newDecoderNames.add(readString(buffer));
+        } else if (id >= noOfIds) {
+            throw new IllegalArgumentException("Unknown name id " + id);
+        }
+        return id < decoderNames.size() ? decoderNames.get(id) : newDecoderNames.get(id - decoderNames.size());
+    }
+
+    private static void readHeader(final ByteBuffer buffer, final int type) {
+        final int header = buffer.get() & 0xFF;
+        if (header >>> 4 != VERSION) { throw new IllegalArgumentException("Unsupported version " + (header >>> 4)); }
+        if ((header & 0x0F) != type) { throw new IllegalArgumentException("Expected message of type " + type + " but found " + (header & 0x0F)); }
+    }
+
+    private static void writeString(final String text, final ByteBuffer buffer) {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length, buffer);
+        buffer.put(bytes);
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final int length = (int) readVarLong(buffer);
+        if (length < 0 || length > buffer.remaining()) { throw new IllegalArgumentException("Invalid string length " + length); }
+        final String text;
+        if (buffer.hasArray()) {
+            text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            final byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            text = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    private static void writeVarLong(final long value, final ByteBuffer buffer) {
+        long rest = value;
+        while ((rest & ~0x7FL) != 0) {
+            buffer.put((byte) ((rest & 0x7F) | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    private static long readVarLong(final ByteBuffer buffer) {
+        long value = 0;
+        int  shift = 0;
+        byte b;
+        do {
+            if (shift > 63) { throw new IllegalArgumentException("Invalid varint"); }
+            b      = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
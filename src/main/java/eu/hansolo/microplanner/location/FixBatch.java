@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.location;
+
+import eu.hansolo.microplanner.tools.Helper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+
+/**
+ * Batch of position fixes in primitive arrays as it is filled by the
+ * FixReader. The names are kept as ranges of the bytes of the input and
+ * will only be decoded when getName() is called.
+ * The reader reuses the batch, so it is only valid until the consumer returns.
+ * A batch with an own buffer for the names can be filled with fixes of other
+ * batches to keep them beyond that.
+ */
+public class FixBatch {
+    private final double[]   latitudes;
+    private final double[]   longitudes;
+    private final long[]     timestamps;    // epoch millis
+    private final int[]      nameOffsets;
+    private final int[]      nameLengths;
+    private final boolean[]  nameEscaped;   // Name contains json escape sequences
+    private       ByteBuffer buffer;
+    private       int        nameEnd;       // End of the names that have been copied into an own buffer
+    private       int        size;
+
+
+    // ******************** Constructors **************************************
+    public FixBatch(final int capacity) {
+        if (capacity < 1) { throw new IllegalArgumentException("Capacity must be at least 1"); }
+        latitudes   = new double[capacity];
+        longitudes  = new double[capacity];
+        timestamps  = new long[capacity];
+        nameOffsets = new int[capacity];
+        nameLengths = new int[capacity];
+        nameEscaped = new boolean[capacity];
+    }
+    /**
+     * Creates a batch with an own buffer for the names that is filled by add().
+     * @param capacity     The maximum number of fixes
+     * @param nameCapacity The maximum number of bytes of all names
+     */
+    public FixBatch(final int capacity, final int nameCapacity) {
+        this(capacity);
+        if (nameCapacity < 0) { throw new IllegalArgumentException("Name capacity must not be negative"); }
+        buffer = ByteBuffer.allocate(nameCapacity);
+    }
+
+
+    // ******************** Methods *******************************************
+    public int size() { return size; }
+
+    public int getCapacity() { return latitudes.length; }
+
+    public boolean isFull() { return size == latitudes.length; }
+
+    public double getLatitude(final int index) { return latitudes[index]; }
+
+    public double getLongitude(final int index) { return longitudes[index]; }
+
+    public long getTimestamp(final int index) { return timestamps[index]; }
+
+    /**
+     * Returns the array with the latitudes, only the first size() elements are valid.
+     * @return The array with the latitudes
+     */
+    public double[] getLatitudes() { return latitudes; }
+
+    /**
+     * Returns the array with the longitudes, only the first size() elements are valid.
+     * @return The array with the longitudes
+     */
+    public double[] getLongitudes() { return longitudes; }
+
+    /**
+     * Returns the array with the timestamps in epoch millis, only the first size() elements are valid.
+     * @return The array with the timestamps
+     */
+    public long[] getTimestamps() { return timestamps; }
+
+    public String getName(final int index) {
+        final byte[] bytes = new byte[nameLengths[index]];
+        for (int i = 0 ; i < bytes.length ; i++) { bytes[i] = buffer.get(nameOffsets[index] + i); }
+        return nameEscaped[index] ? unescape(bytes) : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the number of bytes of the name in the input.
+     * @param index The index of the fix
+     * @return The number of bytes of the name
+     */
+    public int getNameLength(final int index) { return nameLengths[index]; }
+
+    /**
+     * Returns Helper.hashUtf8() of the name without decoding it, only names
+     * with escape sequences are decoded.
+     * @param index The index of the fix
+     * @return The hash of the UTF-8 bytes of the name
+     */
+    public int getNameHash(final int index) {
+        return nameEscaped[index] ? Helper.hashUtf8(getName(index)) : Helper.hashUtf8(buffer, nameOffsets[index], nameLengths[index]);
+    }
+
+    /**
+     * Returns true if the name of the fix has the given UTF-8 bytes, only names
+     * with escape sequences are decoded.
+     * @param index The index of the fix
+     * @param name  The UTF-8 bytes of the name
+     * @return True if the fix has the given name
+     */
+    public boolean isName(final int index, final byte[] name) {
+        if (nameEscaped[index]) { return Arrays.equals(getName(index).getBytes(StandardCharsets.UTF_8), name); }
+        if (nameLengths[index] != name.length) { return false; }
+        final int offset = nameOffsets[index];
+        for (int i = 0 ; i < name.length ; i++) {
+            if (buffer.get(offset + i) != name[i]) { return false; }
+        }
+        return true;
+    }
+
+    public Location getLocation(final int index) {
+        return new Location(latitudes[index], longitudes[index], 0, Instant.ofEpochMilli(timestamps[index]), getName(index));
+    }
+
+    /**
+     * Copies the fix with the given index of the given batch into this batch,
+     * that needs an own buffer for the names.
+     * @param batch The batch with the fix
+     * @param index The index of the fix in the given batch
+     */
+    public void add(final FixBatch batch, final int index) {
+        if (null == buffer || buffer.isReadOnly()) { throw new IllegalArgumentException("Batch has no own buffer for the names"); }
+        final int length = batch.nameLengths[index];
+        if (isFull()) { throw new IllegalArgumentException("Batch is full"); }
+        if (nameEnd + length > buffer.capacity()) { throw new IllegalArgumentException("Name does not fit into the batch"); }
+        final int offset = batch.nameOffsets[index];
+        for (int i = 0 ; i < length ; i++) { buffer.put(nameEnd + i, batch.buffer.get(offset + i)); }
+        add(nameEnd, length, batch.nameEscaped[index], batch.latitudes[index], batch.longitudes[index], batch.timestamps[index]);
+        nameEnd += length;
+    }
+
+    void clear(final ByteBuffer buffer) {
+        this.buffer  = buffer;
+        this.nameEnd = 0;
+        this.size    = 0;
+    }
+
+    void add(final int nameOffset, final int nameLength, final boolean escaped, final double latitude, final double longitude, final long timestamp) {
+        nameOffsets[size] = nameOffset;
+        nameLengths[size] = nameLength;
+        nameEscaped[size] = escaped;
+        latitudes[size]   = latitude;
+        longitudes[size]  = longitude;
+        timestamps[size]  = timestamp;
+        size++;
+    }
+
+    private static String unescape(final byte[] bytes) {
+        final String        escaped = new String(bytes, StandardCharsets.UTF_8);
+        final StringBuilder result  = new StringBuilder(escaped.length());
+        for (int i = 0 ; i < escaped.length() ; i++) {
+            final char c = escaped.charAt(i);
+            if ('\\' != c || i + 1 == escaped.length()) {
+                result.append(c);
+                continue;
+            }
+            final char next = escaped.charAt(++i);
+            switch(next) {
+                case 'n': result.append('\n'); break;
+                case 't': result.append('\t'); break;
+                case 'r': result.append('\r'); break;
+                case 'b': result.append('\b'); break;
+                case 'f': result.append('\f'); break;
+                case 'u':
+                    if (i + 4 < escaped.length()) {
+                        result.append((char) Integer.parseInt(escaped.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    }
+                    break;
+                default : result.append(next); break;
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.location;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+
+/**
+ * Reads position fixes from NDJSON or CSV files into FixBatches.
+ * The file is memory mapped and the numbers are parsed from the mapped
+ * bytes, no String will be created per line.
+ * NDJSON lines need the keys "name", "latitude", "longitude" and
+ * "timestamp" like in Location.toString(), other keys will be ignored.
+ * CSV lines need the columns name, latitude, longitude and timestamp in
+ * this order, further columns will be ignored. A first line that cannot
+ * be parsed is treated as header.
+ * The timestamp can be given in epoch millis or ISO-8601 like 2018-05-03T10:15:30.123Z
+ * or 2018-05-03T12:15:30.123+02:00.
+ * Lines that cannot be parsed are skipped and counted.
+ */
+public class FixReader {
+    public enum Format { NDJSON, CSV }
+
+    public  static final int        DEFAULT_BATCH_SIZE = 4096;
+    private static final long       MAX_WINDOW_SIZE    = 1L << 30;
+    private static final double[]   POWERS_OF_TEN      = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+    private static final byte[]     NAME               = "name".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[]     LATITUDE           = "latitude".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[]     LONGITUDE          = "longitude".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[]     TIMESTAMP          = "timestamp".getBytes(StandardCharsets.US_ASCII);
+    private final        Path       path;
+    private final        Format     format;
+    private final        int        batchSize;
+    private final        AtomicLong noOfInvalidLines;   // Lines skipped by the last read
+
+
+    // ******************** Constructors **************************************
+    public FixReader(final Path path, final Format format) {
+        this(path, format, DEFAULT_BATCH_SIZE);
+    }
+    public FixReader(final Path path, final Format format, final int batchSize) {
+        if (null == path || null == format) { throw new IllegalArgumentException("Path and format must not be null"); }
+        if (batchSize < 1) { throw new IllegalArgumentException("Batch size must be at least 1"); }
+        this.path             = path;
+        this.format           = format;
+        this.batchSize        = batchSize;
+        this.noOfInvalidLines = new AtomicLong();
+    }
+
+
+    // ******************** Methods *******************************************
+    public Path getPath() { return path; }
+
+    public Format getFormat() { return format; }
+
+    /**
+     * Returns the number of lines that have been skipped by the last read.
+     * @return The number of skipped lines
+     */
+    public long getNoOfInvalidLines() { return noOfInvalidLines.get(); }
+
+    /**
+     * Reads the whole file in order and calls the consumer with every full
+     * batch and the last batch, e.g. with engine::evaluate.
+     * The batch is reused after the consumer returned.
+     * @param consumer Is called with every batch
+     * @return The number of fixes that have been read
+     * @throws IOException If the file cannot be read
+     */
+    public long read(final Consumer<FixBatch> consumer) throws IOException {
+        noOfInvalidLines.set(0);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel, 0, channel.size(), consumer);
+        }
+    }
+
+    /**
+     * Reads the file in the given number of parts in parallel on the common
+     * fork/join pool. The parts are split at line breaks, the batches of
+     * different parts are passed to the consumer concurrently and the order
+     * of the fixes is only kept within a part, so the consumer must be
+     * thread safe.
+     * @param consumer   Is called with every batch from several threads
+     * @param noOfParts  The number of parts the file will be split in
+     * @return The number of fixes that have been read
+     * @throws IOException If the file cannot be read
+     */
+    public long readParallel(final Consumer<FixBatch> consumer, final int noOfParts) throws IOException {
+        if (noOfParts < 1) { throw new IllegalArgumentException("Number of parts must be at least 1"); }
+        noOfInvalidLines.set(0);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long   size   = channel.size();
+            final long[] starts = new long[noOfParts + 1];
+            for (int i = 1 ; i < noOfParts ; i++) { starts[i] = Math.max(starts[i - 1], lineStart(channel, size * i / noOfParts, size)); }
+            starts[noOfParts] = size;
+            final AtomicLong noOfFixes = new AtomicLong();
+            try {
+                IntStream.range(0, noOfParts).parallel().forEach(part -> {
+                    try {
+                        noOfFixes.addAndGet(read(channel, starts[part], starts[part + 1], consumer));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return noOfFixes.get();
+        }
+    }
+
+    // Returns the position after the next line break at or behind the given position
+    private static long lineStart(final FileChannel channel, final long position, final long size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long             offset = Math.max(0, position - 1);
+        while (offset < size) {
+            buffer.clear();
+            final int read = channel.read(buffer, offset);
+            if (read <= 0) { break; }
+            for (int i = 0 ; i < read ; i++) {
+                if ('\n' == buffer.get(i)) { return offset + i + 1; }
+            }
+            offset += read;
+        }
+        return size;
+    }
+
+    private long read(final FileChannel channel, final long from, final long to, final Consumer<FixBatch> consumer) throws IOException {
+        final FixBatch batch     = new FixBatch(batchSize);
+        long           noOfFixes = 0;
+        long           position  = from;
+        boolean        firstLine = 0 == from;
+        while (position < to) {
+            final MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, position, Math.min(MAX_WINDOW_SIZE, to - position));
+            int limit = buffer.limit();
+            if (position + limit < to) {
+                // Only parse complete lines, the rest goes into the next window
+                while (limit > 0 && '\n' != buffer.get(limit - 1)) { limit--; }
+                if (0 == limit) { throw new IOException("Line at position " + position + " is longer than " + MAX_WINDOW_SIZE + " bytes"); }
+            }
+            batch.clear(buffer);
+            int lineStart = 0;
+            while (lineStart < limit) {
+                int lineEnd = lineStart;
+                while (lineEnd < limit && '\n' != buffer.get(lineEnd)) { lineEnd++; }
+                final int end = lineEnd > lineStart && '\r' == buffer.get(lineEnd - 1) ? lineEnd - 1 : lineEnd;
+                if (end > lineStart) {
+                    final boolean valid = Format.NDJSON == format ? parseJson(buffer, lineStart, end, batch) : parseCsv(buffer, lineStart, end, batch);
+                    if (!valid && !(firstLine && Format.CSV == format)) { noOfInvalidLines.incrementAndGet(); }
+                    if (batch.isFull()) {
+                        noOfFixes += batch.size();
+                        consumer.accept(batch);
+                        batch.clear(buffer);
+                    }
+                    firstLine = false;
+                }
+                lineStart = lineEnd + 1;
+            }
+            if (batch.size() > 0) {
+                noOfFixes += batch.size();
+                consumer.accept(batch);
+            }
+            position += limit;
+        }
+        return noOfFixes;
+    }
+
+    private static boolean parseJson(final ByteBuffer buffer, final int from, final int to, final FixBatch batch) {
+        int     nameOffset = -1;
+        int     nameLength = 0;
+        boolean escaped    = false;
+        double  latitude   = Double.NaN;
+        double  longitude  = Double.NaN;
+        long    timestamp  = Long.MIN_VALUE;
+        int     i          = from;
+        try {
+            while (i < to) {
+                // Key
+                while (i < to && '"' != buffer.get(i)) { i++; }
+                if (i >= to) { break; }
+                final int keyStart = ++i;
+                while (i < to && '"' != buffer.get(i)) { i++; }
+                final int keyEnd = i++;
+                while (i < to && (':' == buffer.get(i) || ' ' == buffer.get(i))) { i++; }
+                if (i >= to) { return false; }
+
+                // Value, either a string or everything up to the next comma or brace
+                final int     valueStart;
+                final int     valueEnd;
+                final boolean quoted = '"' == buffer.get(i);
+                boolean       escape = false;
+                if (quoted) {
+                    valueStart = ++i;
+                    while (i < to && '"' != buffer.get(i)) {
+                        if ('\\' == buffer.get(i)) { escape = true; i++; }
+                        i++;
+                    }
+                    valueEnd = i++;
+                } else {
+                    valueStart = i;
+                    while (i < to && ',' != buffer.get(i) && '}' != buffer.get(i)) { i++; }
+                    int end = i;
+                    while (end > valueStart && ' ' == buffer.get(end - 1)) { end--; }
+                    valueEnd = end;
+                }
+                if (equals(buffer, keyStart, keyEnd, NAME)) {
+                    nameOffset = valueStart;
+                    nameLength = valueEnd - valueStart;
+                    escaped    = escape;
+                } else if (equals(buffer, keyStart, keyEnd, LATITUDE)) {
+                    latitude = parseDouble(buffer, valueStart, valueEnd);
+                } else if (equals(buffer, keyStart, keyEnd, LONGITUDE)) {
+                    longitude = parseDouble(buffer, valueStart, valueEnd);
+                } else if (equals(buffer, keyStart, keyEnd, TIMESTAMP)) {
+                    timestamp = parseTimestamp(buffer, valueStart, valueEnd);
+                }
+                // Skip to the next key
+                while (i < to && ',' != buffer.get(i)) { i++; }
+            }
+        } catch (RuntimeException e) {
+            return false;
+        }
+        if (nameOffset < 0 || Double.isNaN(latitude) || Double.isNaN(longitude) || Long.MIN_VALUE == timestamp) { return false; }
+        batch.add(nameOffset, nameLength, escaped, latitude, longitude, timestamp);
+        return true;
+    }
+
+    private static boolean parseCsv(final ByteBuffer buffer, final int from, final int to, final FixBatch batch) {
+        try {
+            final int nameOffset;
+            final int nameLength;
+            int       i = from;
+            if ('"' == buffer.get(i)) {
+                nameOffset = ++i;
+                while (i < to && '"' != buffer.get(i)) { i++; }
+                nameLength = i - nameOffset;
+                i++;
+            } else {
+                nameOffset = i;
+                while (i < to && ',' != buffer.get(i)) { i++; }
+                nameLength = i - nameOffset;
+            }
+            int start = ++i;
+            while (i < to && ',' != buffer.get(i)) { i++; }
+            final double latitude = parseDouble(buffer, start, i);
+            start = ++i;
+            while (i < to && ',' != buffer.get(i)) { i++; }
+            final double longitude = parseDouble(buffer, start, i);
+            start = ++i;
+            while (i < to && ',' != buffer.get(i)) { i++; }
+            if (start >= to) { return false; }
+            int end = i;
+            if ('"' == buffer.get(start) && end - start > 1) { start++; end--; }
+            final long timestamp = parseTimestamp(buffer, start, end);
+            batch.add(nameOffset, nameLength, false, latitude, longitude, timestamp);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static boolean equals(final ByteBuffer buffer, final int from, final int to, final byte[] key) {
+        if (to - from != key.length) { return false; }
+        for (int i = 0 ; i < key.length ; i++) {
+            if (buffer.get(from + i) != key[i]) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Parses plain decimals with up to 15 significant digits directly, the
+     * result is the same as from Double.parseDouble() because mantissa and
+     * power of ten are exact doubles. Other numbers go the slow way.
+     */
+    static double parseDouble(final ByteBuffer buffer, final int from, final int to) {
+        final boolean negative = from < to && '-' == buffer.get(from);
+        int           i        = negative || (from < to && '+' == buffer.get(from)) ? from + 1 : from;
+        long    mantissa = 0;
+        int     digits   = 0;
+        int     scale    = 0;
+        boolean dot      = false;
+        boolean any      = false;
+        for ( ; i < to ; i++) {
+            final byte c = buffer.get(i);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) { digits++; }
+                if (dot) { scale++; }
+                any = true;
+            } else if ('.' == c && !dot) {
+                dot = true;
+            } else {
+                break;
+            }
+        }
+        if (i == to && any && digits <= 15 && scale < POWERS_OF_TEN.length) {
+            final double value = mantissa / POWERS_OF_TEN[scale];
+            return negative ? -value : value;
+        }
+        return Double.parseDouble(string(buffer, from, to));
+    }
+
+    static long parseTimestamp(final ByteBuffer buffer, final int from, final int to) {
+        if (to - from >= 20 && '-' == buffer.get(from + 4) && 'T' == buffer.get(from + 10) && 'Z' == buffer.get(to - 1)) {
+            // ISO-8601 in UTC, e.g. 2018-05-03T10:15:30.123Z
+            final int year   = parseInt(buffer, from, from + 4);
+            final int month  = parseInt(buffer, from + 5, from + 7);
+            final int day    = parseInt(buffer, from + 8, from + 10);
+            final int hour   = parseInt(buffer, from + 11, from + 13);
+            final int minute = parseInt(buffer, from + 14, from + 16);
+            final int second = parseInt(buffer, from + 17, from + 19);
+            int millis = 0;
+            if ('.' == buffer.get(from + 19)) {
+                final int fractionEnd = to - 1;
+                for (int i = from + 20, factor = 100 ; i < fractionEnd && factor > 0 ; i++, factor /= 10) {
+                    final byte c = buffer.get(i);
+                    if (c < '0' || c > '9') { throw new NumberFormatException("Invalid fraction of second"); }
+                    millis += (c - '0') * factor;
+                }
+            }
+            return ((epochDay(year, month, day) * 24 + hour) * 60 + minute) * 60_000L + second * 1000L + millis;
+        }
+        if (to - from > 10 && '-' == buffer.get(from + 4)) {
+            // ISO-8601 with an offset, e.g. 2018-05-03T12:15:30.123+02:00
+            return OffsetDateTime.parse(string(buffer, from, to)).toInstant().toEpochMilli();
+        }
+        final boolean negative = from < to && '-' == buffer.get(from);
+        int           i        = negative ? from + 1 : from;
+        long          value    = 0;
+        if (i >= to) { throw new NumberFormatException("Empty timestamp"); }
+        for ( ; i < to ; i++) {
+            final byte c = buffer.get(i);
+            if (c < '0' || c > '9') { throw new NumberFormatException("Invalid timestamp"); }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static int parseInt(final ByteBuffer buffer, final int from, final int to) {
+        int value = 0;
+        for (int i = from ; i < to ; i++) {
+            final byte c = buffer.get(i);
+            if (c < '0' || c > '9') { throw new NumberFormatException("Invalid digit"); }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    // Days since 1970-01-01 of the given date in the proleptic gregorian calendar
+    private static long epochDay(final int year, final int month, final int day) {
+        if (month < 1 || month > 12 || day < 1 || day > 31) { throw new NumberFormatException("Invalid date"); }
+        final int y   = month <= 2 ? year - 1 : year;
+        final int era = Math.floorDiv(y, 400);
+        final int yoe = y - era * 400;
+        final int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
+    }
+
+    private static String string(final ByteBuffer buffer, final int from, final int to) {
+        final byte[] bytes = new byte[to - from];
+        for (int i = 0 ; i < bytes.length ; i++) { bytes[i] = buffer.get(from + i); }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -17,13 +17,19 @@
 package eu.hansolo.microplanner.location;
 
 import eu.hansolo.microplanner.location.LocationEvent.LocationEventType;
+import eu.hansolo.microplanner.tools.Helper;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
 
@@ -57,6 +63,8 @@ public class Location {
         }
     }
 
+    public static final double      DEFAULT_ACCURACY = 20;   // m
+
     private String                  name;
 
     // Location related information
@@ -78,6 +86,10 @@ public class Location {
 
     private List<LocationObserver>  observers;
     private Consumer<LocationEvent> locationChangedConsumer;
+    private LocationEvent           locationChangedEvent;   // Immutable, so one instance is shared by all LOCATION_CHANGED events of this location
+    private volatile long           coalescingTime;   // Milliseconds in which changes are collected into one event, 0 fires every change
+    private final AtomicBoolean     eventPending;     // True while a coalesced event is scheduled
+    private volatile ScheduledExecutorService coalescingExecutor; // Fires the coalesced events, null uses the shared thread of all locations
 
 
     // ******************** Constructors **************************************
@@ -99,7 +111,7 @@ public class Location {
         this.longitude = longitude;
         this.altitude  = altitude;
         this.timestamp = timestamp;
-        accuracy       = 20;
+        accuracy       = DEFAULT_ACCURACY;
         this.info      = info;
         fence          = "";
         color          = "#000000";
@@ -108,6 +120,8 @@ public class Location {
         street         = "";
         houseNumber    = "";
         observers      = new CopyOnWriteArrayList<>();
+        coalescingTime = 0;
+        eventPending   = new AtomicBoolean(false);
     }
 
 
@@ -122,19 +136,19 @@ public class Location {
     public double getLatitude() { return latitude; }
     public void setLatitude(final double latitude) {
         this.latitude = latitude;
-        fireLocationEvent(new LocationEvent(Location.this, LocationEventType.LOCATION_CHANGED));
+        fireLocationChanged();
     }
 
     public double getLongitude() { return longitude; }
     public void setLongitude(final double longitude) {
         this.longitude = longitude;
-        fireLocationEvent(new LocationEvent(Location.this, LocationEventType.LOCATION_CHANGED));
+        fireLocationChanged();
     }
 
     public double getAltitude() { return altitude; }
     public void setAltitude(final double ALTITUDE) {
         altitude = ALTITUDE;
-        fireLocationEvent(new LocationEvent(Location.this, LocationEventType.LOCATION_CHANGED));
+        fireLocationChanged();
     }
 
     public double getAccuracy() { return accuracy; }
@@ -170,14 +184,14 @@ public class Location {
         this.latitude = latitude;
         this.longitude = longitude;
         timestamp = Instant.now();
-        fireLocationEvent(new LocationEvent(Location.this, LocationEventType.LOCATION_CHANGED));
+        fireLocationChanged();
     }
     public void set(final double latitude, final double longitude, final double altitude, final Instant timestamp) {
         this.latitude = latitude;
         this.longitude = longitude;
         this.altitude = altitude;
         this.timestamp = timestamp;
-        fireLocationEvent(new LocationEvent(Location.this, LocationEventType.LOCATION_CHANGED));
+        fireLocationChanged();
     }
     public void set(final double latitude, final double longitude, final double altitude, final Instant timestamp, final double accuracy, final String info) {
         this.latitude  = latitude;
@@ -186,7 +200,7 @@ public class Location {
         this.timestamp = timestamp;
         this.accuracy  = accuracy;
         this.info      = info;
-        fireLocationEvent(new LocationEvent(Location.this, LocationEventType.LOCATION_CHANGED));
+        fireLocationChanged();
     }
     public void set(final Location location) {
         name      = location.getName();
@@ -200,9 +214,42 @@ public class Location {
         postcode  = location.getPostcode();
         street    = location.getStreet();
         houseNumber = location.getHouseNumber();
-        fireLocationEvent(new LocationEvent(Location.this, LocationEventType.LOCATION_CHANGED));
+        fireLocationChanged();
+    }
+
+    /**
+     * Starts an update of several fields that fires only one LOCATION_CHANGED
+     * event when it is applied, e.g. location.update().latitude(lat).longitude(lon).apply()
+     * @return An update that is initialized with the current values
+     */
+    public Update update() { return new Update(); }
+
+    public Duration getCoalescingTime() { return Duration.ofMillis(coalescingTime); }
+    /**
+     * Changes within the given time are collected into one LOCATION_CHANGED event
+     * that is fired at the end of the time window with the latest values, this
+     * reduces the events of high frequency sources. Zero fires every change.
+     * The coalesced events are fired on the coalescing executor and not on the
+     * thread that changed the location. By default that is one daemon thread
+     * that is shared by all locations, so a slow observer delays the events of
+     * all other locations, see setCoalescingExecutor().
+     * @param coalescingTime The time window
+     */
+    public void setCoalescingTime(final Duration coalescingTime) {
+        if (coalescingTime.isNegative()) { throw new IllegalArgumentException("Coalescing time must not be negative"); }
+        this.coalescingTime = coalescingTime.toMillis();
     }
 
+    public ScheduledExecutorService getCoalescingExecutor() { return null == coalescingExecutor ? Scheduler.EXECUTOR : coalescingExecutor; }
+    /**
+     * Sets the executor that fires the coalesced events of this location, e.g.
+     * one executor per group of locations whose observers are slow. The executor
+     * is not shut down by the location. Null uses the daemon thread that is
+     * shared by all locations.
+     * @param executor The executor for the coalesced events or null
+     */
+    public void setCoalescingExecutor(final ScheduledExecutorService executor) { coalescingExecutor = executor; }
+
     public double getDistanceTo(final Location location) { return calcDistanceInMeter(this, location); }
 
     public boolean isWithinRangeOf(final Location location, final double meters) { return getDistanceTo(location) < meters; }
@@ -277,8 +324,33 @@ public class Location {
     public void setOnLocationChanged(final Consumer<LocationEvent> consumer) { locationChangedConsumer = consumer; }
 
 
+    // Nothing will be created if nobody listens
+    private void fireLocationChanged() {
+        if (observers.isEmpty() && null == locationChangedConsumer) { return; }
+        final long time = coalescingTime;
+        if (time <= 0) {
+            fireLocationEvent(getLocationChangedEvent());
+        } else if (eventPending.compareAndSet(false, true)) {
+            getCoalescingExecutor().schedule(() -> {
+                eventPending.set(false);
+                fireLocationEvent(getLocationChangedEvent());
+            }, time, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private LocationEvent getLocationChangedEvent() {
+        LocationEvent evt = locationChangedEvent;
+        if (null == evt) {
+            evt                  = new LocationEvent(Location.this, LocationEventType.LOCATION_CHANGED);
+            locationChangedEvent = evt;
+        }
+        return evt;
+    }
+
     public void fireLocationEvent(final LocationEvent evt) {
-        for (LocationObserver observer : observers) { observer.onLocationEvent(evt); }
+        if (!observers.isEmpty()) {
+            for (LocationObserver observer : observers) { observer.onLocationEvent(evt); }
+        }
 
         final LocationEventType type = evt.getType();
         switch(type) {
@@ -301,15 +373,15 @@ public class Location {
 
     @Override public String toString() {
         return new StringBuilder().append("{")
-                                  .append("\"name\":\"").append(name).append("\",")
-                                  .append("\"timestamp\":").append(timestamp).append(",")
+                                  .append("\"name\":\"").append(Helper.escapeJson(name)).append("\",")
+                                  .append("\"timestamp\":\"").append(timestamp).append("\",")
                                   .append("\"latitude\":").append(latitude).append(",")
                                   .append("\"longitude\":").append(longitude).append(",")
                                   .append("\"altitude\":").append(altitude).append(",")
                                   .append("\"accuracy\":").append(accuracy).append(",")
-                                  .append("\"info\":\"").append(info).append("\",")
-                                  .append("\"fence\":\"").append(fence).append("\",")
-                                  .append("\"color\":\"").append(color).append("\"")
+                                  .append("\"info\":\"").append(Helper.escapeJson(info)).append("\",")
+                                  .append("\"fence\":\"").append(Helper.escapeJson(fence)).append("\",")
+                                  .append("\"color\":\"").append(Helper.escapeJson(color)).append("\"")
                                   .append("}")
                                   .toString();
     }
@@ -326,4 +398,73 @@ public class Location {
         result = 31 * result + (int) (temp ^ (temp >>> 32));
         return result;
     }
+
+
+    // ******************** Inner Classes *************************************
+    /**
+     * Collects changes of several fields and applies them at once with one event.
+     * The fields of the location are written one after the other without
+     * synchronization, so a thread that reads the location while an update is
+     * applied on another thread can see a mix of old and new values. Readers on
+     * other threads that need a consistent position, e.g. the observers of
+     * coalesced events, have to synchronize with the writer or use a copy.
+     */
+    public class Update {
+        private double  latitude;
+        private double  longitude;
+        private double  altitude;
+        private double  accuracy;
+        private Instant timestamp;
+        private String  info;
+
+
+        // ******************** Constructors **********************************
+        private Update() {
+            latitude  = getLatitude();
+            longitude = getLongitude();
+            altitude  = getAltitude();
+            accuracy  = getAccuracy();
+            timestamp = null;
+            info      = getInfo();
+        }
+
+
+        // ******************** Methods ***************************************
+        public Update latitude(final double latitude) { this.latitude = latitude; return this; }
+
+        public Update longitude(final double longitude) { this.longitude = longitude; return this; }
+
+        public Update position(final double latitude, final double longitude) {
+            this.latitude  = latitude;
+            this.longitude = longitude;
+            return this;
+        }
+
+        public Update altitude(final double altitude) { this.altitude = altitude; return this; }
+
+        public Update accuracy(final double accuracy) { this.accuracy = accuracy; return this; }
+
+        public Update timestamp(final Instant timestamp) { this.timestamp = timestamp; return this; }
+
+        public Update info(final String info) { this.info = info; return this; }
+
+        /**
+         * Applies all changes and fires one LOCATION_CHANGED event, the timestamp
+         * will be set to now if no timestamp has been given. The changes are
+         * not applied atomically for readers on other threads.
+         */
+        public void apply() {
+            Location.this.latitude  = latitude;
+            Location.this.longitude = longitude;
+            Location.this.altitude  = altitude;
+            Location.this.accuracy  = accuracy;
+            Location.this.timestamp = null == timestamp ? Instant.now() : timestamp;
+            Location.this.info      = info;
+            fireLocationChanged();
+        }
+    }
+
+    private static class Scheduler {
+        private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(Helper.getThreadFactory("LocationEventCoalescer", true));
+    }
 }
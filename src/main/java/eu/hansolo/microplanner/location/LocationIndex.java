@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.location;
+
+import eu.hansolo.microplanner.tools.Helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * KD-tree over the positions of locations for nearest neighbour and radius
+ * queries in meters.
+ * The positions are stored as 3d points on the unit sphere, the straight
+ * distance between two such points grows with the great circle distance,
+ * so the tree returns the same order as Location.getDistanceTo() without
+ * any trouble at the date line or at the poles.
+ * The index stores the position of a location when it is added, call
+ * update() after the location moved. Removed nodes are only marked and
+ * new nodes are appended as leaves or take the place of a removed leaf,
+ * the tree will be rebuilt balanced when too many nodes are marked or
+ * the tree got too deep.
+ */
+public class LocationIndex {
+    private static final int                     MIN_REBUILD_SIZE = 1024;
+    private              double[]                xs;
+    private              double[]                ys;
+    private              double[]                zs;
+    private              int[]                   left;
+    private              int[]                   right;
+    private              byte[]                  axes;
+    private              Location[]              locations;       // null marks a removed node
+    private              int                     noOfNodes;
+    private              int                     root;
+    private              int                     maxDepth;        // Depth from which on the tree will be rebuilt
+    private final        Map<Location, Integer>  nodeOfLocation;
+
+
+    // ******************** Constructors **************************************
+    public LocationIndex() {
+        xs             = new double[16];
+        ys             = new double[16];
+        zs             = new double[16];
+        left           = new int[16];
+        right          = new int[16];
+        axes           = new byte[16];
+        locations      = new Location[16];
+        noOfNodes      = 0;
+        root           = -1;
+        maxDepth       = 32;
+        nodeOfLocation = new IdentityHashMap<>();
+    }
+
+
+    // ******************** Methods *******************************************
+    public synchronized int size() { return nodeOfLocation.size(); }
+
+    public synchronized boolean contains(final Location location) { return nodeOfLocation.containsKey(location); }
+
+    /**
+     * Adds the given location with its current position, if the location
+     * is already in the index its position will be updated.
+     * @param location The location to add
+     */
+    public synchronized void add(final Location location) {
+        if (null == location) { throw new IllegalArgumentException("Location must not be null"); }
+        final Integer node = nodeOfLocation.get(location);
+        if (null != node) { locations[node] = null; }
+        insert(location);
+        rebuildIfNeeded();
+    }
+    public synchronized void addAll(final List<Location> locations) {
+        for (Location location : locations) {
+            if (null == location) { throw new IllegalArgumentException("Location must not be null"); }
+            final Integer node = nodeOfLocation.get(location);
+            if (null != node) { this.locations[node] = null; }
+            append(location);
+        }
+        rebuild();
+    }
+
+    /**
+     * Moves the given location to its current position in the index.
+     * @param location The location that moved
+     */
+    public synchronized void update(final Location location) {
+        final Integer node = nodeOfLocation.get(location);
+        if (null == node) { throw new IllegalArgumentException("Location " + location.getName() + " is not in the index"); }
+        locations[node] = null;
+        insert(location);
+        rebuildIfNeeded();
+    }
+
+    public synchronized void remove(final Location location) {
+        final Integer node = nodeOfLocation.remove(location);
+        if (null == node) { return; }
+        locations[node] = null;
+        rebuildIfNeeded();
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(locations, 0, noOfNodes, null);
+        nodeOfLocation.clear();
+        noOfNodes = 0;
+        root      = -1;
+    }
+
+    public List<Location> getNearest(final Location location, final int k) { return getNearest(location.getLatitude(), location.getLongitude(), k); }
+    /**
+     * Returns up to k locations that are nearest to the given position
+     * ordered by their distance.
+     * @param latitude  The latitude of the position
+     * @param longitude The longitude of the position
+     * @param k         The max number of locations
+     * @return The k nearest locations, the nearest first
+     */
+    public synchronized List<Location> getNearest(final double latitude, final double longitude, final int k) {
+        if (k < 1) { throw new IllegalArgumentException("k must be at least 1"); }
+        final double   phi       = Math.toRadians(latitude);
+        final double   lambda    = Math.toRadians(longitude);
+        final double   cosPhi    = Math.cos(phi);
+        final double[] distances = new double[Math.min(k, nodeOfLocation.size())];
+        final int[]    nodes     = new int[distances.length];
+        Arrays.fill(distances, Double.MAX_VALUE);
+        final int found = nearest(root, cosPhi * Math.cos(lambda), cosPhi * Math.sin(lambda), Math.sin(phi), distances, nodes, 0, distances.length);
+        final List<Location> result = new ArrayList<>(found);
+        for (int i = 0 ; i < found ; i++) { result.add(locations[nodes[i]]); }
+        return result;
+    }
+
+    public Location getNearest(final double latitude, final double longitude) {
+        final List<Location> nearest = getNearest(latitude, longitude, 1);
+        return nearest.isEmpty() ? null : nearest.get(0);
+    }
+
+    public List<Location> getWithinRadius(final Location location, final double meters) { return getWithinRadius(location.getLatitude(), location.getLongitude(), meters); }
+    /**
+     * Returns all locations that are within the given radius around the
+     * given position, the result is not ordered.
+     * @param latitude  The latitude of the position
+     * @param longitude The longitude of the position
+     * @param meters    The radius in meters
+     * @return All locations within the radius
+     */
+    public synchronized List<Location> getWithinRadius(final double latitude, final double longitude, final double meters) {
+        if (meters < 0) { throw new IllegalArgumentException("Radius must not be negative"); }
+        final double         phi    = Math.toRadians(latitude);
+        final double         lambda = Math.toRadians(longitude);
+        final double         cosPhi = Math.cos(phi);
+        final double         angle  = Math.min(Math.PI, meters / Helper.EARTH_RADIUS);
+        final double         chord  = 2.0 * Math.sin(angle * 0.5);
+        final List<Location> result = new ArrayList<>();
+        withinRadius(root, cosPhi * Math.cos(lambda), cosPhi * Math.sin(lambda), Math.sin(phi), chord * chord, result);
+        return result;
+    }
+
+    private void insert(final Location location) {
+        if (root < 0) {
+            root = append(location);
+            return;
+        }
+        final double phi    = Math.toRadians(location.getLatitude());
+        final double lambda = Math.toRadians(location.getLongitude());
+        final double cosPhi = Math.cos(phi);
+        final double x      = cosPhi * Math.cos(lambda);
+        final double y      = cosPhi * Math.sin(lambda);
+        final double z      = Math.sin(phi);
+        int parent = root;
+        int depth  = 1;
+        while (true) {
+            // A removed leaf on the way covers the position, so it can be reused, e.g. for an object that moved a bit
+            if (null == locations[parent] && left[parent] < 0 && right[parent] < 0) {
+                set(parent, x, y, z, location);
+                return;
+            }
+            final byte    axis  = axes[parent];
+            final boolean lower = (0 == axis ? x : (1 == axis ? y : z)) < coordinate(parent, axis);
+            final int     child = lower ? left[parent] : right[parent];
+            depth++;
+            if (child < 0) {
+                final int node = append(location);
+                if (lower) { left[parent] = node; } else { right[parent] = node; }
+                axes[node] = (byte) ((axis + 1) % 3);
+                break;
+            }
+            parent = child;
+        }
+        if (depth > maxDepth) { rebuild(); }
+    }
+
+    private int append(final Location location) {
+        if (noOfNodes == locations.length) {
+            final int capacity = noOfNodes + (noOfNodes >> 1) + 1;
+            xs        = Arrays.copyOf(xs, capacity);
+            ys        = Arrays.copyOf(ys, capacity);
+            zs        = Arrays.copyOf(zs, capacity);
+            left      = Arrays.copyOf(left, capacity);
+            right     = Arrays.copyOf(right, capacity);
+            axes      = Arrays.copyOf(axes, capacity);
+            locations = Arrays.copyOf(locations, capacity);
+        }
+        final int    node   = noOfNodes++;
+        final double phi    = Math.toRadians(location.getLatitude());
+        final double lambda = Math.toRadians(location.getLongitude());
+        final double cosPhi = Math.cos(phi);
+        set(node, cosPhi * Math.cos(lambda), cosPhi * Math.sin(lambda), Math.sin(phi), location);
+        left[node]  = -1;
+        right[node] = -1;
+        axes[node]  = 0;
+        return node;
+    }
+
+    private void set(final int node, final double x, final double y, final double z, final Location location) {
+        xs[node]        = x;
+        ys[node]        = y;
+        zs[node]        = z;
+        locations[node] = location;
+        nodeOfLocation.put(location, node);
+    }
+
+    // Rebuild when more than half of the nodes are removed ones
+    private void rebuildIfNeeded() {
+        if (noOfNodes > MIN_REBUILD_SIZE && noOfNodes > 2 * nodeOfLocation.size()) { rebuild(); }
+    }
+
+    private void rebuild() {
+        // Compact the live nodes to the front of the arrays
+        int noOfLive = 0;
+        for (int node = 0 ; node < noOfNodes ; node++) {
+            final Location location = locations[node];
+            if (null == location) { continue; }
+            xs[noOfLive]        = xs[node];
+            ys[noOfLive]        = ys[node];
+            zs[noOfLive]        = zs[node];
+            locations[noOfLive] = location;
+            nodeOfLocation.put(location, noOfLive);
+            noOfLive++;
+        }
+        Arrays.fill(locations, noOfLive, noOfNodes, null);
+        noOfNodes = noOfLive;
+        maxDepth  = 2 * (32 - Integer.numberOfLeadingZeros(noOfLive)) + 16;
+
+        final int[] order = new int[noOfLive];
+        for (int i = 0 ; i < noOfLive ; i++) { order[i] = i; }
+        final int[]  newLeft  = new int[locations.length];
+        final int[]  newRight = new int[locations.length];
+        final byte[] newAxes  = new byte[locations.length];
+        root  = build(order, 0, noOfLive, newLeft, newRight, newAxes);
+        left  = newLeft;
+        right = newRight;
+        axes  = newAxes;
+    }
+
+    private int build(final int[] order, final int from, final int to, final int[] newLeft, final int[] newRight, final byte[] newAxes) {
+        if (from >= to) { return -1; }
+        // Split on the axis with the largest extent
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+        for (int i = from ; i < to ; i++) {
+            final int node = order[i];
+            minX = Math.min(minX, xs[node]); maxX = Math.max(maxX, xs[node]);
+            minY = Math.min(minY, ys[node]); maxY = Math.max(maxY, ys[node]);
+            minZ = Math.min(minZ, zs[node]); maxZ = Math.max(maxZ, zs[node]);
+        }
+        final double extentX = maxX - minX;
+        final double extentY = maxY - minY;
+        final double extentZ = maxZ - minZ;
+        final byte   axis    = extentX >= extentY && extentX >= extentZ ? (byte) 0 : (extentY >= extentZ ? (byte) 1 : (byte) 2);
+        final int    median  = (from + to) >>> 1;
+        select(order, from, to - 1, median, axis);
+        final int node = order[median];
+        newAxes[node]  = axis;
+        newLeft[node]  = build(order, from, median, newLeft, newRight, newAxes);
+        newRight[node] = build(order, median + 1, to, newLeft, newRight, newAxes);
+        return node;
+    }
+
+    // Quickselect, afterwards the nodes left of k are not greater and the nodes right of k are not smaller than the node at k
+    private void select(final int[] order, int from, int to, final int k, final byte axis) {
+        while (from < to) {
+            final double pivot = coordinate(order[(from + to) >>> 1], axis);
+            int i = from;
+            int j = to;
+            while (i <= j) {
+                while (coordinate(order[i], axis) < pivot) { i++; }
+                while (coordinate(order[j], axis) > pivot) { j--; }
+                if (i <= j) {
+                    final int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                to = j;
+            } else if (k >= i) {
+                from = i;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private double coordinate(final int node, final byte axis) {
+        switch(axis) {
+            case 0 : return xs[node];
+            case 1 : return ys[node];
+            default: return zs[node];
+        }
+    }
+
+    // Keeps the best nodes sorted by their squared chord distance, returns the number of nodes found
+    private int nearest(final int node, final double x, final double y, final double z, final double[] distances, final int[] nodes, int found, final int k) {
+        if (node < 0 || k == 0) { return found; }
+        if (null != locations[node]) {
+            final double dx       = xs[node] - x;
+            final double dy       = ys[node] - y;
+            final double dz       = zs[node] - z;
+            final double distance = dx * dx + dy * dy + dz * dz;
+            if (found < k || distance < distances[k - 1]) {
+                int i = Math.min(found, k - 1);
+                while (i > 0 && distances[i - 1] > distance) {
+                    distances[i] = distances[i - 1];
+                    nodes[i]     = nodes[i - 1];
+                    i--;
+                }
+                distances[i] = distance;
+                nodes[i]     = node;
+                if (found < k) { found++; }
+            }
+        }
+        final byte   axis  = axes[node];
+        final double delta = (0 == axis ? x : (1 == axis ? y : z)) - coordinate(node, axis);
+        final int    near  = delta < 0 ? left[node] : right[node];
+        final int    far   = delta < 0 ? right[node] : left[node];
+        found = nearest(near, x, y, z, distances, nodes, found, k);
+        if (found < k || delta * delta < distances[k - 1]) {
+            found = nearest(far, x, y, z, distances, nodes, found, k);
+        }
+        return found;
+    }
+
+    private void withinRadius(final int node, final double x, final double y, final double z, final double chordSquared, final List<Location> result) {
+        if (node < 0) { return; }
+        final Location location = locations[node];
+        if (null != location) {
+            final double dx = xs[node] - x;
+            final double dy = ys[node] - y;
+            final double dz = zs[node] - z;
+            if (dx * dx + dy * dy + dz * dz <= chordSquared) { result.add(location); }
+        }
+        final byte   axis  = axes[node];
+        final double delta = (0 == axis ? x : (1 == axis ? y : z)) - coordinate(node, axis);
+        if (delta < 0 || delta * delta <= chordSquared) { withinRadius(left[node], x, y, z, chordSquared, result); }
+        if (delta >= 0 || delta * delta <= chordSquared) { withinRadius(right[node], x, y, z, chordSquared, result); }
+    }
+}
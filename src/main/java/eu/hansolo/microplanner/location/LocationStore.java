@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.location;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+
+/**
+ * Positions of many tracked objects in primitive parallel arrays.
+ * Every object gets an int id on its first update, the id stays the same
+ * for the lifetime of the store. The names are mapped to their ids in an
+ * open addressing table of ints, so neither the positions nor the name
+ * index create an object per update.
+ * Per object the arrays need 40 bytes and the name table another 8 to 16
+ * bytes, it has 2 to 4 int slots per object of the capacity. The name
+ * String of the object comes on top of that.
+ * Views on the arrays and Location objects are only created on demand.
+ * The store is not thread safe, e.g. use one store per shard.
+ */
+public class LocationStore {
+    public  static final int      DEFAULT_CAPACITY = 1024;
+    private              String[] names;
+    private              double[] latitudes;
+    private              double[] longitudes;
+    private              float[]  altitudes;   // m
+    private              float[]  accuracies;  // m
+    private              long[]   timestamps;  // epoch millis
+    private              int[]    table;       // id + 1 of the object in the slot, 0 marks an empty slot
+    private              int      size;
+
+
+    // ******************** Constructors **************************************
+    public LocationStore() {
+        this(DEFAULT_CAPACITY);
+    }
+    public LocationStore(final int capacity) {
+        if (capacity < 1) { throw new IllegalArgumentException("Capacity must be at least 1"); }
+        names      = new String[capacity];
+        latitudes  = new double[capacity];
+        longitudes = new double[capacity];
+        altitudes  = new float[capacity];
+        accuracies = new float[capacity];
+        timestamps = new long[capacity];
+        table      = new int[tableSize(capacity)];
+        size       = 0;
+    }
+
+
+    // ******************** Methods *******************************************
+    public int size() { return size; }
+
+    /**
+     * Returns the id of the object with the given name or -1 if it is unknown.
+     * @param name The name of the object
+     * @return The id of the object or -1
+     */
+    public int getId(final String name) {
+        final int mask = table.length - 1;
+        for (int slot = hash(name) & mask ; table[slot] != 0 ; slot = (slot + 1) & mask) {
+            final int id = table[slot] - 1;
+            if (names[id].equals(name)) { return id; }
+        }
+        return -1;
+    }
+
+    public int put(final Location location) {
+        return put(location.getName(), location.getLatitude(), location.getLongitude(), location.getAltitude(), location.getAccuracy(),
+                   null == location.getTimestamp() ? 0 : location.getTimestamp().toEpochMilli());
+    }
+    /**
+     * Stores the position of the object with the given name, unknown objects get a new id.
+     * @param name        The name of the object
+     * @param latitude    The latitude
+     * @param longitude   The longitude
+     * @param altitude    The altitude in m
+     * @param accuracy    The accuracy in m
+     * @param epochMillis The timestamp of the position in epoch millis
+     * @return The id of the object
+     */
+    public int put(final String name, final double latitude, final double longitude, final double altitude, final double accuracy, final long epochMillis) {
+        if (null == name) { throw new IllegalArgumentException("Name must not be null"); }
+        int id = getId(name);
+        if (id < 0) { id = add(name); }
+        latitudes[id]  = latitude;
+        longitudes[id] = longitude;
+        altitudes[id]  = (float) altitude;
+        accuracies[id] = (float) accuracy;
+        timestamps[id] = epochMillis;
+        return id;
+    }
+
+    /**
+     * Updates latitude, longitude and timestamp of the object with the given id.
+     * @param id          The id of the object
+     * @param latitude    The latitude
+     * @param longitude   The longitude
+     * @param epochMillis The timestamp of the position in epoch millis
+     */
+    public void set(final int id, final double latitude, final double longitude, final long epochMillis) {
+        checkId(id);
+        latitudes[id]  = latitude;
+        longitudes[id] = longitude;
+        timestamps[id] = epochMillis;
+    }
+
+    public String getName(final int id) { checkId(id); return names[id]; }
+
+    public double getLatitude(final int id) { checkId(id); return latitudes[id]; }
+
+    public double getLongitude(final int id) { checkId(id); return longitudes[id]; }
+
+    public double getAltitude(final int id) { checkId(id); return altitudes[id]; }
+
+    public double getAccuracy(final int id) { checkId(id); return accuracies[id]; }
+
+    public long getTimestamp(final int id) { checkId(id); return timestamps[id]; }
+
+    /**
+     * Copies the latitudes and longitudes of the objects with the ids from
+     * 0 to size() - 1 into the given arrays, e.g. for a batch evaluation.
+     * @param latitudes  Array with at least size() elements
+     * @param longitudes Array with at least size() elements
+     */
+    public void copyPositions(final double[] latitudes, final double[] longitudes) {
+        System.arraycopy(this.latitudes, 0, latitudes, 0, size);
+        System.arraycopy(this.longitudes, 0, longitudes, 0, size);
+    }
+
+    /**
+     * Returns a read only view that reads its values from the store, it
+     * always shows the latest position of the object. The view will only
+     * be created when this method is called.
+     * @param id The id of the object
+     * @return A view on the object with the given id
+     */
+    public View getView(final int id) {
+        checkId(id);
+        return new View(this, id);
+    }
+    public View getView(final String name) {
+        final int id = getId(name);
+        return id < 0 ? null : new View(this, id);
+    }
+
+    /**
+     * Returns a new Location with the current values of the object, later
+     * updates of the store are not visible in it and vice versa.
+     * @param id The id of the object
+     * @return A copy of the object with the given id
+     */
+    public Location getLocation(final int id) {
+        checkId(id);
+        final Location location = new Location(latitudes[id], longitudes[id], altitudes[id], Instant.ofEpochMilli(timestamps[id]), names[id]);
+        location.setAccuracy(accuracies[id]);
+        return location;
+    }
+    public Location getLocation(final String name) {
+        final int id = getId(name);
+        return id < 0 ? null : getLocation(id);
+    }
+
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    private int add(final String name) {
+        if (size == names.length) { grow(); }
+        final int id   = size++;
+        final int mask = table.length - 1;
+        int       slot = hash(name) & mask;
+        while (table[slot] != 0) { slot = (slot + 1) & mask; }
+        table[slot] = id + 1;
+        names[id]   = name;
+        return id;
+    }
+
+    private void grow() {
+        final int capacity = names.length + (names.length >> 1) + 1;
+        names      = Arrays.copyOf(names, capacity);
+        latitudes  = Arrays.copyOf(latitudes, capacity);
+        longitudes = Arrays.copyOf(longitudes, capacity);
+        altitudes  = Arrays.copyOf(altitudes, capacity);
+        accuracies = Arrays.copyOf(accuracies, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        table      = new int[tableSize(capacity)];
+        final int mask = table.length - 1;
+        for (int id = 0 ; id < size ; id++) {
+            int slot = hash(names[id]) & mask;
+            while (table[slot] != 0) { slot = (slot + 1) & mask; }
+            table[slot] = id + 1;
+        }
+    }
+
+    private void checkId(final int id) {
+        if (id < 0 || id >= size) { throw new IllegalArgumentException("Id must be between 0 and " + (size - 1)); }
+    }
+
+    // Load factor of at most 0.5
+    private static int tableSize(final int capacity) { return Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1; }
+
+    private static int hash(final String name) {
+        final int hash = name.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+
+    // ******************** Inner Classes *************************************
+    /**
+     * Read only view on one object of the store, it does not copy any values.
+     */
+    public static final class View {
+        private final LocationStore store;
+        private final int           id;
+
+
+        // ******************** Constructors **********************************
+        private View(final LocationStore store, final int id) {
+            this.store = store;
+            this.id    = id;
+        }
+
+
+        // ******************** Methods ***************************************
+        public int getId() { return id; }
+
+        public String getName() { return store.names[id]; }
+
+        public double getLatitude() { return store.latitudes[id]; }
+
+        public double getLongitude() { return store.longitudes[id]; }
+
+        public double getAltitude() { return store.altitudes[id]; }
+
+        public double getAccuracy() { return store.accuracies[id]; }
+
+        public long getEpochMillis() { return store.timestamps[id]; }
+
+        public Instant getTimestamp() { return Instant.ofEpochMilli(store.timestamps[id]); }
+
+        /**
+         * @return A new Location with the current values of the object
+         */
+        public Location toLocation() { return store.getLocation(id); }
+
+        @Override public String toString() { return toLocation().toString(); }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.location;
+
+import eu.hansolo.microplanner.location.ProximityEvent.ProximityEventType;
+import eu.hansolo.microplanner.tools.GeoMath;
+import eu.hansolo.microplanner.tools.Helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+
+/**
+ * Fires an event when two of the added locations come closer than the
+ * given distance and when they move apart again.
+ * The locations are kept in a hash grid with cells of the size of the
+ * distance, so on every LOCATION_CHANGED only the 3 x 3 cells around the
+ * location have to be checked instead of all other locations.
+ * The rows of the grid follow the latitude, the number of cells per row
+ * is adjusted to the length of the row, so the cells keep their size in
+ * meters and a row wraps around at the date line.
+ * The events are fired on the thread that changed the location.
+ */
+public class ProximityEngine {
+    private final double                     distance;       // m
+    private final double                     cellSize;       // degrees of latitude
+    private final Map<Long, Cell>            cells;
+    private final Map<Location, Member>      members;
+    private final LocationObserver           locationObserver;
+    private final List<ProximityObserver>    observers;
+    private       Consumer<ProximityEvent>   enteredProximityConsumer;
+    private       Consumer<ProximityEvent>   leftProximityConsumer;
+
+
+    // ******************** Constructors **************************************
+    /**
+     * Creates an engine that fires ENTERED_PROXIMITY when two locations
+     * are closer than the given distance.
+     * @param distance The distance in meters
+     */
+    public ProximityEngine(final double distance) {
+        if (distance <= 0) { throw new IllegalArgumentException("Distance must be greater than 0"); }
+        this.distance    = distance;
+        cellSize         = Math.min(180.0, distance / Helper.METER_PER_DEGREE);
+        cells            = new HashMap<>();
+        members          = new IdentityHashMap<>();
+        locationObserver = evt -> update(evt.getLocation());
+        observers        = new CopyOnWriteArrayList<>();
+    }
+
+
+    // ******************** Methods *******************************************
+    public double getDistance() { return distance; }
+
+    public synchronized int size() { return members.size(); }
+
+    /**
+     * Adds the given location to the engine, from now on the engine
+     * follows the LOCATION_CHANGED events of the location.
+     * ENTERED_PROXIMITY events will be fired for all locations that are
+     * already within the distance.
+     * @param location The location to add
+     */
+    public void add(final Location location) {
+        if (null == location) { throw new IllegalArgumentException("Location must not be null"); }
+        final List<ProximityEvent> events = new ArrayList<>();
+        synchronized (this) {
+            if (members.containsKey(location)) { return; }
+            final Member member = new Member(location);
+            members.put(location, member);
+            move(member);
+            check(member, events);
+        }
+        location.addLocationObserver(locationObserver);
+        fire(events);
+    }
+
+    /**
+     * Removes the given location from the engine, LEFT_PROXIMITY events
+     * will be fired for all locations that have been within the distance.
+     * @param location The location to remove
+     */
+    public void remove(final Location location) {
+        final List<ProximityEvent> events = new ArrayList<>();
+        synchronized (this) {
+            final Member member = members.remove(location);
+            if (null == member) { return; }
+            member.cell.remove(member);
+            if (member.cell.isEmpty()) { cells.remove(member.key); }
+            for (Member other : member.near) {
+                other.near.remove(member);
+                events.add(new ProximityEvent(this, location, other.location, GeoMath.distance(member.latitude, member.longitude, other.latitude, other.longitude), ProximityEventType.LEFT_PROXIMITY));
+            }
+            member.near.clear();
+        }
+        location.removeLocationObserver(locationObserver);
+        fire(events);
+    }
+
+    /**
+     * Checks the given location against its neighbours, this is called
+     * automatically on every LOCATION_CHANGED event of the location.
+     * @param location The location that moved
+     */
+    public void update(final Location location) {
+        final List<ProximityEvent> events = new ArrayList<>();
+        synchronized (this) {
+            final Member member = members.get(location);
+            if (null == member) { return; }
+            move(member);
+            check(member, events);
+        }
+        fire(events);
+    }
+
+    /**
+     * Returns the locations that are within the distance of the given location.
+     * @param location A location of the engine
+     * @return The locations within the distance
+     */
+    public synchronized List<Location> getLocationsInProximity(final Location location) {
+        final Member member = members.get(location);
+        if (null == member) { return Collections.emptyList(); }
+        final List<Location> locations = new ArrayList<>(member.near.size());
+        for (Member other : member.near) { locations.add(other.location); }
+        return locations;
+    }
+
+    public synchronized void clear() {
+        for (Location location : members.keySet()) { location.removeLocationObserver(locationObserver); }
+        members.clear();
+        cells.clear();
+    }
+
+    private void move(final Member member) {
+        member.latitude  = member.location.getLatitude();
+        member.longitude = member.location.getLongitude();
+        final int  row = row(member.latitude);
+        final long key = key(row, column(noOfColumns(row), member.longitude));
+        if (null != member.cell && key == member.key) { return; }
+        if (null != member.cell) {
+            member.cell.remove(member);
+            if (member.cell.isEmpty()) { cells.remove(member.key); }
+        }
+        Cell cell = cells.get(key);
+        if (null == cell) {
+            cell = new Cell();
+            cells.put(key, cell);
+        }
+        cell.add(member);
+        member.key  = key;
+        member.cell = cell;
+    }
+
+    private void check(final Member member, final List<ProximityEvent> events) {
+        // Pairs that moved apart
+        final List<Member> left = new ArrayList<>();
+        for (Member other : member.near) {
+            if (GeoMath.distance(member.latitude, member.longitude, other.latitude, other.longitude) >= distance) { left.add(other); }
+        }
+        for (Member other : left) {
+            member.near.remove(other);
+            other.near.remove(member);
+            events.add(new ProximityEvent(this, member.location, other.location, GeoMath.distance(member.latitude, member.longitude, other.latitude, other.longitude), ProximityEventType.LEFT_PROXIMITY));
+        }
+
+        // Pairs that came closer, the column range per row is taken from the widest part of the search circle
+        final int    row          = row(member.latitude);
+        final double maxLatitude  = Math.min(90.0, Math.abs(member.latitude) + cellSize);
+        final double cos          = Math.cos(Math.toRadians(maxLatitude));
+        final double deltaLon     = cos * 180.0 > cellSize ? cellSize / cos : 180.0;
+        for (int r = row - 1 ; r <= row + 1 ; r++) {
+            final int noOfColumns = noOfColumns(r);
+            final int from        = column(noOfColumns, member.longitude - deltaLon);
+            final int count       = deltaLon >= 180.0 ? noOfColumns : Math.min(noOfColumns, Math.floorMod(column(noOfColumns, member.longitude + deltaLon) - from, noOfColumns) + 1);
+            for (int c = 0 ; c < count ; c++) {
+                final Cell cell = cells.get(key(r, (from + c) % noOfColumns));
+                if (null == cell) { continue; }
+                for (int i = 0 ; i < cell.size ; i++) {
+                    final Member other = cell.members[i];
+                    if (other == member || member.near.contains(other)) { continue; }
+                    final double d = GeoMath.distance(member.latitude, member.longitude, other.latitude, other.longitude);
+                    if (d < distance) {
+                        member.near.add(other);
+                        other.near.add(member);
+                        events.add(new ProximityEvent(this, member.location, other.location, d, ProximityEventType.ENTERED_PROXIMITY));
+                    }
+                }
+            }
+        }
+    }
+
+    private int row(final double latitude) { return (int) Math.floor((latitude + 90.0) / cellSize); }
+
+    private int noOfColumns(final int row) {
+        final double latitude = Math.min(90.0, Math.abs(row * cellSize + cellSize * 0.5 - 90.0));
+        return Math.max(1, (int) (360.0 * Math.cos(Math.toRadians(latitude)) / cellSize));
+    }
+
+    private static int column(final int noOfColumns, final double longitude) {
+        return Math.floorMod((int) Math.floor((longitude + 180.0) / 360.0 * noOfColumns), noOfColumns);
+    }
+
+    private static long key(final int row, final int column) { return ((long) row << 32) | (column & 0xFFFFFFFFL); }
+
+
+    // ******************** Event handling ************************************
+    public void addProximityObserver(final ProximityObserver observer) { if (!observers.contains(observer)) { observers.add(observer); }}
+    public void removeProximityObserver(final ProximityObserver observer) { if (observers.contains(observer)) { observers.remove(observer); }}
+    public void removeAllObservers() { observers.clear(); }
+
+    public Consumer<ProximityEvent> getOnEnteredProximity() { return enteredProximityConsumer; }
+    public void setOnEnteredProximity(final Consumer<ProximityEvent> consumer) { enteredProximityConsumer = consumer; }
+
+    public Consumer<ProximityEvent> getOnLeftProximity() { return leftProximityConsumer; }
+    public void setOnLeftProximity(final Consumer<ProximityEvent> consumer) { leftProximityConsumer = consumer; }
+
+    private void fire(final List<ProximityEvent> events) {
+        for (ProximityEvent evt : events) { fireProximityEvent(evt); }
+    }
+
+    public void fireProximityEvent(final ProximityEvent evt) {
+        for (ProximityObserver observer : observers) { observer.onProximityEvent(evt); }
+        switch(evt.getType()) {
+            case ENTERED_PROXIMITY: if (null == enteredProximityConsumer) { break; } else { enteredProximityConsumer.accept(evt); break; }
+            case LEFT_PROXIMITY   : if (null == leftProximityConsumer)    { break; } else { leftProximityConsumer.accept(evt); break; }
+        }
+    }
+
+
+    // ******************** Inner Classes *************************************
+    private static class Member {
+        private final Location    location;
+        private final Set<Member> near;
+        private       double      latitude;   // Position that has been used for the last check
+        private       double      longitude;
+        private       long        key;
+        private       Cell        cell;
+        private       int         index;      // Index in the members array of the cell
+
+
+        // ******************** Constructors **********************************
+        Member(final Location location) {
+            this.location = location;
+            this.near     = Collections.newSetFromMap(new IdentityHashMap<>());
+        }
+    }
+
+    private static class Cell {
+        private Member[] members = new Member[4];
+        private int      size;
+
+
+        // ******************** Methods ***************************************
+        void add(final Member member) {
+            if (size == members.length) { members = Arrays.copyOf(members, size * 2); }
+            member.index    = size;
+            members[size++] = member;
+        }
+
+        // Moves the last member into the gap
+        void remove(final Member member) {
+            final Member last = members[--size];
+            members[member.index] = last;
+            last.index            = member.index;
+            members[size]         = null;
+        }
+
+        boolean isEmpty() { return 0 == size; }
+    }
+}
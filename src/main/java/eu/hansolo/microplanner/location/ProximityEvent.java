@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.location;
+
+
+public class ProximityEvent {
+    public enum ProximityEventType { ENTERED_PROXIMITY, LEFT_PROXIMITY }
+
+    private final ProximityEventType type;
+    private final Object             source;
+    private final Location           location;
+    private final Location           otherLocation;
+    private final double             distance;
+
+
+    // ******************** Constructors **************************************
+    public ProximityEvent(final Object source, final Location location, final Location otherLocation, final double distance, final ProximityEventType type) {
+        this.source        = source;
+        this.location      = location;
+        this.otherLocation = otherLocation;
+        this.distance      = distance;
+        this.type          = type;
+    }
+
+
+    // ******************** Methods *******************************************
+    public Object getSource() { return source; }
+
+    /**
+     * Returns the location that moved and caused the event.
+     * @return The location that moved
+     */
+    public Location getLocation() { return location; }
+
+    public Location getOtherLocation() { return otherLocation; }
+
+    /**
+     * Returns the distance in meters between both locations when the event was fired.
+     * @return The distance in meters
+     */
+    public double getDistance() { return distance; }
+
+    public ProximityEventType getType() { return type; }
+}
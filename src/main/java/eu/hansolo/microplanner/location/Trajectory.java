@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.location;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * History of the positions of one object with a fixed capacity.
+ * The fixes are stored in blocks of BLOCK_SIZE fixes, the first fix of a
+ * block is stored as is, all following fixes as zigzag varints of the
+ * differences in microdegrees (about 0.11 m) and the change of the time
+ * difference in milliseconds. A fix of an object that sends once per second
+ * and moves at walking speed needs about 3 bytes.
+ * The blocks are kept in a ring, when it is full or the oldest block is
+ * older than the max age the oldest block will be dropped as a whole, so
+ * at least the last capacity fixes are kept.
+ * The trajectory is not thread safe, e.g. synchronize on it when it is
+ * written and read from different threads.
+ */
+public class Trajectory {
+    public  static final int      BLOCK_SIZE = 64;
+    private static final double   SCALE      = 1_000_000;   // microdegrees
+    private final        int      capacity;
+    private final        long     maxAge;                   // ms
+    private final        byte[][] blocks;
+    private final        int[]    blockLatitudes;           // First fix of each block
+    private final        int[]    blockLongitudes;
+    private final        long[]   blockTimestamps;
+    private final        long[]   blockLastTimestamps;
+    private final        int[]    blockSizes;               // Number of fixes in each block
+    private final        int[]    blockLengths;             // Number of bytes used in each block
+    private              int      first;                    // Index of the oldest block
+    private              int      noOfBlocks;
+    private              long     noOfDroppedBlocks;
+    private              int      size;
+    private              int      lastLatitude;
+    private              int      lastLongitude;
+    private              long     lastTimestamp;
+    private              long     lastTimeDelta;
+
+
+    // ******************** Constructors **************************************
+    public Trajectory(final int capacity) {
+        this(capacity, null);
+    }
+    /**
+     * Creates a trajectory that keeps at least the last capacity fixes
+     * and drops fixes that are older than the given max age.
+     * @param capacity The number of fixes to keep
+     * @param maxAge   The max age of the fixes relative to the newest fix or null
+     */
+    public Trajectory(final int capacity, final Duration maxAge) {
+        if (capacity < 1) { throw new IllegalArgumentException("Capacity must be at least 1"); }
+        if (null != maxAge && maxAge.isNegative()) { throw new IllegalArgumentException("Max age must not be negative"); }
+        final int noOfSlots = (capacity + BLOCK_SIZE - 1) / BLOCK_SIZE + 1;
+        this.capacity       = capacity;
+        this.maxAge         = null == maxAge ? Long.MAX_VALUE : maxAge.toMillis();
+        blocks              = new byte[noOfSlots][];
+        blockLatitudes      = new int[noOfSlots];
+        blockLongitudes     = new int[noOfSlots];
+        blockTimestamps     = new long[noOfSlots];
+        blockLastTimestamps = new long[noOfSlots];
+        blockSizes          = new int[noOfSlots];
+        blockLengths        = new int[noOfSlots];
+    }
+
+
+    // ******************** Methods *******************************************
+    public int getCapacity() { return capacity; }
+
+    public int size() { return size; }
+
+    public boolean isEmpty() { return 0 == size; }
+
+    public long getFirstTimestamp() { return 0 == size ? 0 : blockTimestamps[first]; }
+
+    public long getLastTimestamp() { return 0 == size ? 0 : lastTimestamp; }
+
+    /**
+     * Returns the number of bytes that are used for the fixes.
+     * @return The number of bytes used for the fixes
+     */
+    public long getNoOfBytes() {
+        long noOfBytes = 0;
+        for (int i = 0 ; i < noOfBlocks ; i++) { noOfBytes += blocks[(first + i) % blocks.length].length + 32; }
+        return noOfBytes;
+    }
+
+    public boolean add(final Location location) {
+        final Instant timestamp = location.getTimestamp();
+        return add(location.getLatitude(), location.getLongitude(), null == timestamp ? System.currentTimeMillis() : timestamp.toEpochMilli());
+    }
+    /**
+     * Appends the given fix, fixes that are older than the newest fix
+     * will be ignored.
+     * @param latitude    The latitude
+     * @param longitude   The longitude
+     * @param epochMillis The timestamp of the fix in epoch millis
+     * @return True if the fix was added
+     */
+    public boolean add(final double latitude, final double longitude, final long epochMillis) {
+        if (size > 0 && epochMillis < lastTimestamp) { return false; }
+        final int lat = (int) Math.round(latitude * SCALE);
+        final int lon = (int) Math.round(longitude * SCALE);
+        final int newest;
+        if (0 == noOfBlocks || BLOCK_SIZE == blockSizes[(first + noOfBlocks - 1) % blocks.length]) {
+            newest = startBlock(lat, lon, epochMillis);
+        } else {
+            newest = (first + noOfBlocks - 1) % blocks.length;
+            final long timeDelta = epochMillis - lastTimestamp;
+            if (blockLengths[newest] + 20 > blocks[newest].length) { blocks[newest] = Arrays.copyOf(blocks[newest], blocks[newest].length * 2); }
+            int offset = blockLengths[newest];
+            offset = write(blocks[newest], offset, lat - lastLatitude);
+            offset = write(blocks[newest], offset, lon - lastLongitude);
+            offset = write(blocks[newest], offset, timeDelta - lastTimeDelta);
+            blockLengths[newest] = offset;
+            blockSizes[newest]++;
+            lastTimeDelta = timeDelta;
+        }
+        blockLastTimestamps[newest] = epochMillis;
+        lastLatitude  = lat;
+        lastLongitude = lon;
+        lastTimestamp = epochMillis;
+        size++;
+
+        // Drop blocks that only contain fixes older than max age
+        while (noOfBlocks > 1 && blockLastTimestamps[first] < epochMillis - maxAge) { dropOldestBlock(); }
+        return true;
+    }
+
+    public void clear() {
+        while (noOfBlocks > 0) { dropOldestBlock(); }
+    }
+
+    /**
+     * Returns a cursor over all fixes, the cursor can be reused by calling
+     * one of its reset() methods.
+     * @return A cursor over all fixes from the oldest to the newest
+     */
+    public Cursor cursor() { return new Cursor(); }
+    /**
+     * Returns a cursor over the fixes with a timestamp between from and to.
+     * @param from Epoch millis of the first fix (inclusive)
+     * @param to   Epoch millis of the last fix (inclusive)
+     * @return A cursor over the fixes in the given time range
+     */
+    public Cursor cursor(final long from, final long to) {
+        final Cursor cursor = new Cursor();
+        cursor.reset(from, to);
+        return cursor;
+    }
+
+    /**
+     * Returns the fixes with a timestamp between from and to as new Location objects.
+     * @param from Epoch millis of the first fix (inclusive)
+     * @param to   Epoch millis of the last fix (inclusive)
+     * @return The fixes in the given time range
+     */
+    public List<Location> getLocations(final long from, final long to) {
+        final List<Location> locations = new ArrayList<>();
+        final Cursor         cursor    = cursor(from, to);
+        while (cursor.next()) {
+            locations.add(new Location(cursor.getLatitude(), cursor.getLongitude(), 0, Instant.ofEpochMilli(cursor.getTimestamp()), ""));
+        }
+        return locations;
+    }
+
+    /**
+     * Writes the first fix of every interval between from and to into the
+     * given arrays, e.g. to show a track with one fix per minute.
+     * @param from       Epoch millis of the first fix (inclusive)
+     * @param to         Epoch millis of the last fix (inclusive)
+     * @param interval   The length of the intervals in ms
+     * @param latitudes  Receives the latitudes
+     * @param longitudes Receives the longitudes
+     * @param timestamps Receives the timestamps in epoch millis
+     * @return The number of fixes that have been written
+     */
+    public int downsample(final long from, final long to, final long interval, final double[] latitudes, final double[] longitudes, final long[] timestamps) {
+        if (interval < 1) { throw new IllegalArgumentException("Interval must be at least 1 ms"); }
+        final int    max    = Math.min(latitudes.length, Math.min(longitudes.length, timestamps.length));
+        final Cursor cursor = cursor(from, to);
+        long         bucket = -1;
+        int          count  = 0;
+        while (count < max && cursor.next()) {
+            final long fixBucket = (cursor.getTimestamp() - from) / interval;
+            if (fixBucket == bucket) { continue; }
+            bucket            = fixBucket;
+            latitudes[count]  = cursor.getLatitude();
+            longitudes[count] = cursor.getLongitude();
+            timestamps[count] = cursor.getTimestamp();
+            count++;
+        }
+        return count;
+    }
+
+    private int startBlock(final int lat, final int lon, final long epochMillis) {
+        if (noOfBlocks == blocks.length) { dropOldestBlock(); }
+        if (noOfBlocks > 0) {
+            // Trim the full block to the bytes it needs
+            final int previous = (first + noOfBlocks - 1) % blocks.length;
+            blocks[previous] = Arrays.copyOf(blocks[previous], blockLengths[previous]);
+        }
+        final int newest = (first + noOfBlocks) % blocks.length;
+        blocks[newest]          = new byte[BLOCK_SIZE * 4];
+        blockLatitudes[newest]  = lat;
+        blockLongitudes[newest] = lon;
+        blockTimestamps[newest] = epochMillis;
+        blockSizes[newest]      = 1;
+        blockLengths[newest]    = 0;
+        lastTimeDelta           = 0;
+        noOfBlocks++;
+        return newest;
+    }
+
+    private void dropOldestBlock() {
+        size -= blockSizes[first];
+        blocks[first] = null;
+        first         = (first + 1) % blocks.length;
+        noOfBlocks--;
+        noOfDroppedBlocks++;
+    }
+
+    private static int write(final byte[] bytes, int offset, final long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            bytes[offset++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        bytes[offset++] = (byte) zigzag;
+        return offset;
+    }
+
+
+    // ******************** Inner Classes *************************************
+    /**
+     * Iterates over the fixes without creating objects per fix. Fixes that
+     * are dropped while iterating will be skipped.
+     */
+    public class Cursor {
+        private long   from;
+        private long   to;
+        private long   block;       // Number of the block counted from the first block ever
+        private int    index;       // Index of the next fix in the block
+        private int    offset;
+        private int    latitude;
+        private int    longitude;
+        private long   timestamp;
+        private long   timeDelta;
+
+
+        // ******************** Constructors **********************************
+        Cursor() {
+            reset();
+        }
+
+
+        // ******************** Methods ***************************************
+        public void reset() { reset(Long.MIN_VALUE, Long.MAX_VALUE); }
+        public void reset(final long from, final long to) {
+            this.from  = from;
+            this.to    = to;
+            this.block = noOfDroppedBlocks;
+            this.index = 0;
+        }
+
+        /**
+         * Moves the cursor to the next fix.
+         * @return False if there is no more fix in the time range
+         */
+        public boolean next() {
+            while (true) {
+                if (block < noOfDroppedBlocks) {
+                    block = noOfDroppedBlocks;
+                    index = 0;
+                }
+                if (block - noOfDroppedBlocks >= noOfBlocks) { return false; }
+                final int b = (int) ((first + block - noOfDroppedBlocks) % blocks.length);
+                if (0 == index) {
+                    if (blockLastTimestamps[b] < from) {
+                        block++;
+                        continue;
+                    }
+                    latitude  = blockLatitudes[b];
+                    longitude = blockLongitudes[b];
+                    timestamp = blockTimestamps[b];
+                    timeDelta = 0;
+                    offset    = 0;
+                } else if (index < blockSizes[b]) {
+                    final byte[] bytes = blocks[b];
+                    latitude  += (int) read(bytes);
+                    longitude += (int) read(bytes);
+                    timeDelta += read(bytes);
+                    timestamp += timeDelta;
+                } else {
+                    block++;
+                    index = 0;
+                    continue;
+                }
+                index++;
+                if (timestamp < from) { continue; }
+                if (timestamp > to) {
+                    block = noOfDroppedBlocks + noOfBlocks;
+                    return false;
+                }
+                return true;
+            }
+        }
+
+        public double getLatitude() { return latitude / SCALE; }
+
+        public double getLongitude() { return longitude / SCALE; }
+
+        public long getTimestamp() { return timestamp; }
+
+        private long read(final byte[] bytes) {
+            long zigzag = 0;
+            int  shift  = 0;
+            byte b;
+            do {
+                b       = bytes[offset++];
+                zigzag |= (long) (b & 0x7F) << shift;
+                shift  += 7;
+            } while (b < 0);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+    }
+}
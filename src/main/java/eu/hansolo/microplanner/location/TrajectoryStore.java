@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.location;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Keeps a Trajectory per object name, e.g. the last hour of fixes of all
+ * tracked devices.
+ * Tracked locations add a fix on every LOCATION_CHANGED event.
+ * Every trajectory is written while holding its lock, so readers should
+ * synchronize on the trajectory while they iterate over it.
+ */
+public class TrajectoryStore {
+    private final int                     capacity;
+    private final Duration                maxAge;
+    private final Map<String, Trajectory> trajectories;
+    private final LocationObserver        locationObserver;
+
+
+    // ******************** Constructors **************************************
+    /**
+     * Creates a store that keeps at least the last capacity fixes per
+     * object and drops fixes that are older than the given max age.
+     * @param capacity The number of fixes to keep per object
+     * @param maxAge   The max age of the fixes relative to the newest fix of the object or null
+     */
+    public TrajectoryStore(final int capacity, final Duration maxAge) {
+        if (capacity < 1) { throw new IllegalArgumentException("Capacity must be at least 1"); }
+        this.capacity    = capacity;
+        this.maxAge      = maxAge;
+        trajectories     = new ConcurrentHashMap<>();
+        locationObserver = evt -> add(evt.getLocation());
+    }
+
+
+    // ******************** Methods *******************************************
+    public int size() { return trajectories.size(); }
+
+    /**
+     * Adds the current position of the given location to the trajectory of the object.
+     * @param location The location of the object
+     * @return True if the fix was added
+     */
+    public boolean add(final Location location) {
+        final Trajectory trajectory = trajectories.computeIfAbsent(location.getName(), name -> new Trajectory(capacity, maxAge));
+        synchronized (trajectory) { return trajectory.add(location); }
+    }
+    public boolean add(final String name, final double latitude, final double longitude, final long epochMillis) {
+        final Trajectory trajectory = trajectories.computeIfAbsent(name, n -> new Trajectory(capacity, maxAge));
+        synchronized (trajectory) { return trajectory.add(latitude, longitude, epochMillis); }
+    }
+
+    /**
+     * Adds the current position of the given location and a fix on every
+     * following LOCATION_CHANGED event of the location.
+     * @param location The location to track
+     */
+    public void track(final Location location) {
+        add(location);
+        location.addLocationObserver(locationObserver);
+    }
+
+    public void untrack(final Location location) { location.removeLocationObserver(locationObserver); }
+
+    public Trajectory getTrajectory(final String name) { return trajectories.get(name); }
+
+    public List<String> getNames() { return new ArrayList<>(trajectories.keySet()); }
+
+    public Trajectory remove(final String name) { return trajectories.remove(name); }
+
+    /**
+     * Returns the number of bytes that are used for the fixes of all objects.
+     * @return The number of bytes used for the fixes
+     */
+    public long getNoOfBytes() {
+        long noOfBytes = 0;
+        for (Trajectory trajectory : trajectories.values()) {
+            synchronized (trajectory) { noOfBytes += trajectory.getNoOfBytes(); }
+        }
+        return noOfBytes;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.tools;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Clock that only moves when it is told to, e.g. to the timestamp of the
+ * location that is replayed at the moment. Time never moves backwards.
+ */
+public class EventTimeClock extends Clock {
+    private final AtomicLong millis;
+    private final ZoneId     zoneId;
+
+
+    // ******************** Constructors **************************************
+    public EventTimeClock() {
+        this(0, ZoneOffset.UTC);
+    }
+    public EventTimeClock(final Instant instant) {
+        this(instant.toEpochMilli(), ZoneOffset.UTC);
+    }
+    private EventTimeClock(final long millis, final ZoneId zoneId) {
+        this.millis = new AtomicLong(millis);
+        this.zoneId = zoneId;
+    }
+    private EventTimeClock(final AtomicLong millis, final ZoneId zoneId) {
+        this.millis = millis;
+        this.zoneId = zoneId;
+    }
+
+
+    // ******************** Methods *******************************************
+    public void advanceTo(final Instant instant) { advanceTo(instant.toEpochMilli()); }
+    public void advanceTo(final long epochMillis) { millis.accumulateAndGet(epochMillis, Math::max); }
+
+    public void advanceBy(final long deltaMillis) {
+        if (deltaMillis < 0) { throw new IllegalArgumentException("Time must not move backwards"); }
+        millis.addAndGet(deltaMillis);
+    }
+
+    @Override public ZoneId getZone() { return zoneId; }
+
+    // The returned clock shares the time with this clock
+    @Override public Clock withZone(final ZoneId zone) { return zone.equals(zoneId) ? this : new EventTimeClock(millis, zone); }
+
+    @Override public long millis() { return millis.get(); }
+
+    @Override public Instant instant() { return Instant.ofEpochMilli(millis.get()); }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.tools;
+
+
+/**
+ * Geohash cells encoded as long values.
+ * The upper 60 bits contain the interleaved geohash bits (starting with the
+ * longitude) and the lower 4 bits the precision (number of characters), so
+ * cells of different precisions never share the same id.
+ * Precision  7 is about 153m x 153m, precision 8 about 38m x 19m
+ * and precision 9 about 4.8m x 4.8m at the equator.
+ */
+public class GeoHash {
+    public  static final int    MIN_PRECISION = 1;
+    public  static final int    MAX_PRECISION = 12;
+    private static final char[] BASE_32       = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+
+    // ******************** Methods *******************************************
+    public static final long encode(final double latitude, final double longitude, final int precision) {
+        checkPrecision(precision);
+        final int lonBits = getLongitudeBits(precision);
+        final int latBits = getLatitudeBits(precision);
+        return interleave(getLongitudeIndex(longitude, lonBits), getLatitudeIndex(latitude, latBits), precision);
+    }
+
+    public static final int getPrecision(final long cellId) { return (int) (cellId & 0xF); }
+
+    public static final int getLongitudeBits(final int precision) { return (5 * precision + 1) / 2; }
+    public static final int getLatitudeBits(final int precision) { return (5 * precision) / 2; }
+
+    public static final double getCellWidth(final int precision) { return 360.0 / (1L << getLongitudeBits(precision)); }
+    public static final double getCellHeight(final int precision) { return 180.0 / (1L << getLatitudeBits(precision)); }
+
+    public static final long getLongitudeIndex(final double longitude, final int lonBits) {
+        return Helper.clamp(0L, (1L << lonBits) - 1, (long) Math.floor((longitude + 180.0) / 360.0 * (1L << lonBits)));
+    }
+    public static final long getLatitudeIndex(final double latitude, final int latBits) {
+        return Helper.clamp(0L, (1L << latBits) - 1, (long) Math.floor((latitude + 90.0) / 180.0 * (1L << latBits)));
+    }
+
+    /**
+     * Returns the cell with the given longitude and latitude index at the given precision.
+     * @param lonIndex  Index of the cell in longitude direction
+     * @param latIndex  Index of the cell in latitude direction
+     * @param precision Number of geohash characters
+     * @return The id of the cell
+     */
+    public static final long interleave(final long lonIndex, final long latIndex, final int precision) {
+        final int noOfBits = 5 * precision;
+        long      bits     = 0;
+        int       lonBit   = getLongitudeBits(precision) - 1;
+        int       latBit   = getLatitudeBits(precision) - 1;
+        for (int i = 0 ; i < noOfBits ; i++) {
+            bits <<= 1;
+            if (i % 2 == 0) {
+                bits |= (lonIndex >>> lonBit--) & 1L;
+            } else {
+                bits |= (latIndex >>> latBit--) & 1L;
+            }
+        }
+        return (bits << (64 - noOfBits)) | precision;
+    }
+
+    /**
+     * Returns the bounds of the given cell as { minLatitude, minLongitude, maxLatitude, maxLongitude }.
+     * @param cellId The id of the cell
+     * @return The bounds of the cell
+     */
+    public static final double[] getBounds(final long cellId) {
+        final int  precision = getPrecision(cellId);
+        final int  noOfBits  = 5 * precision;
+        final long bits      = cellId >>> (64 - noOfBits);
+        long       lonIndex  = 0;
+        long       latIndex  = 0;
+        for (int i = 0 ; i < noOfBits ; i++) {
+            final long bit = (bits >>> (noOfBits - 1 - i)) & 1L;
+            if (i % 2 == 0) {
+                lonIndex = (lonIndex << 1) | bit;
+            } else {
+                latIndex = (latIndex << 1) | bit;
+            }
+        }
+        final double width  = getCellWidth(precision);
+        final double height = getCellHeight(precision);
+        return new double[] { latIndex * height - 90.0, lonIndex * width - 180.0, (latIndex + 1) * height - 90.0, (lonIndex + 1) * width - 180.0 };
+    }
+
+    /**
+     * Returns the shard of the given cell, cells of one shard can be evaluated
+     * on one node of a partitioned system.
+     * @param cellId     The id of the cell
+     * @param noOfShards The number of shards
+     * @return The shard of the cell between 0 and noOfShards - 1
+     */
+    public static final int getShard(final long cellId, final int noOfShards) {
+        long hash = cellId * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 32;
+        return (int) Math.floorMod(hash, (long) noOfShards);
+    }
+
+    public static final String toString(final long cellId) {
+        final int    precision = getPrecision(cellId);
+        final char[] chars     = new char[precision];
+        for (int i = 0 ; i < precision ; i++) { chars[i] = BASE_32[(int) ((cellId >>> (59 - 5 * i)) & 0x1F)]; }
+        return new String(chars);
+    }
+
+    private static void checkPrecision(final int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) { throw new IllegalArgumentException("Precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION); }
+    }
+}
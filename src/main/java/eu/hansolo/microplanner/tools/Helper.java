@@ -18,6 +18,7 @@ package eu.hansolo.microplanner.tools;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
 import java.util.ArrayList;
@@ -36,15 +37,19 @@ import java.util.regex.Pattern;
 
 
 public class Helper {
-    public  static final double  MIN_FONT_SIZE = 5;
-    public  static final double  HALF_PI       = Math.PI * 0.5;
-    public  static final double  TWO_PI        = Math.PI + Math.PI;
-    public  static final double  THREE_PI      = TWO_PI + Math.PI;
-    private static final double  EPSILON       = 1E-6;
-    private static final Pattern FLOAT_PATTERN = Pattern.compile("[-+]?[0-9]*\\.?[0-9]+");
-    private static final Matcher FLOAT_MATCHER = FLOAT_PATTERN.matcher("");
-    private static final Pattern HEX_PATTERN   = Pattern.compile("#?([A-Fa-f0-9]{8}|[A-Fa-f0-9]{6})");
-    private static final Matcher HEX_MATCHER   = HEX_PATTERN.matcher("");
+    public  static final double  MIN_FONT_SIZE    = 5;
+    public  static final double  HALF_PI          = Math.PI * 0.5;
+    public  static final double  TWO_PI           = Math.PI + Math.PI;
+    public  static final double  THREE_PI         = TWO_PI + Math.PI;
+    public  static final double  EARTH_RADIUS     = 6_371_000; // m
+    public  static final double  METER_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS;
+    private static final double  EPSILON          = 1E-6;
+    private static final int     FNV_OFFSET       = 0x811C9DC5;
+    private static final int     FNV_PRIME        = 0x01000193;
+    private static final Pattern FLOAT_PATTERN    = Pattern.compile("[-+]?[0-9]*\\.?[0-9]+");
+    private static final Matcher FLOAT_MATCHER    = FLOAT_PATTERN.matcher("");
+    private static final Pattern HEX_PATTERN      = Pattern.compile("#?([A-Fa-f0-9]{8}|[A-Fa-f0-9]{6})");
+    private static final Matcher HEX_MATCHER      = HEX_PATTERN.matcher("");
 
     public static final <T extends Number> T clamp(final T min, final T max, final T value) {
         if (value.doubleValue() < min.doubleValue()) return min;
@@ -206,6 +211,44 @@ public class Helper {
         };
     }
 
+    /**
+     * Returns the FNV-1a hash of the UTF-8 encoding of the given text without
+     * encoding it, it is the same as hashUtf8() of the encoded bytes. Unpaired
+     * surrogates are hashed as '?' like in String.getBytes().
+     * @param text The text
+     * @return The hash of the UTF-8 bytes of the text
+     */
+    public static final int hashUtf8(final CharSequence text) {
+        int hash = FNV_OFFSET;
+        for (int i = 0 ; i < text.length() ; i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                hash = (hash ^ c) * FNV_PRIME;
+            } else if (c < 0x800) {
+                hash = (hash ^ (0xC0 | c >> 6)) * FNV_PRIME;
+                hash = (hash ^ (0x80 | c & 0x3F)) * FNV_PRIME;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                hash = (hash ^ (0xF0 | codePoint >> 18)) * FNV_PRIME;
+                hash = (hash ^ (0x80 | codePoint >> 12 & 0x3F)) * FNV_PRIME;
+                hash = (hash ^ (0x80 | codePoint >> 6 & 0x3F)) * FNV_PRIME;
+                hash = (hash ^ (0x80 | codePoint & 0x3F)) * FNV_PRIME;
+            } else if (Character.isSurrogate(c)) {
+                hash = (hash ^ '?') * FNV_PRIME;
+            } else {
+                hash = (hash ^ (0xE0 | c >> 12)) * FNV_PRIME;
+                hash = (hash ^ (0x80 | c >> 6 & 0x3F)) * FNV_PRIME;
+                hash = (hash ^ (0x80 | c & 0x3F)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+    public static final int hashUtf8(final ByteBuffer bytes, final int offset, final int length) {
+        int hash = FNV_OFFSET;
+        for (int i = offset ; i < offset + length ; i++) { hash = (hash ^ (bytes.get(i) & 0xFF)) * FNV_PRIME; }
+        return hash;
+    }
+
     public static final void stopTask(ScheduledFuture<?> task) {
         if (null == task) return;
         task.cancel(true);
@@ -253,6 +296,43 @@ public class Helper {
                 Double.compare(y, maxY) <= 0);
     }
 
+    /**
+     * Returns true if the line from p1 to p2 touches the given rectangle (Liang-Barsky clipping).
+     * @param p1X  The x coordinate of the start point of the line
+     * @param p1Y  The y coordinate of the start point of the line
+     * @param p2X  The x coordinate of the end point of the line
+     * @param p2Y  The y coordinate of the end point of the line
+     * @param minX The min x of the rectangle
+     * @param minY The min y of the rectangle
+     * @param maxX The max x of the rectangle
+     * @param maxY The max y of the rectangle
+     * @return True if the line touches the rectangle
+     */
+    public static final boolean isLineInRectangle(final double p1X, final double p1Y, final double p2X, final double p2Y,
+                                                  final double minX, final double minY, final double maxX, final double maxY) {
+        final double   deltaX = p2X - p1X;
+        final double   deltaY = p2Y - p1Y;
+        final double[] p      = { -deltaX, deltaX, -deltaY, deltaY };
+        final double[] q      = { p1X - minX, maxX - p1X, p1Y - minY, maxY - p1Y };
+        double t0 = 0;
+        double t1 = 1;
+        for (int i = 0 ; i < 4 ; i++) {
+            if (Double.compare(p[i], 0.0) == 0) {
+                if (q[i] < 0) { return false; }
+            } else {
+                final double r = q[i] / p[i];
+                if (p[i] < 0) {
+                    if (r > t1) { return false; }
+                    if (r > t0) { t0 = r; }
+                } else {
+                    if (r < t0) { return false; }
+                    if (r < t1) { t1 = r; }
+                }
+            }
+        }
+        return true;
+    }
+
     public static final boolean isInEllipse(final double x, final double y,
                                             final double centerX, final double centerY,
                                             final double radiusX, final double radiusY) {
@@ -287,6 +367,46 @@ public class Helper {
         }
         return inside;
     }
+    /**
+     * Tests a columnar batch of positions against the given polygon in one pass.
+     * The result of position i is written to bit (i % 64) of result[i / 64],
+     * a set bit means the position is inside the polygon.
+     * @param xs                  The x coordinates of the positions
+     * @param ys                  The y coordinates of the positions
+     * @param noOfPositions       The number of positions to test
+     * @param noOfPointsInPolygon The number of points of the polygon
+     * @param pointsX             The x coordinates of the polygon points
+     * @param pointsY             The y coordinates of the polygon points
+     * @param result              The bitset that will contain the results, needs at least (noOfPositions + 63) / 64 elements
+     * @return The number of positions inside the polygon
+     */
+    public static final int isInPolygon(final double[] xs, final double[] ys, final int noOfPositions, final int noOfPointsInPolygon, final double[] pointsX, final double[] pointsY, final long[] result) {
+        checkBatch(xs, ys, noOfPositions, result);
+        if (noOfPointsInPolygon != pointsX.length || noOfPointsInPolygon != pointsY.length) { return 0; }
+        int noOfInside = 0;
+        for (int p = 0 ; p < noOfPositions ; p++) {
+            final double x      = xs[p];
+            final double y      = ys[p];
+            boolean      inside = false;
+            for (int i = 0, j = noOfPointsInPolygon - 1; i < noOfPointsInPolygon ; j = i++) {
+                if (((pointsY[i] > y) != (pointsY[j] > y)) && (x < (pointsX[j] - pointsX[i]) * (y - pointsY[i]) / (pointsY[j] - pointsY[i]) + pointsX[i])) {
+                    inside = !inside;
+                }
+            }
+            if (inside) {
+                result[p >>> 6] |= 1L << p;
+                noOfInside++;
+            }
+        }
+        return noOfInside;
+    }
+
+    public static final void checkBatch(final double[] xs, final double[] ys, final int noOfPositions, final long[] result) {
+        if (noOfPositions < 0 || noOfPositions > xs.length || noOfPositions > ys.length) { throw new IllegalArgumentException("Number of positions exceeds coordinate arrays"); }
+        final int noOfWords = (noOfPositions + 63) >>> 6;
+        if (result.length < noOfWords) { throw new IllegalArgumentException("Result needs at least " + noOfWords + " elements"); }
+        Arrays.fill(result, 0, noOfWords, 0L);
+    }
 
     public static <T extends Point> boolean isPointInPolygon(final T p, final ArrayList<T> points) {
         boolean inside = false;
@@ -445,4 +565,32 @@ public class Helper {
         }
         return result;
     }
+
+    /**
+     * Escapes quotes, backslashes and control characters for the use in a json string.
+     * @param text The text to escape
+     * @return The escaped text or an empty string if text is null
+     */
+    public static final String escapeJson(final String text) {
+        if (null == text) { return ""; }
+        final StringBuilder result = new StringBuilder(text.length() + 8);
+        for (int i = 0 ; i < text.length() ; i++) {
+            final char c = text.charAt(i);
+            switch(c) {
+                case '"' : result.append("\\\""); break;
+                case '\\': result.append("\\\\"); break;
+                case '\n': result.append("\\n"); break;
+                case '\r': result.append("\\r"); break;
+                case '\t': result.append("\\t"); break;
+                default  :
+                    if (c < 0x20) {
+                        result.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        result.append(c);
+                    }
+                    break;
+            }
+        }
+        return result.toString();
+    }
 }
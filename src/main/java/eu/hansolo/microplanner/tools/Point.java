@@ -134,13 +134,22 @@ public class Point implements Comparable<Point> {
     }
 
 
+    /**
+     * Returns the point that is nearest to the given point and closer than
+     * the given radius or null if no point is closer than the radius.
+     * @param point  The point to search around
+     * @param points The points to search in
+     * @param radius The radius
+     * @return The nearest point within the radius or null
+     */
     public static Point nearestWithinRadius(final Point point, final List<Point> points, final double radius) {
-        final double radiusSquare = radius * radius;
-        Point p = points.get(0);
+        double nearestDistanceSquare = radius * radius;
+        Point  p                     = null;
         for (int i = 0; i < points.size(); i++) {
             double distanceSquare = points.get(i).euclideanDistanceTo(point);
-            if (distanceSquare < radiusSquare && distanceSquare < p.euclideanDistanceTo(point)) {
-                p = points.get(i);
+            if (distanceSquare < nearestDistanceSquare) {
+                nearestDistanceSquare = distanceSquare;
+                p                     = points.get(i);
             }
         }
         return p;
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.tools;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ * Simplification of closed polygons with a tolerance in meters.
+ * The points are expected as x = latitude and y = longitude and will be
+ * projected to meters with an equirectangular projection around the mean
+ * latitude of the polygon.
+ * DOUGLAS_PEUCKER : Removes points that are closer than the tolerance to the
+ *                   line between the points that are kept.
+ * VISVALINGAM     : Removes points whose triangle with their neighbours has an
+ *                   area smaller than tolerance * tolerance.
+ */
+public class Simplifier {
+    public enum Method { NONE, DOUGLAS_PEUCKER, VISVALINGAM }
+
+    private static final int MIN_NO_OF_POINTS = 3;
+
+
+    // ******************** Methods *******************************************
+    /**
+     * Simplifies the given polygon with the given method. If the simplified
+     * polygon intersects itself or has less than 3 points the tolerance will be
+     * halved until it does not, if that does not help or the given polygon
+     * intersects itself already the points will be returned unchanged.
+     * @param points           The points of the closed polygon
+     * @param method           The simplification method
+     * @param toleranceInMeter The tolerance in meters
+     * @return The points of the simplified polygon
+     */
+    public static final List<Point> simplify(final List<Point> points, final Method method, final double toleranceInMeter) {
+        if (Method.NONE == method || toleranceInMeter <= 0 || points.size() <= MIN_NO_OF_POINTS) { return new ArrayList<>(points); }
+        if (!isSimple(points)) { return new ArrayList<>(points); }
+        double tolerance = toleranceInMeter;
+        for (int i = 0 ; i < 8 ; i++, tolerance *= 0.5) {
+            final List<Point> simplified = Method.VISVALINGAM == method ? visvalingam(points, tolerance) : douglasPeucker(points, tolerance);
+            if (simplified.size() >= MIN_NO_OF_POINTS && isSimple(simplified)) { return simplified; }
+        }
+        return new ArrayList<>(points);
+    }
+
+    public static final List<Point> douglasPeucker(final List<Point> points, final double toleranceInMeter) {
+        final int size = points.size();
+        if (size <= MIN_NO_OF_POINTS) { return new ArrayList<>(points); }
+        final double[] xs = new double[size];
+        final double[] ys = new double[size];
+        project(points, xs, ys);
+
+        // Split the ring at the first point and the point farthest away from it
+        int    farthest    = 0;
+        double maxDistance = -1;
+        for (int i = 1 ; i < size ; i++) {
+            final double distance = Point.euclideanDistance(xs[0], ys[0], xs[i], ys[i]);
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                farthest    = i;
+            }
+        }
+        final boolean[] keep      = new boolean[size];
+        final double    tolerance = toleranceInMeter * toleranceInMeter;
+        keep[0]        = true;
+        keep[farthest] = true;
+        final Deque<int[]> ranges = new ArrayDeque<>();
+        ranges.push(new int[] { 0, farthest });
+        ranges.push(new int[] { farthest, size });
+        while (!ranges.isEmpty()) {
+            final int[] range = ranges.pop();
+            final int   first = range[0];
+            final int   last  = range[1];
+            if (last - first < 2) { continue; }
+            final int lastIndex = last % size;
+            int       index     = -1;
+            double    max       = tolerance;
+            for (int i = first + 1 ; i < last ; i++) {
+                final double distance = distanceToSegmentSquared(xs[i], ys[i], xs[first], ys[first], xs[lastIndex], ys[lastIndex]);
+                if (distance > max) {
+                    max   = distance;
+                    index = i;
+                }
+            }
+            if (index < 0) { continue; }
+            keep[index] = true;
+            ranges.push(new int[] { first, index });
+            ranges.push(new int[] { index, last });
+        }
+
+        // A ring needs at least 3 points, keep the point farthest away from the line between the two split points
+        int noOfKept = 0;
+        for (boolean kept : keep) { if (kept) { noOfKept++; } }
+        if (noOfKept < MIN_NO_OF_POINTS) {
+            int    index = -1;
+            double max   = -1;
+            for (int i = 1 ; i < size ; i++) {
+                if (keep[i]) { continue; }
+                final double distance = distanceToSegmentSquared(xs[i], ys[i], xs[0], ys[0], xs[farthest], ys[farthest]);
+                if (distance > max) {
+                    max   = distance;
+                    index = i;
+                }
+            }
+            if (index >= 0) { keep[index] = true; }
+        }
+        return collect(points, keep);
+    }
+
+    public static final List<Point> visvalingam(final List<Point> points, final double toleranceInMeter) {
+        final int size = points.size();
+        if (size <= MIN_NO_OF_POINTS) { return new ArrayList<>(points); }
+        final double[]  xs       = new double[size];
+        final double[]  ys       = new double[size];
+        final int[]     previous = new int[size];
+        final int[]     next     = new int[size];
+        final double[]  areas    = new double[size];
+        final boolean[] keep     = new boolean[size];
+        project(points, xs, ys);
+
+        final PriorityQueue<double[]> queue = new PriorityQueue<>(size, (a, b) -> Double.compare(a[0], b[0]));
+        for (int i = 0 ; i < size ; i++) {
+            previous[i] = (i + size - 1) % size;
+            next[i]     = (i + 1) % size;
+            keep[i]     = true;
+            areas[i]    = triangleArea(xs, ys, previous[i], i, next[i]);
+            queue.add(new double[] { areas[i], i });
+        }
+        final double minArea   = toleranceInMeter * toleranceInMeter;
+        int          remaining = size;
+        while (remaining > MIN_NO_OF_POINTS && !queue.isEmpty()) {
+            final double[] entry = queue.poll();
+            final int      index = (int) entry[1];
+            if (!keep[index] || entry[0] != areas[index]) { continue; } // Outdated entry
+            if (entry[0] >= minArea) { break; }
+            keep[index] = false;
+            remaining--;
+            final int p = previous[index];
+            final int n = next[index];
+            next[p]     = n;
+            previous[n] = p;
+            // The area of a neighbour must not become smaller than the area of the removed point
+            areas[p] = Math.max(entry[0], triangleArea(xs, ys, previous[p], p, n));
+            areas[n] = Math.max(entry[0], triangleArea(xs, ys, p, n, next[n]));
+            queue.add(new double[] { areas[p], p });
+            queue.add(new double[] { areas[n], n });
+        }
+        return collect(points, keep);
+    }
+
+    /**
+     * Returns true if no two non adjacent edges of the given closed polygon intersect.
+     * Repeated points, e.g. a last point that closes the ring explicitly, are
+     * ignored because they only create edges without length.
+     * @param points The points of the closed polygon
+     * @return True if the polygon does not intersect itself
+     */
+    public static final boolean isSimple(final List<Point> points) {
+        final double[] xs   = new double[points.size()];
+        final double[] ys   = new double[points.size()];
+        int            size = 0;
+        for (Point point : points) {
+            if (size > 0 && Double.compare(point.getX(), xs[size - 1]) == 0 && Double.compare(point.getY(), ys[size - 1]) == 0) { continue; }
+            xs[size] = point.getX();
+            ys[size] = point.getY();
+            size++;
+        }
+        if (size > 1 && Double.compare(xs[0], xs[size - 1]) == 0 && Double.compare(ys[0], ys[size - 1]) == 0) { size--; }
+        if (size < 4) { return true; }
+        for (int i = 0 ; i < size ; i++) {
+            final int    i2   = (i + 1) % size;
+            final double minX = Math.min(xs[i], xs[i2]);
+            final double maxX = Math.max(xs[i], xs[i2]);
+            final double minY = Math.min(ys[i], ys[i2]);
+            final double maxY = Math.max(ys[i], ys[i2]);
+            for (int j = i + 2 ; j < size ; j++) {
+                final int j2 = (j + 1) % size;
+                if (j2 == i) { continue; } // Adjacent to the first edge
+                if (Math.max(xs[j], xs[j2]) < minX || Math.min(xs[j], xs[j2]) > maxX ||
+                    Math.max(ys[j], ys[j2]) < minY || Math.min(ys[j], ys[j2]) > maxY) { continue; }
+                if (intersect(xs[i], ys[i], xs[i2], ys[i2], xs[j], ys[j], xs[j2], ys[j2])) { return false; }
+            }
+        }
+        return true;
+    }
+
+    private static void project(final List<Point> points, final double[] xs, final double[] ys) {
+        double meanLatitude = 0;
+        for (Point point : points) { meanLatitude += point.getX(); }
+        meanLatitude /= points.size();
+        final double scaleY = Helper.METER_PER_DEGREE * Math.cos(Math.toRadians(meanLatitude));
+        for (int i = 0, size = points.size() ; i < size ; i++) {
+            xs[i] = points.get(i).getX() * Helper.METER_PER_DEGREE;
+            ys[i] = points.get(i).getY() * scaleY;
+        }
+    }
+
+    private static List<Point> collect(final List<Point> points, final boolean[] keep) {
+        final List<Point> result = new ArrayList<>();
+        for (int i = 0 ; i < keep.length ; i++) {
+            if (keep[i]) { result.add(points.get(i)); }
+        }
+        return result;
+    }
+
+    private static double distanceToSegmentSquared(final double x, final double y, final double x1, final double y1, final double x2, final double y2) {
+        final double deltaX        = x2 - x1;
+        final double deltaY        = y2 - y1;
+        final double lengthSquared = deltaX * deltaX + deltaY * deltaY;
+        final double t             = lengthSquared > 0 ? Helper.clamp(0.0, 1.0, ((x - x1) * deltaX + (y - y1) * deltaY) / lengthSquared) : 0;
+        return Point.euclideanDistance(x, y, x1 + t * deltaX, y1 + t * deltaY);
+    }
+
+    private static double triangleArea(final double[] xs, final double[] ys, final int a, final int b, final int c) {
+        return Math.abs((xs[b] - xs[a]) * (ys[c] - ys[a]) - (xs[c] - xs[a]) * (ys[b] - ys[a])) * 0.5;
+    }
+
+    private static boolean intersect(final double p1X, final double p1Y, final double p2X, final double p2Y,
+                                     final double p3X, final double p3Y, final double p4X, final double p4Y) {
+        final double d1 = orientation(p3X, p3Y, p4X, p4Y, p1X, p1Y);
+        final double d2 = orientation(p3X, p3Y, p4X, p4Y, p2X, p2Y);
+        final double d3 = orientation(p1X, p1Y, p2X, p2Y, p3X, p3Y);
+        final double d4 = orientation(p1X, p1Y, p2X, p2Y, p4X, p4Y);
+        if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0))) { return true; }
+        return (d1 == 0 && onSegment(p3X, p3Y, p4X, p4Y, p1X, p1Y)) ||
+               (d2 == 0 && onSegment(p3X, p3Y, p4X, p4Y, p2X, p2Y)) ||
+               (d3 == 0 && onSegment(p1X, p1Y, p2X, p2Y, p3X, p3Y)) ||
+               (d4 == 0 && onSegment(p1X, p1Y, p2X, p2Y, p4X, p4Y));
+    }
+
+    private static double orientation(final double aX, final double aY, final double bX, final double bY, final double cX, final double cY) {
+        return (bX - aX) * (cY - aY) - (bY - aY) * (cX - aX);
+    }
+
+    private static boolean onSegment(final double aX, final double aY, final double bX, final double bY, final double pX, final double pY) {
+        return pX >= Math.min(aX, bX) && pX <= Math.max(aX, bX) && pY >= Math.min(aY, bY) && pY <= Math.max(aY, bY);
+    }
+}
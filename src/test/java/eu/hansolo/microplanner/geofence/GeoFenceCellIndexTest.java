@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.geofence.GeoFenceEvent.GeoFenceEventType;
+import eu.hansolo.microplanner.location.Location;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static eu.hansolo.microplanner.geofence.GeoFenceIndexTest.createFences;
+import static eu.hansolo.microplanner.geofence.GeoFenceIndexTest.square;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class GeoFenceCellIndexTest {
+
+    @Test public void hysteresisKeepsObjectOutsideOfCoveredCellsUntilItLeaves() {
+        final List<GeoFenceEventType> events = new ArrayList<>();
+        final GeoFence                fence  = new GeoFence("square", "", square(48, 11, 0.01));
+        fence.setHysteresis(200);
+        fence.addGeoFenceListener((f, location, type) -> events.add(type));
+        final GeoFenceCellIndex index = new GeoFenceCellIndex(7, Collections.singletonList(fence));
+
+        assertEquals(Collections.singletonList(fence), index.evaluate(new Location(48, 11, "truck")));
+        assertTrue(events.contains(GeoFenceEventType.ENTERED_FENCE));
+
+        // About 110 m north of the fence, within the hysteresis but in a cell the fence does not cover
+        final Location nearby = new Location(48.011, 11, "truck");
+        assertTrue(index.getFencesContaining(nearby.getLatitude(), nearby.getLongitude()).isEmpty());
+        assertEquals(Collections.singletonList(fence), index.evaluate(nearby));
+        assertEquals(1, fence.getObjectsInFence().size());
+        assertTrue(!events.contains(GeoFenceEventType.LEFT_FENCE));
+
+        assertTrue(index.evaluate(new Location(48.1, 11, "truck")).isEmpty());
+        assertTrue(events.contains(GeoFenceEventType.LEFT_FENCE));
+        assertTrue(fence.getObjectsInFence().isEmpty());
+    }
+
+    @Test public void evaluateMatchesContainsLocation() {
+        final Random            random     = new Random(1);
+        final List<GeoFence>    fences     = createFences(new Random(2));
+        final List<GeoFence>    references = createFences(new Random(2));
+        final GeoFenceCellIndex index      = new GeoFenceCellIndex(6, fences);
+        for (int step = 0 ; step < 20 ; step++) {
+            for (int object = 0 ; object < 200 ; object++) {
+                final double      latitude  = 48 + random.nextDouble();
+                final double      longitude = 11 + random.nextDouble();
+                final Set<String> expected  = new HashSet<>();
+                for (GeoFence reference : references) {
+                    if (reference.containsLocation(new Location(latitude, longitude, "o" + object))) { expected.add(reference.getName()); }
+                }
+                final Set<String> actual = new HashSet<>();
+                for (GeoFence fence : index.evaluate(new Location(latitude, longitude, "o" + object))) { actual.add(fence.getName()); }
+                assertEquals(expected, actual);
+            }
+        }
+        for (int i = 0 ; i < fences.size() ; i++) { assertEquals(references.get(i).getObjectsInFence().size(), fences.get(i).getObjectsInFence().size()); }
+    }
+}
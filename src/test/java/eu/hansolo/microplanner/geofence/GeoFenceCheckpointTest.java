@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.geofence.GeoFenceEvent.GeoFenceEventType;
+import eu.hansolo.microplanner.location.Location;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * An object that has been inside of a fence before a restart has to leave
+ * the fence when it moves away after its membership has been restored.
+ */
+public class GeoFenceCheckpointTest {
+    private static final Location                INSIDE  = new Location(48.137, 11.575, "truck");
+    private static final Location                FAR_OFF = new Location(40.416, -3.703, "truck");
+    private              Path                    path;
+    private              List<GeoFenceEventType> events;
+
+
+    @Before public void setUp() throws IOException {
+        path   = Files.createTempFile("checkpoint", ".bin");
+        events = new ArrayList<>();
+        Files.delete(path);
+
+        final GeoFence fence = createFence();
+        fence.containsLocation(INSIDE);
+        assertEquals(1, new GeoFenceCheckpoint(path).writeFull(Collections.singletonList(fence)));
+        events.clear();
+    }
+
+    @After public void tearDown() throws IOException { Files.deleteIfExists(path); }
+
+
+    @Test public void restoredObjectLeavesFence() throws IOException {
+        final GeoFence fence = restoreFence();
+        fence.containsLocation(FAR_OFF);
+        assertLeft(fence.getObjectsInFence());
+    }
+
+    @Test public void restoredObjectLeavesFenceOfIndex() throws IOException {
+        final GeoFence      fence = restoreFence();
+        final GeoFenceIndex index = new GeoFenceIndex(fence);
+        assertTrue(index.evaluate(FAR_OFF).isEmpty());
+        assertLeft(fence.getObjectsInFence());
+    }
+
+    @Test public void restoredObjectLeavesFenceOfCellIndex() throws IOException {
+        final GeoFence          fence = restoreFence();
+        final GeoFenceCellIndex index = new GeoFenceCellIndex(GeoFenceCellIndex.DEFAULT_PRECISION, Collections.singletonList(fence));
+        assertTrue(index.evaluate(FAR_OFF).isEmpty());
+        assertLeft(fence.getObjectsInFence());
+    }
+
+    @Test public void restoredObjectLeavesFenceOfCompiledSet() throws IOException {
+        final GeoFence         fence    = restoreFence();
+        final CompiledFenceSet fenceSet = new CompiledFenceSet(Collections.singletonList(fence));
+        assertTrue(fenceSet.evaluate(FAR_OFF).isEmpty());
+        assertLeft(fence.getObjectsInFence());
+    }
+
+    @Test public void restoredObjectLeavesFenceOfEngine() throws IOException {
+        final GeoFence       fence  = createFence();
+        final GeoFenceEngine engine = new GeoFenceEngine(Collections.singletonList(fence), 2);
+        try {
+            assertEquals(1, new GeoFenceCheckpoint(path).restore(engine));
+            assertEquals(1, engine.getObjectsInFence(fence).size());
+            assertTrue(engine.evaluate(FAR_OFF).join().isEmpty());
+            assertLeft(engine.getObjectsInFence(fence));
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void duplicateFenceNamesAreRejected() throws IOException {
+        new GeoFenceCheckpoint(path).checkpoint(Arrays.asList(createFence(), createFence()));
+    }
+
+
+    private GeoFence createFence() {
+        final GeoFence fence = new GeoFence("depot", "", INSIDE.getLatitude(), INSIDE.getLongitude(), 100);
+        fence.addGeoFenceListener((f, location, type) -> events.add(type));
+        return fence;
+    }
+
+    private GeoFence restoreFence() throws IOException {
+        final GeoFence fence = createFence();
+        assertEquals(1, new GeoFenceCheckpoint(path).restore(Collections.singletonList(fence)));
+        assertEquals(1, fence.getObjectsInFence().size());
+        return fence;
+    }
+
+    private void assertLeft(final List<Location> objectsInFence) {
+        assertTrue(events.contains(GeoFenceEventType.LEFT_FENCE));
+        assertTrue(objectsInFence.isEmpty());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.geofence.GeoFenceEvent.GeoFenceEventType;
+import eu.hansolo.microplanner.location.FixReader;
+import eu.hansolo.microplanner.location.Location;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static eu.hansolo.microplanner.geofence.GeoFenceIndexTest.createFences;
+import static eu.hansolo.microplanner.geofence.GeoFenceIndexTest.square;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class GeoFenceEngineTest {
+    private GeoFenceEngine engine;
+
+
+    @After public void tearDown() { if (null != engine) { engine.shutdown(); } }
+
+
+    @Test public void evaluateMatchesContainsLocation() {
+        final Random         random     = new Random(1);
+        final List<GeoFence> fences     = createFences(new Random(2), 100);
+        final List<GeoFence> references = createFences(new Random(2), 100);
+        for (int i = 0 ; i < fences.size() ; i++) {
+            fences.get(i).setHysteresis(50);
+            references.get(i).setHysteresis(50);
+        }
+        engine = new GeoFenceEngine(fences, 4);
+        for (int step = 0 ; step < 10 ; step++) {
+            for (int object = 0 ; object < 200 ; object++) {
+                final double      latitude  = 48 + random.nextDouble();
+                final double      longitude = 11 + random.nextDouble();
+                final Set<String> expected  = new HashSet<>();
+                for (GeoFence reference : references) {
+                    if (reference.containsLocation(new Location(latitude, longitude, "o" + object))) { expected.add(reference.getName()); }
+                }
+                final Set<String> actual = new HashSet<>();
+                for (GeoFence fence : engine.evaluate(new Location(latitude, longitude, "o" + object)).join()) { actual.add(fence.getName()); }
+                assertEquals(expected, actual);
+            }
+        }
+        for (int i = 0 ; i < fences.size() ; i++) { assertEquals(references.get(i).getObjectsInFence().size(), engine.getObjectsInFence(fences.get(i)).size()); }
+    }
+
+    @Test public void evaluateBatchMatchesContainsLocation() throws IOException {
+        final Random         random     = new Random(1);
+        final List<GeoFence> fences     = createFences(new Random(2), 100);
+        final List<GeoFence> references = createFences(new Random(2), 100);
+        final StringBuilder  csv        = new StringBuilder("name,latitude,longitude,timestamp\n");
+        for (int object = 0 ; object < 5000 ; object++) {
+            final double latitude  = 48 + random.nextDouble();
+            final double longitude = 11 + random.nextDouble();
+            csv.append("o").append(object).append(',').append(latitude).append(',').append(longitude).append(",1525342530000\n");
+            for (GeoFence reference : references) { reference.containsLocation(new Location(latitude, longitude, "o" + object)); }
+        }
+        final Path path = Files.createTempFile("fixes", ".csv");
+        try {
+            Files.write(path, csv.toString().getBytes(StandardCharsets.UTF_8));
+            engine = new GeoFenceEngine(fences, 4);
+            assertEquals(5000, new FixReader(path, FixReader.Format.CSV, 1000).read(batch -> engine.evaluate(batch).join()));
+        } finally {
+            Files.delete(path);
+        }
+        assertEquals(5000, engine.getNoOfObjects());
+        for (int i = 0 ; i < fences.size() ; i++) { assertEquals(names(references.get(i).getObjectsInFence()), names(engine.getObjectsInFence(fences.get(i)))); }
+    }
+
+    @Test public void removeFiresLeftAndKeepsOtherObjects() {
+        final List<GeoFenceEventType> events = Collections.synchronizedList(new ArrayList<>());
+        final GeoFence                fence  = new GeoFence("square", "", square(48, 11, 0.01));
+        fence.addGeoFenceListener((f, location, type) -> events.add(type));
+        engine = new GeoFenceEngine(Collections.singletonList(fence), 2);
+
+        // More objects than the initial capacity of a shard to remove from a grown table
+        for (int object = 0 ; object < 5000 ; object++) { engine.evaluate(new Location(48, 11, "o" + object)); }
+        for (int object = 0 ; object < 5000 ; object += 2) { assertTrue(engine.remove("o" + object).join()); }
+        assertFalse(engine.remove("o0").join());
+        assertEquals(2500, engine.getNoOfObjects());
+        assertEquals(2500, engine.getObjectsInFence(fence).size());
+        assertEquals(2500, Collections.frequency(events, GeoFenceEventType.LEFT_FENCE));
+
+        // Remaining objects are found again, removed ones enter again
+        events.clear();
+        for (int object = 0 ; object < 5000 ; object++) { engine.evaluate(new Location(48, 11, "o" + object)).join(); }
+        assertEquals(5000, engine.getNoOfObjects());
+        assertEquals(2500, Collections.frequency(events, GeoFenceEventType.ENTERED_FENCE));
+    }
+
+    @Test public void waitingForShardsFromListenerThrows() {
+        final AtomicReference<Exception> exception = new AtomicReference<>();
+        final GeoFence                   fence     = new GeoFence("square", "", square(48, 11, 0.01));
+        fence.addGeoFenceListener((f, location, type) -> {
+            try {
+                engine.getNoOfObjects();
+            } catch (IllegalStateException e) {
+                exception.set(e);
+            }
+        });
+        engine = new GeoFenceEngine(Collections.singletonList(fence), 1);
+        engine.evaluate(new Location(48, 11, "truck")).join();
+        assertTrue(exception.get() instanceof IllegalStateException);
+    }
+
+    private static Set<String> names(final List<Location> locations) {
+        final Set<String> names = new HashSet<>();
+        for (Location location : locations) { names.add(location.getName()); }
+        return names;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.geofence.GeoFenceEvent.GeoFenceEventType;
+import eu.hansolo.microplanner.location.Location;
+import eu.hansolo.microplanner.tools.Point;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class GeoFenceIndexTest {
+
+    @Test public void hysteresisKeepsObjectOutsideOfBoundingBoxUntilItLeaves() {
+        final List<GeoFenceEventType> events = new ArrayList<>();
+        final GeoFence                fence  = new GeoFence("square", "", square(48, 11, 0.01));
+        fence.setHysteresis(200);
+        fence.addGeoFenceListener((f, location, type) -> events.add(type));
+        final GeoFenceIndex index = new GeoFenceIndex(fence);
+
+        assertEquals(Collections.singletonList(fence), index.evaluate(new Location(48, 11, "truck")));
+        assertTrue(events.contains(GeoFenceEventType.ENTERED_FENCE));
+
+        // About 110 m north of the fence, within the hysteresis but outside of the bounding box
+        assertEquals(Collections.singletonList(fence), index.evaluate(new Location(48.011, 11, "truck")));
+        assertEquals(1, fence.getObjectsInFence().size());
+        assertTrue(!events.contains(GeoFenceEventType.LEFT_FENCE));
+
+        assertTrue(index.evaluate(new Location(48.1, 11, "truck")).isEmpty());
+        assertTrue(events.contains(GeoFenceEventType.LEFT_FENCE));
+        assertTrue(fence.getObjectsInFence().isEmpty());
+    }
+
+    @Test public void evaluateMatchesContainsLocation() {
+        final Random         random     = new Random(1);
+        final List<GeoFence> fences     = createFences(new Random(2));
+        final List<GeoFence> references = createFences(new Random(2));
+        final GeoFenceIndex  index      = new GeoFenceIndex(fences);
+        for (int step = 0 ; step < 20 ; step++) {
+            for (int object = 0 ; object < 200 ; object++) {
+                final double         latitude  = 48 + random.nextDouble();
+                final double         longitude = 11 + random.nextDouble();
+                final Set<String>    expected  = new HashSet<>();
+                for (GeoFence reference : references) {
+                    if (reference.containsLocation(new Location(latitude, longitude, "o" + object))) { expected.add(reference.getName()); }
+                }
+                final Set<String> actual = new HashSet<>();
+                for (GeoFence fence : index.evaluate(new Location(latitude, longitude, "o" + object))) { actual.add(fence.getName()); }
+                assertEquals(expected, actual);
+            }
+        }
+        for (int i = 0 ; i < fences.size() ; i++) { assertEquals(references.get(i).getObjectsInFence().size(), fences.get(i).getObjectsInFence().size()); }
+    }
+
+
+    static List<Point> square(final double latitude, final double longitude, final double size) {
+        return Arrays.asList(new Point(latitude - size, longitude - size), new Point(latitude + size, longitude - size),
+                             new Point(latitude + size, longitude + size), new Point(latitude - size, longitude + size));
+    }
+
+    // Polygons and circles around 48N 11E, the same random numbers create the same fences
+    static List<GeoFence> createFences(final Random random) { return createFences(random, 60); }
+    static List<GeoFence> createFences(final Random random, final int noOfFences) {
+        final List<GeoFence> fences = new ArrayList<>();
+        for (int i = 0 ; i < noOfFences ; i++) {
+            final double latitude  = 48 + random.nextDouble();
+            final double longitude = 11 + random.nextDouble();
+            if (0 == i % 3) {
+                fences.add(new GeoFence("f" + i, "", latitude, longitude, 1000 + random.nextInt(9000)));
+            } else {
+                final List<Point> points     = new ArrayList<>();
+                final int         noOfPoints = 3 + random.nextInt(20);
+                for (int p = 0 ; p < noOfPoints ; p++) {
+                    final double angle  = 2 * Math.PI * p / noOfPoints;
+                    final double radius = 0.01 + random.nextDouble() * 0.1;
+                    points.add(new Point(latitude + radius * Math.cos(angle), longitude + radius * Math.sin(angle)));
+                }
+                fences.add(new GeoFence("f" + i, "", points));
+            }
+        }
+        return fences;
+    }
+}
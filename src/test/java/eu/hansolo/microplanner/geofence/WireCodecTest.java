@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.geofence;
+
+import eu.hansolo.microplanner.geofence.GeoFenceEvent.GeoFenceEventType;
+import eu.hansolo.microplanner.location.Location;
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class WireCodecTest {
+    private static final double SCALE = 0.5e-7;   // Max error of the sent coordinates
+
+
+    @Test public void locationRoundTrip() {
+        final WireCodec  encoder  = new WireCodec();
+        final WireCodec  decoder  = new WireCodec();
+        final ByteBuffer buffer   = ByteBuffer.allocate(1024);
+        final Location   location = new Location(48.1372184, 11.5754862, 519.5, Instant.ofEpochMilli(1_525_342_530_123L), "truck", "loaded");
+        location.setAccuracy(5);
+        encoder.encode(location, buffer);
+        final int first = buffer.position();
+        encoder.encode(location, buffer);
+        // The name is only sent with the first message
+        assertTrue(buffer.position() - first < first);
+
+        buffer.flip();
+        for (int i = 0 ; i < 2 ; i++) {
+            final Location decoded = decoder.decodeLocation(buffer);
+            assertEquals("truck", decoded.getName());
+            assertEquals(location.getLatitude(), decoded.getLatitude(), SCALE);
+            assertEquals(location.getLongitude(), decoded.getLongitude(), SCALE);
+            assertEquals(519.5, decoded.getAltitude(), 0);
+            assertEquals(5, decoded.getAccuracy(), 0);
+            assertEquals(location.getTimestamp(), decoded.getTimestamp());
+            assertEquals("loaded", decoded.getInfo());
+        }
+        assertTrue(!buffer.hasRemaining());
+    }
+
+    @Test public void missingTimestampIsDecodedAsNull() {
+        final WireCodec  codec  = new WireCodec();
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        codec.encode(new Location(48, 11, 0, null, "truck"), buffer);
+        codec.encode(new Location(48, 11, 0, Instant.EPOCH, "truck"), buffer);
+        buffer.flip();
+        assertNull(codec.decodeLocation(buffer).getTimestamp());
+        assertEquals(Instant.EPOCH, codec.decodeLocation(buffer).getTimestamp());
+    }
+
+    @Test public void geoFenceEventRoundTrip() {
+        final GeoFence   fence   = new GeoFence("depot", "", 48, 11, 100);
+        final WireCodec  encoder = new WireCodec();
+        final WireCodec  decoder = new WireCodec(name -> fence.getName().equals(name) ? fence : null);
+        final ByteBuffer buffer  = ByteBuffer.allocate(1024);
+        encoder.encode(new GeoFenceEvent(fence, new Location(48, 11, "truck"), GeoFenceEventType.LEFT_FENCE), buffer);
+        buffer.flip();
+        assertEquals(WireCodec.TYPE_GEOFENCE_EVENT, WireCodec.getType(buffer));
+        final GeoFenceEvent event = decoder.decodeGeoFenceEvent(buffer);
+        assertSame(fence, event.getSource());
+        assertEquals(GeoFenceEventType.LEFT_FENCE, event.getType());
+        assertEquals("truck", event.getLocation().getName());
+    }
+
+    @Test public void messageCanBeRetriedAfterOverflowAndUnderflow() {
+        final WireCodec  encoder  = new WireCodec();
+        final WireCodec  decoder  = new WireCodec();
+        final Location   location = new Location(48, 11, 0, Instant.ofEpochMilli(1_525_342_530_123L), "truck");
+        final ByteBuffer small    = ByteBuffer.allocate(8);
+        try {
+            encoder.encode(location, small);
+            fail("Message fits into 8 bytes");
+        } catch (BufferOverflowException e) {
+            assertEquals(0, small.position());
+        }
+
+        // The name has not been committed, so it is sent again
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        encoder.encode(location, buffer);
+        final int length = buffer.position();
+        buffer.flip();
+        buffer.limit(length - 1);
+        try {
+            decoder.decodeLocation(buffer);
+            fail("Incomplete message decoded");
+        } catch (BufferUnderflowException e) {
+            assertEquals(0, buffer.position());
+        }
+        buffer.limit(length);
+        assertEquals("truck", decoder.decodeLocation(buffer).getName());
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.location;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+public class FixReaderTest {
+    private static final long EPOCH_MILLIS = 1_525_342_530_123L;   // 2018-05-03T10:15:30.123Z
+    private              Path path;
+
+
+    @Before public void setUp() throws IOException { path = Files.createTempFile("fixes", ".csv"); }
+
+    @After public void tearDown() throws IOException { Files.deleteIfExists(path); }
+
+
+    @Test public void timestampsInEpochMillisUtcAndWithOffsetAreEqual() throws IOException {
+        final List<Long> timestamps = read("name,latitude,longitude,timestamp\n" +
+                                           "a,48.137,11.575," + EPOCH_MILLIS + "\n" +
+                                           "b,48.137,11.575,2018-05-03T10:15:30.123Z\n" +
+                                           "c,48.137,11.575,2018-05-03T12:15:30.123+02:00\n" +
+                                           "d,48.137,11.575,2018-05-03T05:15:30.123-05:00\n");
+        assertEquals(4, timestamps.size());
+        for (long timestamp : timestamps) { assertEquals(EPOCH_MILLIS, timestamp); }
+    }
+
+    @Test public void copyIntoBatchWithoutOwnNameBufferThrows() throws IOException {
+        Files.write(path, "a,48.137,11.575,0\n".getBytes(StandardCharsets.UTF_8));
+        final List<Exception> exceptions = new ArrayList<>();
+        new FixReader(path, FixReader.Format.CSV).read(batch -> {
+            for (FixBatch target : new FixBatch[] { new FixBatch(1), batch }) {
+                try {
+                    target.add(batch, 0);
+                    fail("Batch without own name buffer accepted a fix");
+                } catch (IllegalArgumentException e) {
+                    exceptions.add(e);
+                }
+            }
+        });
+        assertEquals(2, exceptions.size());
+    }
+
+    private List<Long> read(final String csv) throws IOException {
+        final List<Long> timestamps = new ArrayList<>();
+        Files.write(path, csv.getBytes(StandardCharsets.UTF_8));
+        new FixReader(path, FixReader.Format.CSV).read(batch -> {
+            for (int i = 0 ; i < batch.size() ; i++) { timestamps.add(batch.getTimestamp(i)); }
+        });
+        return timestamps;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2018 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.microplanner.location;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TrajectoryTest {
+    private static final double MICRODEGREE = 0.5e-6;   // Max error of the stored coordinates
+
+
+    @Test public void cursorReturnsAddedFixes() {
+        final double[]   latitudes  = new double[5000];
+        final double[]   longitudes = new double[5000];
+        final long[]     timestamps = new long[5000];
+        final Trajectory trajectory = new Trajectory(1000);
+        randomWalk(new Random(1), latitudes, longitudes, timestamps);
+        for (int i = 0 ; i < timestamps.length ; i++) { assertTrue(trajectory.add(latitudes[i], longitudes[i], timestamps[i])); }
+
+        // Whole blocks are dropped, so at least the last capacity fixes are kept
+        assertTrue(trajectory.size() >= 1000);
+        assertTrue(trajectory.size() < 1000 + 2 * Trajectory.BLOCK_SIZE);
+        final Trajectory.Cursor cursor = trajectory.cursor();
+        for (int i = timestamps.length - trajectory.size() ; i < timestamps.length ; i++) {
+            assertTrue(cursor.next());
+            assertEquals(latitudes[i], cursor.getLatitude(), MICRODEGREE);
+            assertEquals(longitudes[i], cursor.getLongitude(), MICRODEGREE);
+            assertEquals(timestamps[i], cursor.getTimestamp());
+        }
+        assertFalse(cursor.next());
+        assertEquals(timestamps[timestamps.length - trajectory.size()], trajectory.getFirstTimestamp());
+        assertEquals(timestamps[timestamps.length - 1], trajectory.getLastTimestamp());
+    }
+
+    @Test public void cursorReturnsFixesInTimeRange() {
+        final double[]   latitudes  = new double[500];
+        final double[]   longitudes = new double[500];
+        final long[]     timestamps = new long[500];
+        final Trajectory trajectory = new Trajectory(500);
+        randomWalk(new Random(2), latitudes, longitudes, timestamps);
+        for (int i = 0 ; i < timestamps.length ; i++) { trajectory.add(latitudes[i], longitudes[i], timestamps[i]); }
+
+        final long              from   = timestamps[100];
+        final long              to     = timestamps[300];
+        final Trajectory.Cursor cursor = trajectory.cursor(from, to);
+        int                     count  = 0;
+        for (int i = 0 ; i < timestamps.length ; i++) {
+            if (timestamps[i] < from || timestamps[i] > to) { continue; }
+            count++;
+            assertTrue(cursor.next());
+            assertEquals(latitudes[i], cursor.getLatitude(), MICRODEGREE);
+            assertEquals(timestamps[i], cursor.getTimestamp());
+        }
+        assertFalse(cursor.next());
+        assertEquals(count, trajectory.getLocations(from, to).size());
+    }
+
+    @Test public void oldFixesAreDroppedAfterMaxAge() {
+        final Trajectory trajectory = new Trajectory(10_000, Duration.ofMinutes(10));
+        for (int i = 0 ; i < 3600 ; i++) { trajectory.add(48, 11, i * 1000L); }
+        assertTrue(trajectory.getFirstTimestamp() <= 3_000_000L);
+        assertTrue(trajectory.getFirstTimestamp() > 3_000_000L - Trajectory.BLOCK_SIZE * 1000L);
+        assertFalse(trajectory.add(48, 11, 0));
+    }
+
+    @Test public void downsampleReturnsFirstFixOfEveryInterval() {
+        final Trajectory trajectory = new Trajectory(1000);
+        for (int i = 0 ; i < 600 ; i++) { trajectory.add(48 + i * 1e-5, 11, i * 1000L); }
+        final double[] latitudes  = new double[20];
+        final double[] longitudes = new double[20];
+        final long[]   timestamps = new long[20];
+        assertEquals(10, trajectory.downsample(0, 599_000, 60_000, latitudes, longitudes, timestamps));
+        for (int i = 0 ; i < 10 ; i++) {
+            assertEquals(i * 60_000L, timestamps[i]);
+            assertEquals(48 + i * 60 * 1e-5, latitudes[i], MICRODEGREE);
+        }
+    }
+
+    // Irregular fixes of a moving object, with gaps and jumps
+    private static void randomWalk(final Random random, final double[] latitudes, final double[] longitudes, final long[] timestamps) {
+        double latitude  = 48.137;
+        double longitude = 11.575;
+        long   timestamp = 1_525_342_530_000L;
+        for (int i = 0 ; i < timestamps.length ; i++) {
+            final boolean jump = random.nextInt(100) == 0;
+            latitude     += jump ? random.nextDouble() - 0.5 : (random.nextDouble() - 0.5) * 1e-4;
+            longitude    += jump ? random.nextDouble() - 0.5 : (random.nextDouble() - 0.5) * 1e-4;
+            timestamp    += jump ? random.nextInt(86_400_000) : random.nextInt(2000);
+            latitudes[i]  = latitude;
+            longitudes[i] = longitude;
+            timestamps[i] = timestamp;
+        }
+    }
+}